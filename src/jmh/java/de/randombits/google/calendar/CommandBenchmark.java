@@ -0,0 +1,148 @@
+package de.randombits.google.calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.util.DateTime;
+import picocli.CommandLine;
+
+/**
+ * CommandBenchmark runs the commands of the tools end to end against a FakeCalendarTransport
+ * filled with synthetic events. The events counter reports processed events per second, run with
+ * the gc profiler to see the allocations per run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandBenchmark {
+    private static final DateTime FROM = DateTime.parseRfc3339("2000-01-01T00:00:00Z");
+    private static final DateTime TO = DateTime.parseRfc3339("2010-01-01T00:00:00Z");
+    private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    @Param({"1000", "100000", "1000000"})
+    public int events;
+
+    @Param({"list", "touch", "delete", "move", "removeColor", "dedup", "export"})
+    public String command;
+
+    /* only used by touch, compare with -p touchStrategy=rename,extended_property */
+    @Param({"rename"})
+    public String touchStrategy;
+
+    /* e.g. -p filter="summary ~ '^Event 1'", compare with updated >= 2000-01-01 pushed down */
+    @Param({""})
+    public String filter;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    @Param({"0"})
+    public double errorRate;
+
+    @Param({"0"})
+    public double quotaPerSecond;
+
+    private File credentialsFile;
+    private File exportFile;
+    private FakeCalendarTransport transport;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ProcessedEvents {
+        public long events;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            events = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        /* only required by the command line, the fake transport never reads it */
+        credentialsFile = File.createTempFile("credentials", ".json");
+        credentialsFile.deleteOnExit();
+        /* written again by every run of export */
+        exportFile = File.createTempFile("export", ".ndjson");
+        exportFile.deleteOnExit();
+    }
+
+    /* delete and move empty the calendar, so every run gets fresh events */
+    @Setup(Level.Invocation)
+    public void populate() {
+        transport = new FakeCalendarTransport().setLatencyMillis(latencyMillis)
+                .setErrorRate(errorRate).setQuotaPerSecond(quotaPerSecond)
+                .addCalendar("primary", "Primary").addCalendar("target", "Target")
+                .addEvents("primary", events, FROM, TO);
+        if (command.equals("dedup")) {
+            transport.addDuplicates("primary", 10);
+        }
+    }
+
+    @Benchmark
+    public int run(ProcessedEvents processed) {
+        Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+                .setAccessToken("fake");
+        PrintStream console = System.out;
+        System.setOut(DISCARD);
+        int exitCode;
+        try {
+            exitCode = new CommandLine(new GoogleCalendarTools(transport, credential))
+                    .setCaseInsensitiveEnumValuesAllowed(true).execute(arguments());
+        } finally {
+            System.setOut(console);
+        }
+        if (exitCode != 0) {
+            throw new IllegalStateException(command + " failed with exit code " + exitCode);
+        }
+        processed.events += events;
+        return exitCode;
+    }
+
+    private String[] arguments() {
+        List<String> arguments = new ArrayList<>(Arrays.asList("-f", credentialsFile.getPath(),
+                "-r", "1000000", "--rate-limit-mode", "adaptive", "--max-rate-limit", "1000000",
+                "--touch-strategy", touchStrategy, command, "-s", "2000-01-01", "-e",
+                "2010-01-02"));
+        if (command.equals("move")) {
+            arguments.addAll(Arrays.asList("-t", "target"));
+        } else if (command.equals("export")) {
+            arguments.add(exportFile.getPath());
+        }
+        if (!filter.isEmpty()) {
+            arguments.addAll(Arrays.asList("--filter", filter));
+        }
+        return arguments.toArray(new String[0]);
+    }
+}
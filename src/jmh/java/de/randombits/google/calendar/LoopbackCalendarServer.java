@@ -0,0 +1,118 @@
+package de.randombits.google.calendar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * LoopbackCalendarServer serves a FakeCalendarTransport over plain HTTP on the loopback
+ * interface, so the real HTTP transports can be measured against it, connection handling
+ * included. Responses are compressed with gzip when the client accepts it, as Google does.
+ */
+public class LoopbackCalendarServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile FakeCalendarTransport calendar;
+
+    public LoopbackCalendarServer() throws IOException {
+        this.server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "loopback");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::forward);
+        this.server.start();
+    }
+
+    /**
+     * The fake the requests are forwarded to from now on.
+     */
+    public LoopbackCalendarServer setCalendar(FakeCalendarTransport calendar) {
+        this.calendar = calendar;
+        return this;
+    }
+
+    public String getRootUrl() {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":"
+                + server.getAddress().getPort() + "/";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void forward(HttpExchange exchange) throws IOException {
+        try {
+            Headers requestHeaders = exchange.getRequestHeaders();
+            LowLevelHttpRequest request = calendar.buildRequest(exchange.getRequestMethod(),
+                    "http://localhost" + exchange.getRequestURI());
+            for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    request.addHeader(header.getKey(), value);
+                }
+            }
+            byte[] body = readAll(exchange.getRequestBody());
+            if (body.length > 0) {
+                request.setContentType(requestHeaders.getFirst("Content-Type"));
+                request.setContentEncoding(requestHeaders.getFirst("Content-Encoding"));
+                request.setStreamingContent((out) -> out.write(body));
+            }
+            LowLevelHttpResponse response = request.execute();
+            byte[] content = response.getContent() != null ? readAll(response.getContent())
+                    : new byte[0];
+            String acceptEncoding = requestHeaders.getFirst("Accept-Encoding");
+            if (content.length > 0 && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                content = gzip(content);
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            if (response.getContentType() != null) {
+                exchange.getResponseHeaders().set("Content-Type", response.getContentType());
+            }
+            exchange.sendResponseHeaders(response.getStatusCode(),
+                    content.length > 0 ? content.length : -1);
+            if (content.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+            zip.write(content);
+        }
+        return out.toByteArray();
+    }
+}
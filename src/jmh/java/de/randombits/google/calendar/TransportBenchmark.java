@@ -0,0 +1,132 @@
+package de.randombits.google.calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.util.DateTime;
+import picocli.CommandLine;
+
+/**
+ * TransportBenchmark compares the HTTP transports by running a command over real HTTP
+ * connections against a LoopbackCalendarServer. The events counter reports processed events per
+ * second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+    private static final DateTime FROM = DateTime.parseRfc3339("2000-01-01T00:00:00Z");
+    private static final DateTime TO = DateTime.parseRfc3339("2010-01-01T00:00:00Z");
+    private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    @Param({"net", "apache"})
+    public String transport;
+
+    @Param({"10000"})
+    public int events;
+
+    @Param({"list", "touch"})
+    public String command;
+
+    @Param({"false"})
+    public boolean gzipRequests;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    private File credentialsFile;
+    private LoopbackCalendarServer server;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ProcessedEvents {
+        public long events;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            events = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        /* only required by the command line, the server never reads it */
+        credentialsFile = File.createTempFile("credentials", ".json");
+        credentialsFile.deleteOnExit();
+        server = new LoopbackCalendarServer();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void populate() {
+        server.setCalendar(new FakeCalendarTransport().setLatencyMillis(latencyMillis)
+                .addCalendar("primary", "Primary").addEvents("primary", events, FROM, TO));
+    }
+
+    @Benchmark
+    public int run(ProcessedEvents processed) {
+        Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+                .setAccessToken("fake");
+        PrintStream console = System.out;
+        System.setOut(DISCARD);
+        int exitCode;
+        try {
+            exitCode = new CommandLine(new GoogleCalendarTools(server.getRootUrl(), credential))
+                    .setCaseInsensitiveEnumValuesAllowed(true).execute(arguments());
+        } finally {
+            System.setOut(console);
+        }
+        if (exitCode != 0) {
+            throw new IllegalStateException(command + " failed with exit code " + exitCode);
+        }
+        processed.events += events;
+        return exitCode;
+    }
+
+    private String[] arguments() {
+        List<String> arguments = new ArrayList<>(Arrays.asList("-f", credentialsFile.getPath(),
+                "-r", "1000000", "--rate-limit-mode", "adaptive", "--max-rate-limit", "1000000",
+                "--transport", transport, "--batch-linger", "0"));
+        if (gzipRequests) {
+            arguments.add("--gzip-requests");
+        }
+        arguments.addAll(Arrays.asList(command, "-s", "2000-01-01", "-e", "2010-01-02"));
+        return arguments.toArray(new String[0]);
+    }
+}
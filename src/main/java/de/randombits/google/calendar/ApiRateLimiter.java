@@ -0,0 +1,135 @@
+package de.randombits.google.calendar;
+
+import java.util.concurrent.TimeUnit;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * ApiRateLimiter hands out permits for API calls. In adaptive mode the rate is raised additively
+ * while calls succeed and cut multiplicatively when the API reports that the quota is exceeded
+ * (AIMD), always staying between the configured bounds.
+ */
+public class ApiRateLimiter {
+
+    public enum Mode {
+        FIXED, ADAPTIVE
+    }
+
+    /* Calls per second gained for each second of calls that all succeeded. */
+    private static final double ADDITIVE_INCREASE = 1.0;
+    private static final double MULTIPLICATIVE_DECREASE = 0.5;
+    /* Errors of calls that were sent before the last decrease must not cut the rate again. */
+    private static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final RateLimiter rateLimiter;
+    private final Mode mode;
+    private final double minRate;
+    private final double maxRate;
+    private volatile Metrics metrics;
+    private double rate;
+    private long lastDecrease;
+    private volatile EventOutput output;
+
+    public ApiRateLimiter(double rate, Mode mode, double minRate, double maxRate,
+            Metrics metrics) {
+        if (minRate <= 0.0 || minRate > maxRate) {
+            throw new IllegalArgumentException(
+                    "The minimum rate must be positive and not exceed the maximum rate.");
+        }
+        this.mode = mode;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.metrics = metrics;
+        this.rate = mode == Mode.ADAPTIVE ? Math.min(Math.max(rate, minRate), maxRate) : rate;
+        this.rateLimiter = RateLimiter.create(this.rate);
+        this.lastDecrease = System.nanoTime() - DECREASE_COOLDOWN_NANOS;
+        this.metrics.recordRate(this.rate);
+    }
+
+    /**
+     * The metrics waits, exceeded quota and the rate are recorded in, replaced when the rate
+     * limiter outlives a command in serve mode.
+     */
+    public synchronized void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.recordRate(this.rate);
+    }
+
+    /**
+     * Sets where the status lines go, which in serve mode changes with every command.
+     */
+    public void setOutput(EventOutput output) {
+        this.output = output;
+    }
+
+    /**
+     * Waits until the permits are available and returns the time spent waiting in seconds.
+     */
+    public double acquire(int permits) {
+        if (permits <= 0) {
+            return 0.0;
+        }
+        double waitTime = this.rateLimiter.acquire(permits);
+        if (waitTime > 0.0) {
+            this.metrics.recordRateLimiterWait(waitTime);
+            status(String.format("* API call rate limited by waiting %s", waitTime));
+        }
+        return waitTime;
+    }
+
+    public synchronized double getRate() {
+        return this.rate;
+    }
+
+    public synchronized void onSuccess(int calls) {
+        if (this.mode != Mode.ADAPTIVE || this.rate >= this.maxRate) {
+            return;
+        }
+        this.rate = Math.min(this.maxRate, this.rate + ADDITIVE_INCREASE * calls / this.rate);
+        this.rateLimiter.setRate(this.rate);
+        this.metrics.recordRate(this.rate);
+    }
+
+    public synchronized void onRateLimitExceeded() {
+        this.metrics.recordRateLimitExceeded();
+        long now = System.nanoTime();
+        if (this.mode != Mode.ADAPTIVE || now - this.lastDecrease < DECREASE_COOLDOWN_NANOS) {
+            return;
+        }
+        this.lastDecrease = now;
+        this.rate = Math.max(this.minRate, this.rate * MULTIPLICATIVE_DECREASE);
+        this.rateLimiter.setRate(this.rate);
+        this.metrics.recordRate(this.rate);
+        status(String.format("* API quota exceeded. Lowering rate limit to %.2f calls per second",
+                this.rate));
+    }
+
+    private void status(String line) {
+        EventOutput output = this.output;
+        if (output != null) {
+            output.status(line);
+        } else {
+            System.out.println(line);
+        }
+    }
+
+    public static boolean isRateLimitExceeded(GoogleJsonError error) {
+        if (error == null) {
+            return false;
+        }
+        if (error.getCode() == 429) {
+            return true;
+        }
+        if (error.getCode() != 403 || error.getErrors() == null) {
+            return false;
+        }
+        for (ErrorInfo errorInfo : error.getErrors()) {
+            if ("rateLimitExceeded".equals(errorInfo.getReason())
+                    || "userRateLimitExceeded".equals(errorInfo.getReason())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
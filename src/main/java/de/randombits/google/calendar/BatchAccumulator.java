@@ -0,0 +1,58 @@
+package de.randombits.google.calendar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BatchAccumulator collects operations from any number of pages and hands them to the executor as
+ * full batches. A partly filled batch is sent once its oldest operation waited longer than the
+ * linger time, so slow listings with few matches still make progress. Several calendars may add
+ * operations at the same time.
+ */
+public class BatchAccumulator {
+    private final BatchExecutor batchExecutor;
+    private final int maxCalls;
+    private final long lingerMillis;
+    private List<BatchOperation> operations = new ArrayList<>();
+    private int calls;
+    private long oldest;
+
+    public BatchAccumulator(BatchExecutor batchExecutor, int maxCalls, long lingerMillis) {
+        this.batchExecutor = batchExecutor;
+        this.maxCalls = Math.max(1, Math.min(maxCalls, BatchExecutor.MAX_CALLS_PER_BATCH));
+        this.lingerMillis = lingerMillis;
+    }
+
+    public synchronized void add(BatchOperation operation) {
+        if (calls + operation.getCalls() > maxCalls) {
+            flush();
+        }
+        if (operations.isEmpty()) {
+            oldest = System.currentTimeMillis();
+        }
+        operations.add(operation);
+        calls += operation.getCalls();
+        if (calls >= maxCalls) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the pending operations if the oldest of them waited longer than the linger time.
+     */
+    public synchronized void flushIfLingering() {
+        if (!operations.isEmpty() && System.currentTimeMillis() - oldest >= lingerMillis) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        if (operations.isEmpty()) {
+            return;
+        }
+        List<BatchOperation> batch = operations;
+        operations = new ArrayList<>();
+        calls = 0;
+        batchExecutor.submit(batch);
+    }
+}
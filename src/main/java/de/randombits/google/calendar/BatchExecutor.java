@@ -0,0 +1,359 @@
+package de.randombits.google.calendar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.services.calendar.CalendarRequest;
+
+/**
+ * BatchExecutor sends batches of operations on worker threads so that several batches can be in
+ * flight while the next page of events is listed. Each batch takes its permits from the rate
+ * limiter before it is sent. Virtual threads are used when the JVM provides them.
+ * <p>
+ * Operations failing with a retryable error (exceeded quota, backend errors, 409, 412 unless
+ * the operation is conditional) are re-queued into later batches with exponential backoff.
+ * Operations failing permanently are collected for the summary instead of aborting the run.
+ */
+public class BatchExecutor implements AutoCloseable {
+    /* The Calendar API does not accept more calls in one batch. */
+    public static final int MAX_CALLS_PER_BATCH = 50;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 32000;
+
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final Supplier<BatchRequest> batchFactory;
+    private final HttpRequestInitializer partInitializer;
+    private final ApiRateLimiter rateLimiter;
+    private final Metrics metrics;
+    private final EventOutput output;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final DelayQueue<PendingOperation> retries = new DelayQueue<>();
+    private final Queue<String> permanentFailures = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger retried = new AtomicInteger();
+    private volatile Listener listener;
+
+    /**
+     * Is told about every operation that is done, called on the thread that executed its batch.
+     */
+    public interface Listener {
+        void succeeded(BatchOperation operation);
+
+        void failed(BatchOperation operation, String reason);
+    }
+
+    /**
+     * @param partInitializer applied to every call queued into a batch, it must not set handlers
+     *        retrying the call, which BatchRequest would run inside the batch
+     */
+    public BatchExecutor(int maxInFlight, Supplier<BatchRequest> batchFactory,
+            HttpRequestInitializer partInitializer, ApiRateLimiter rateLimiter,
+            Metrics metrics, EventOutput output) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one batch must be allowed in flight.");
+        }
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.batchFactory = batchFactory;
+        this.partInitializer = partInitializer;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.output = output;
+        this.workers = newWorkerPool(maxInFlight, "batch");
+    }
+
+    /**
+     * Sends the operations as one batch together with retries that are due, as long as they fit.
+     * Blocks while the maximum number of batches is in flight.
+     */
+    public void submit(List<BatchOperation> operations) {
+        List<PendingOperation> batch = new ArrayList<>();
+        for (BatchOperation operation : operations) {
+            batch.add(new PendingOperation(operation));
+        }
+        addDueRetries(batch);
+        send(batch);
+    }
+
+    /**
+     * Waits until all submitted operations are done, including their retries, and rethrows the
+     * first failure of a whole batch.
+     */
+    public void awaitCompletion() {
+        while (true) {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+            rethrowFailure();
+            if (retries.isEmpty()) {
+                return;
+            }
+            List<PendingOperation> batch = new ArrayList<>();
+            try {
+                batch.add(retries.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            addDueRetries(batch);
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends the retries that are due on their own, for callers waiting on operations that may be
+     * among them.
+     */
+    public void sendDueRetries() {
+        List<PendingOperation> batch = new ArrayList<>();
+        addDueRetries(batch);
+        send(batch);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void printSummary() {
+        if (succeeded.get() == 0 && permanentFailures.isEmpty()) {
+            return;
+        }
+        output.status(String.format("* %s operations succeeded, %s retries, %s operations failed.",
+                succeeded.get(), retried.get(), permanentFailures.size()));
+        permanentFailures.forEach((failed) -> output.status("* Failed: " + failed));
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    private void addDueRetries(List<PendingOperation> batch) {
+        int calls = 0;
+        for (PendingOperation pending : batch) {
+            calls += pending.operation.getCalls();
+        }
+        /* polled, so threads sending at the same time never take the same retry */
+        PendingOperation retry;
+        while (calls < MAX_CALLS_PER_BATCH && (retry = retries.poll()) != null) {
+            if (calls + retry.operation.getCalls() > MAX_CALLS_PER_BATCH) {
+                retries.add(retry);
+                break;
+            }
+            batch.add(retry);
+            calls += retry.operation.getCalls();
+        }
+    }
+
+    private void send(List<PendingOperation> batch) {
+        rethrowFailure();
+        if (batch.isEmpty()) {
+            return;
+        }
+        inFlight.acquireUninterruptibly();
+        try {
+            workers.execute(() -> {
+                try {
+                    execute(batch);
+                } catch (IOException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void execute(List<PendingOperation> batch) throws IOException {
+        BatchRequest batchRequest = batchFactory.get();
+        int calls = 0;
+        for (PendingOperation pending : batch) {
+            pending.retryableError = null;
+            pending.permanentError = null;
+            for (CalendarRequest<?> request : pending.operation.getRequests()) {
+                queue(request, batchRequest, pending);
+            }
+            calls += pending.operation.getCalls();
+        }
+        metrics.recordBatchSize(calls);
+        rateLimiter.acquire(calls);
+        batchRequest.execute();
+        for (PendingOperation pending : batch) {
+            complete(pending);
+        }
+    }
+
+    private <T> void queue(CalendarRequest<T> request, BatchRequest batchRequest,
+            PendingOperation pending) throws IOException {
+        HttpRequest part = request.buildHttpRequest();
+        partInitializer.initialize(part);
+        batchRequest.queue(part, request.getResponseClass(), GoogleJsonErrorContainer.class,
+                new OperationCallback<T>(pending));
+        metrics.recordBatchedCall(request.getRequestMethod() + " " + request.getUriTemplate());
+    }
+
+    private void complete(PendingOperation pending) {
+        if (pending.permanentError != null) {
+            metrics.recordBatchItemFailure(pending.permanentError.getCode());
+            fail(pending, describe(pending, pending.permanentError));
+        } else if (pending.retryableError == null) {
+            metrics.recordOperationSucceeded();
+            succeeded.incrementAndGet();
+            if (listener != null) {
+                listener.succeeded(pending.operation);
+            }
+            pending.operation.completed(true);
+        } else if (pending.attempt >= MAX_ATTEMPTS) {
+            metrics.recordBatchItemFailure(pending.retryableError.getCode());
+            fail(pending, describe(pending, pending.retryableError)
+                    + " (gave up after " + pending.attempt + " attempts)");
+        } else {
+            retried.incrementAndGet();
+            metrics.recordRetry(pending.retryableError.getCode());
+            output.status(String.format("* Re-queueing %s after %s",
+                    pending.operation.getDescription(), getReason(pending.retryableError)));
+            pending.scheduleRetry();
+            retries.add(pending);
+        }
+    }
+
+    private void fail(PendingOperation pending, String reason) {
+        permanentFailures.add(reason);
+        if (listener != null) {
+            listener.failed(pending.operation, reason);
+        }
+        pending.operation.completed(false);
+    }
+
+    /**
+     * Throws the first failure of a whole batch, if there was one. The operations of that batch
+     * are never done.
+     */
+    public void rethrowFailure() {
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static boolean isRetryable(GoogleJsonError error) {
+        int code = error.getCode();
+        return code == 409 || code == 412 || code == 429 || code >= 500
+                || ApiRateLimiter.isRateLimitExceeded(error);
+    }
+
+    private static String describe(PendingOperation pending, GoogleJsonError error) {
+        return pending.operation.getDescription() + " - " + error.getCode() + " "
+                + getReason(error);
+    }
+
+    private static String getReason(GoogleJsonError error) {
+        if (error.getErrors() != null && !error.getErrors().isEmpty()
+                && error.getErrors().get(0).getReason() != null) {
+            return error.getErrors().get(0).getReason();
+        }
+        return error.getMessage();
+    }
+
+    /**
+     * Creates an executor running on virtual threads, or on a pool of daemon threads of the given
+     * size when the JVM does not provide virtual threads. Callers bound their own concurrency.
+     */
+    static ExecutorService newWorkerPool(int threads, String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, (runnable) -> {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private class OperationCallback<T> extends JsonBatchCallback<T> {
+        private final PendingOperation pending;
+
+        OperationCallback(PendingOperation pending) {
+            this.pending = pending;
+        }
+
+        public void onSuccess(T result, HttpHeaders responseHeaders) {
+            rateLimiter.onSuccess(1);
+        }
+
+        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+            if (ApiRateLimiter.isRateLimitExceeded(e)) {
+                rateLimiter.onRateLimitExceeded();
+            }
+            if (isRetryable(e) && !(e.getCode() == 412 && pending.operation.isConditional())) {
+                pending.retryableError = e;
+            } else {
+                pending.permanentError = e;
+            }
+        }
+    }
+
+    /**
+     * An operation together with its attempts. The errors are only touched by the thread that
+     * executes the batch the operation is part of.
+     */
+    private static class PendingOperation implements Delayed {
+        private final BatchOperation operation;
+        private int attempt = 1;
+        private long dueNanos;
+        private GoogleJsonError retryableError;
+        private GoogleJsonError permanentError;
+
+        PendingOperation(BatchOperation operation) {
+            this.operation = operation;
+        }
+
+        void scheduleRetry() {
+            long delay = Math.min(MAX_RETRY_DELAY_MILLIS,
+                    INITIAL_RETRY_DELAY_MILLIS << (attempt - 1));
+            delay += ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            attempt++;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS),
+                    other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
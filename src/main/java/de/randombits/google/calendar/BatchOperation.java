@@ -0,0 +1,67 @@
+package de.randombits.google.calendar;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import com.google.api.services.calendar.CalendarRequest;
+
+/**
+ * BatchOperation is one change to one event. It consists of the API calls needed to carry out the
+ * change, which are always queued into the same batch so that the whole change can be re-queued
+ * when one of them fails.
+ */
+public class BatchOperation {
+    private final EventRecord event;
+    private final String description;
+    private final List<CalendarRequest<?>> requests;
+    private Consumer<Boolean> completion;
+
+    public BatchOperation(EventRecord event, String description,
+            CalendarRequest<?>... requests) {
+        this.event = event;
+        this.description = description;
+        this.requests = Collections.unmodifiableList(Arrays.asList(requests));
+    }
+
+    /**
+     * The event the operation changes.
+     */
+    public EventRecord getEvent() {
+        return event;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<CalendarRequest<?>> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Is told whether the operation succeeded once it is done, after all its retries.
+     */
+    public void setCompletion(Consumer<Boolean> completion) {
+        this.completion = completion;
+    }
+
+    void completed(boolean succeeded) {
+        if (completion != null) {
+            completion.accept(succeeded);
+        }
+    }
+
+    public int getCalls() {
+        return requests.size();
+    }
+
+    /**
+     * Whether the change is only made while the event still has the expected ETag. A conflict
+     * means the event changed in the meantime, so retrying does not help.
+     */
+    public boolean isConditional() {
+        return requests.stream()
+                .anyMatch((request) -> request.getRequestHeaders().getIfMatch() != null);
+    }
+}
@@ -0,0 +1,275 @@
+package de.randombits.google.calendar;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+
+/**
+ * ChangePlan holds the changes a command would make, at most one per event, so they can be
+ * reviewed and carried out later. Changes planned for the same event are merged: patches are
+ * combined into one, a delete replaces everything else and a touch is dropped when the event is
+ * changed anyway. Each change keeps the ETag the event had when it was first planned.
+ * <p>
+ * The plan file has a line per event with tab separated fields
+ * {@code calendarId id etag start summary change patch moveTo}, where change is one of touch,
+ * patch, move or delete and patch is a JSON object of the fields to set.
+ */
+public class ChangePlan {
+    private static final String HEADER = "# GoogleCalendarTools plan";
+    private static final String COLUMNS =
+            "# calendarId\tid\tetag\tstart\tsummary\tchange\tpatch\tmoveTo";
+
+    private final File file;
+    private final JsonFactory jsonFactory;
+    private final Map<String, Change> changes = new LinkedHashMap<>();
+
+    private ChangePlan(File file, JsonFactory jsonFactory) {
+        this.file = file;
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Reads the plan in the file to add more changes to it, or starts a new one when the file
+     * does not exist.
+     */
+    public static ChangePlan open(File file, JsonFactory jsonFactory) throws IOException {
+        return file.exists() ? read(file, jsonFactory) : new ChangePlan(file, jsonFactory);
+    }
+
+    public static ChangePlan read(File file, JsonFactory jsonFactory) throws IOException {
+        ChangePlan plan = new ChangePlan(file, jsonFactory);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IllegalArgumentException(file + " is not a plan.");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 8) {
+                    throw new IllegalArgumentException(
+                            "Invalid line in plan " + file + ": " + line);
+                }
+                Change change = new Change(RunJournal.unescape(fields[0]),
+                        RunJournal.unescape(fields[1]), RunJournal.unescape(fields[2]),
+                        RunJournal.unescape(fields[3]), RunJournal.unescape(fields[4]));
+                String patch = RunJournal.unescape(fields[6]);
+                if (patch != null) {
+                    change.patch.putAll(plan.parsePatch(patch));
+                }
+                change.moveTo = RunJournal.unescape(fields[7]);
+                change.touch = fields[5].equals("touch");
+                change.delete = fields[5].equals("delete");
+                plan.changes.put(key(change.calendarId, change.eventId), change);
+            }
+        }
+        return plan;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized List<Change> getChanges() {
+        return new ArrayList<>(changes.values());
+    }
+
+    public synchronized int size() {
+        return changes.size();
+    }
+
+    public synchronized void touch(String calendarId, EventRecord event) {
+        Change change = get(calendarId, event);
+        if (!change.delete && change.patch.isEmpty() && change.moveTo == null) {
+            change.touch = true;
+        }
+    }
+
+    /**
+     * Sets a field of the event, null clears it.
+     */
+    public synchronized void patch(String calendarId, EventRecord event, String field,
+            String value) {
+        Change change = get(calendarId, event);
+        if (!change.delete) {
+            change.patch.put(field, value);
+            change.touch = false;
+        }
+    }
+
+    public synchronized void move(String calendarId, EventRecord event, String targetCalendarId) {
+        Change change = get(calendarId, event);
+        if (!change.delete) {
+            change.moveTo = targetCalendarId;
+            change.touch = false;
+        }
+    }
+
+    public synchronized void delete(String calendarId, EventRecord event) {
+        Change change = get(calendarId, event);
+        change.delete = true;
+        change.touch = false;
+        change.patch.clear();
+        change.moveTo = null;
+    }
+
+    /* Written to a temporary file first, so an interrupted run keeps the earlier plan. */
+    public synchronized void write() throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+            writer.write(HEADER + "\n" + COLUMNS + "\n");
+            for (Change change : changes.values()) {
+                writer.write(String.join("\t", RunJournal.escape(change.calendarId),
+                        RunJournal.escape(change.eventId), RunJournal.escape(change.etag),
+                        RunJournal.escape(change.start), RunJournal.escape(change.summary),
+                        change.getKind(),
+                        RunJournal.escape(change.patch.isEmpty() ? null : toJson(change.patch)),
+                        RunJournal.escape(change.moveTo)));
+                writer.write('\n');
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Change get(String calendarId, EventRecord event) {
+        return changes.computeIfAbsent(key(calendarId, event.getId()),
+                (key) -> new Change(calendarId, event.getId(), event.getEtag(),
+                        event.getStart() != null ? event.getStart().toStringRfc3339() : null,
+                        event.getSummary()));
+    }
+
+    private String toJson(Map<String, String> patch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = jsonFactory.createJsonGenerator(out, StandardCharsets.UTF_8);
+        generator.writeStartObject();
+        for (Map.Entry<String, String> field : patch.entrySet()) {
+            generator.writeFieldName(field.getKey());
+            if (field.getValue() == null) {
+                generator.writeNull();
+            } else {
+                generator.writeString(field.getValue());
+            }
+        }
+        generator.writeEndObject();
+        generator.flush();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private Map<String, String> parsePatch(String json) throws IOException {
+        Map<String, String> patch = new LinkedHashMap<>();
+        JsonParser parser = jsonFactory.createJsonParser(json);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("Invalid patch in plan " + file + ": " + json);
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            patch.put(field, parser.nextToken() == JsonToken.VALUE_NULL ? null : parser.getText());
+        }
+        return patch;
+    }
+
+    private static String key(String calendarId, String eventId) {
+        return calendarId + "\t" + eventId;
+    }
+
+    /**
+     * The merged changes to one event.
+     */
+    public static class Change {
+        private final String calendarId;
+        private final String eventId;
+        private final String etag;
+        private final String start;
+        private final String summary;
+        private final Map<String, String> patch = new LinkedHashMap<>();
+        private boolean touch;
+        private boolean delete;
+        private String moveTo;
+
+        private Change(String calendarId, String eventId, String etag, String start,
+                String summary) {
+            this.calendarId = calendarId;
+            this.eventId = eventId;
+            this.etag = etag;
+            this.start = start;
+            this.summary = summary;
+        }
+
+        public String getCalendarId() {
+            return calendarId;
+        }
+
+        public String getEventId() {
+            return eventId;
+        }
+
+        /**
+         * The ETag of the event when the change was planned. The change is only made as long as
+         * the event still has it.
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getStart() {
+            return start;
+        }
+
+        /**
+         * The summary of the event when the change was planned.
+         */
+        public String getSummary() {
+            return summary;
+        }
+
+        /**
+         * The fields to set, null values clear a field.
+         */
+        public Map<String, String> getPatch() {
+            return Collections.unmodifiableMap(patch);
+        }
+
+        public boolean isTouch() {
+            return touch;
+        }
+
+        public boolean isDelete() {
+            return delete;
+        }
+
+        /**
+         * The calendar to move the event to after it was patched, or null.
+         */
+        public String getMoveTo() {
+            return moveTo;
+        }
+
+        private String getKind() {
+            return delete ? "delete" : !patch.isEmpty() ? "patch" : touch ? "touch" : "move";
+        }
+    }
+}
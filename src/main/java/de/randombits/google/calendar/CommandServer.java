@@ -0,0 +1,179 @@
+package de.randombits.google.calendar;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpTransport;
+
+/**
+ * CommandServer keeps what is expensive to set up for a command, the HTTP transport with its open
+ * connections, the authorized credential, the rate limiter and the event caches, and runs the
+ * commands sent by {@link ServeClient} with it. All commands share the rate limit.
+ * <p>
+ * The server only accepts connections from the local machine that present the key it wrote to
+ * {@value ServeClient#KEY_FILE_PATH} on start. Commands are run one after another, since their
+ * output is written to the console streams, which are redirected to the client while a command
+ * runs.
+ */
+public class CommandServer {
+    private static final long REQUEST_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final HttpTransport httpTransport;
+    private final ConnectionPool connectionPool;
+    private final Credential credential;
+    private final ApiRateLimiter rateLimiter;
+    private final Map<String, EventCache> eventCaches = new ConcurrentHashMap<>();
+    private final PrintStream console = System.out;
+    private final PrintStream errorConsole = System.err;
+    private String key;
+
+    /**
+     * @param connectionPool the pool of the transport or null when it is not an APACHE transport
+     */
+    public CommandServer(HttpTransport httpTransport, ConnectionPool connectionPool,
+            Credential credential, ApiRateLimiter rateLimiter) {
+        this.httpTransport = httpTransport;
+        this.connectionPool = connectionPool;
+        this.credential = credential;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public Credential getCredential() {
+        return credential;
+    }
+
+    public ApiRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * The cache of the calendar, which stays loaded between commands.
+     */
+    public EventCache getEventCache(String calendarId, Function<String, EventCache> factory) {
+        return eventCaches.computeIfAbsent(calendarId, factory);
+    }
+
+    /**
+     * Accepts commands on the port of the loopback interface until the JVM is stopped.
+     *
+     * @param command runs the arguments of a request in the working directory of the client and
+     *        returns the exit code
+     */
+    public void serve(int port, File keyFile, BiFunction<File, String[], Integer> command)
+            throws IOException {
+        this.key = writeKey(keyFile);
+        Runtime.getRuntime().addShutdownHook(new Thread(keyFile::delete, "serve"));
+        try (ServerSocket serverSocket =
+                new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            console.printf("* Serving commands on %s:%s.\n",
+                    serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort());
+            while (true) {
+                try (Socket socket = serverSocket.accept()) {
+                    handle(socket, command);
+                } catch (IOException e) {
+                    console.println("* Connection failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket, BiFunction<File, String[], Integer> command)
+            throws IOException {
+        socket.setSoTimeout((int) REQUEST_TIMEOUT_MILLIS);
+        File workingDirectory;
+        List<String> args = new ArrayList<>();
+        BufferedReader request = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        try {
+            String presented = request.readLine();
+            if (presented == null || !MessageDigest.isEqual(
+                    presented.getBytes(StandardCharsets.UTF_8),
+                    key.getBytes(StandardCharsets.UTF_8))) {
+                console.println("* Rejected a connection without the key.");
+                return;
+            }
+            String directory = request.readLine();
+            if (directory == null || !new File(directory).isAbsolute()) {
+                console.println("* Rejected a command without the working directory.");
+                return;
+            }
+            workingDirectory = new File(directory);
+            String line;
+            while ((line = request.readLine()) != null && !line.isEmpty()) {
+                args.add(line);
+            }
+        } catch (SocketTimeoutException e) {
+            console.println("* Rejected a connection that did not send a command in time.");
+            return;
+        }
+        socket.setSoTimeout(0);
+
+        long start = System.nanoTime();
+        OutputStream response = socket.getOutputStream();
+        PrintStream out = new PrintStream(response, true, StandardCharsets.UTF_8.name());
+        int exitCode;
+        System.setOut(out);
+        System.setErr(out);
+        try {
+            exitCode = command.apply(workingDirectory, args.toArray(new String[0]));
+        } finally {
+            System.setOut(console);
+            System.setErr(errorConsole);
+        }
+        out.flush();
+        response.write(ServeClient.END_OF_OUTPUT);
+        response.write(Integer.toString(exitCode).getBytes(StandardCharsets.UTF_8));
+        response.flush();
+        console.printf("* Ran %s with exit code %s in %sms.\n", String.join(" ", args),
+                exitCode, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /* A new random key on every start, only readable by the user running the server. */
+    private static String writeKey(File keyFile) throws IOException {
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder key = new StringBuilder();
+        for (byte b : random) {
+            key.append(String.format("%02x", b));
+        }
+        keyFile.getAbsoluteFile().getParentFile().mkdirs();
+        Files.write(keyFile.toPath(), new byte[0]);
+        try {
+            Files.setPosixFilePermissions(keyFile.toPath(),
+                    PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            keyFile.setReadable(false, false);
+            keyFile.setReadable(true, true);
+        }
+        Files.write(keyFile.toPath(), key.toString().getBytes(StandardCharsets.UTF_8));
+        return key.toString();
+    }
+}
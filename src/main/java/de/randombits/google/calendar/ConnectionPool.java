@@ -0,0 +1,143 @@
+package de.randombits.google.calendar;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProxySelector;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+
+/**
+ * ConnectionPool is an HTTP transport on Apache HttpClient with a pool of persistent connections.
+ * Unlike with HttpURLConnection, whose connections the JDK keeps alive on its own terms, the size
+ * of the pool and how long idle connections are kept open are set explicitly. The connections
+ * opened are counted, so it shows in the metrics how well they are reused.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final long EVICTION_INTERVAL_SECONDS = 5;
+
+    private final ThreadSafeClientConnManager connectionManager;
+    private final HttpTransport transport;
+    private final AtomicLong opened = new AtomicLong();
+    private final ScheduledExecutorService eviction;
+    private volatile Metrics metrics;
+
+    /**
+     * @param maxConnections connections open at the same time, all to the same host
+     * @param keepAliveMillis time an idle connection is kept open, unless the server asks for less
+     */
+    public ConnectionPool(int maxConnections, long keepAliveMillis)
+            throws GeneralSecurityException, IOException {
+        HttpParams params = new BasicHttpParams();
+        /* as the Google client does, a stale connection fails and the request is retried */
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemes.register(new Scheme("https",
+                new SSLSocketFactory(GoogleUtils.getCertificateTrustStore()), 443));
+        this.connectionManager = new ThreadSafeClientConnManager(params, schemes) {
+            @Override
+            protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemes) {
+                return new DefaultClientConnectionOperator(schemes) {
+                    @Override
+                    public void openConnection(OperatedClientConnection connection,
+                            HttpHost target, InetAddress local, HttpContext context,
+                            HttpParams params) throws IOException {
+                        super.openConnection(connection, target, local, context, params);
+                        connectionOpened();
+                    }
+                };
+            }
+        };
+
+        DefaultHttpClient client = new DefaultHttpClient(this.connectionManager, params);
+        /* failed requests are retried by RetryHttpInitializerWrapper */
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        client.setRoutePlanner(new ProxySelectorRoutePlanner(schemes, ProxySelector.getDefault()));
+        DefaultConnectionKeepAliveStrategy serverKeepAlive =
+                new DefaultConnectionKeepAliveStrategy();
+        client.setKeepAliveStrategy((response, context) -> {
+            long requested = serverKeepAlive.getKeepAliveDuration(response, context);
+            return requested > 0 ? Math.min(requested, keepAliveMillis) : keepAliveMillis;
+        });
+        this.transport = new ApacheHttpTransport(client);
+
+        this.eviction = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "connections");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.eviction.scheduleWithFixedDelay(() -> {
+            this.connectionManager.closeExpiredConnections();
+            this.connectionManager.closeIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS);
+        }, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * The metrics new connections are recorded in, replaced when the pool outlives a run.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getConnectionsOpened() {
+        return opened.get();
+    }
+
+    /**
+     * Connections in the pool, idle or in use.
+     */
+    public int getConnectionsInPool() {
+        return connectionManager.getConnectionsInPool();
+    }
+
+    @Override
+    public void close() {
+        eviction.shutdownNow();
+        connectionManager.shutdown();
+    }
+
+    private void connectionOpened() {
+        opened.incrementAndGet();
+        Metrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordConnectionOpened();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package de.randombits.google.calendar;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DuplicateFinder tells the duplicates among the pages of a listing for dedup. With the survivors
+ * OLDEST and NEWEST the date range is listed twice: the first listing is ranked to find the id of
+ * the survivor of each fingerprint, the second one is searched for the other entries. The
+ * survivor is recognized by its id, so it is kept even if it was changed in between. Entries
+ * listed only in the second listing are kept if no survivor was seen for their fingerprint.
+ * <p>
+ * A duplicate is compared with its survivor when the survivor is listed on the same or the
+ * previous page, as duplicates agreeing in their start are when listed by start time. Entries
+ * that only share the fingerprint of their survivor by chance are kept. The other duplicates are
+ * told by their fingerprint alone.
+ */
+public class DuplicateFinder {
+
+    /* Values of a fingerprint besides the id hash of its survivor. */
+    private static final long NOT_SEEN = Long.MAX_VALUE;
+    private static final long KEPT = Long.MIN_VALUE;
+
+    private final EventFingerprints fingerprints;
+    private final GoogleCalendarTools.Survivor survivor;
+    /* the update time of the survivor of each fingerprint, only while ranking */
+    private EventFingerprints updates;
+    /* the survivors listed on the previous page */
+    private Map<Long, EventRecord> kept = new HashMap<>();
+    private final List<EventRecord> collisions = new ArrayList<>();
+    private int unverified;
+
+    public DuplicateFinder(EventFingerprints fingerprints, GoogleCalendarTools.Survivor survivor) {
+        this.fingerprints = fingerprints;
+        this.survivor = survivor;
+        if (survivor != GoogleCalendarTools.Survivor.FIRST) {
+            this.updates = new EventFingerprints(fingerprints.getKeys());
+        }
+    }
+
+    /**
+     * Whether the first listing is ranked before duplicates are searched.
+     */
+    public boolean isRanking() {
+        return updates != null;
+    }
+
+    /**
+     * Ranks the events of a page of the first listing.
+     */
+    public void rank(List<EventRecord> events) {
+        for (EventRecord event : events) {
+            if (!fingerprints.isComparable(event)) {
+                continue;
+            }
+            long fingerprint = fingerprints.fingerprint(event);
+            long updated = event.getUpdated() != null ? event.getUpdated().getValue() : 0;
+            long best = updates.get(fingerprint, NOT_SEEN);
+            if (best == NOT_SEEN || (survivor == GoogleCalendarTools.Survivor.OLDEST
+                    ? updated < best : updated > best)) {
+                updates.put(fingerprint, updated);
+                fingerprints.put(fingerprint, EventFingerprints.hash(event.getId()));
+            }
+        }
+    }
+
+    /**
+     * The events of a page of the second listing that are not the survivor of their fingerprint.
+     */
+    public List<EventRecord> find(List<EventRecord> events) {
+        /* the ranking is done once the second listing starts */
+        updates = null;
+        Map<Long, EventRecord> keptOnPage = new HashMap<>();
+        /* the survivors first, so duplicates listed before them on the page are compared too */
+        for (EventRecord event : events) {
+            if (fingerprints.isComparable(event)) {
+                long fingerprint = fingerprints.fingerprint(event);
+                long value = fingerprints.get(fingerprint, NOT_SEEN);
+                if (value == NOT_SEEN || value == EventFingerprints.hash(event.getId())) {
+                    fingerprints.put(fingerprint, KEPT);
+                    keptOnPage.put(fingerprint, event);
+                }
+            }
+        }
+        List<EventRecord> duplicates = new ArrayList<>();
+        for (EventRecord event : events) {
+            if (!fingerprints.isComparable(event)) {
+                continue;
+            }
+            long fingerprint = fingerprints.fingerprint(event);
+            EventRecord survivorEvent = keptOnPage.containsKey(fingerprint)
+                    ? keptOnPage.get(fingerprint) : kept.get(fingerprint);
+            if (survivorEvent == event) {
+                continue;
+            } else if (survivorEvent == null) {
+                unverified++;
+                duplicates.add(event);
+            } else if (fingerprints.matches(event, survivorEvent)) {
+                duplicates.add(event);
+            } else {
+                collisions.add(event);
+            }
+        }
+        kept = keptOnPage;
+        return duplicates;
+    }
+
+    /**
+     * The entries kept because they only share the fingerprint of their survivor, since the
+     * last call.
+     */
+    public List<EventRecord> takeCollisions() {
+        List<EventRecord> taken = new ArrayList<>(collisions);
+        collisions.clear();
+        return taken;
+    }
+
+    /**
+     * The number of duplicates told by their fingerprint alone.
+     */
+    public int getUnverified() {
+        return unverified;
+    }
+
+    /**
+     * The chance that two of the entries share a fingerprint although they are different, as the
+     * n in one in n.
+     */
+    public double getCollisionOdds() {
+        double size = Math.max(1, fingerprints.size());
+        return Math.pow(2, 65) / (size * size);
+    }
+}
@@ -0,0 +1,345 @@
+package de.randombits.google.calendar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+
+/**
+ * EventCache keeps the events of one calendar in a local file. The file is filled once and then
+ * kept up to date with the sync token of the Calendar API, so only changed events are fetched.
+ * <p>
+ * The file holds a header with the sync token, the records sorted by start time and an index
+ * with the position of every {@value #INDEX_INTERVAL}th record, which lets range queries start
+ * close to the first matching record instead of scanning the whole file.
+ * <p>
+ * Recurring series are synced unexpanded, since an endless series would expand into endless
+ * instances. The instances of a new or changed series are listed up to a horizon about two years
+ * ahead, which moves with a full sync once half of it has passed. Ranges ending after the horizon
+ * are not covered by the cache.
+ */
+public class EventCache {
+    private static final int MAGIC = 0x47435443;
+    private static final int VERSION = 5;
+    private static final int INDEX_INTERVAL = 256;
+    private static final int SYNC_PAGE_SIZE = 2500;
+    private static final long SERIES_HORIZON_MILLIS = TimeUnit.DAYS.toMillis(2 * 365);
+
+    private final File file;
+    private final String calendarId;
+    private final EventListParser parser;
+    private String syncToken;
+    private long maxDurationMillis;
+    /* Instances of series are cached until here. */
+    private long expandedUntil;
+    private int size;
+    private long[] indexStarts = new long[0];
+    private long[] indexPositions = new long[0];
+
+    public EventCache(File directory, String calendarId, EventListParser parser) {
+        this.calendarId = calendarId;
+        this.parser = parser;
+        this.file = new File(directory, calendarId.replaceAll("[^A-Za-z0-9._@-]", "_") + ".events");
+    }
+
+    /**
+     * Fetches the events changed since the last sync and merges them into the cache file. Falls
+     * back to reading the whole calendar when there is no cache yet or the sync token expired.
+     * The file is only loaded by the first sync, later ones continue from the state in memory.
+     */
+    public void sync(Calendar service, ApiRateLimiter rateLimiter, EventOutput output)
+            throws IOException {
+        if (this.syncToken == null && file.exists()) {
+            load(output);
+        }
+        Map<String, EventRecord> changed = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        Set<String> series = new HashSet<>();
+        long now = System.currentTimeMillis();
+        boolean full = this.syncToken == null
+                || this.expandedUntil < now + SERIES_HORIZON_MILLIS / 2;
+        String nextSyncToken;
+        try {
+            nextSyncToken = fetchChanges(service, rateLimiter, full ? null : this.syncToken,
+                    changed, removed, series);
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() != 410) {
+                throw e;
+            }
+            output.status("* Sync token of the event cache expired. Reading all events.");
+            full = true;
+            changed.clear();
+            removed.clear();
+            series.clear();
+            nextSyncToken = fetchChanges(service, rateLimiter, null, changed, removed, series);
+        }
+        if (!full && changed.isEmpty() && removed.isEmpty() && series.isEmpty()) {
+            output.status(String.format("* Event cache is up to date with %s events.",
+                    this.size));
+            return;
+        }
+        long horizon = full ? now + SERIES_HORIZON_MILLIS : this.expandedUntil;
+        Map<String, EventRecord> records = full ? new HashMap<>() : readAll();
+        /* a deleted series is only listed by its ID, without its instances */
+        records.values().removeIf((record) -> record.getRecurringEventId() != null
+                && (series.contains(record.getRecurringEventId())
+                        || removed.contains(record.getRecurringEventId())));
+        records.keySet().removeAll(removed);
+        for (String seriesId : series) {
+            fetchInstances(service, rateLimiter, seriesId, horizon, records);
+        }
+        records.putAll(changed);
+        write(new ArrayList<>(records.values()), nextSyncToken, horizon);
+        output.status(String.format("* Event cache updated with %s changes. %s events cached.",
+                changed.size() + removed.size(), this.size));
+    }
+
+    /**
+     * Whether the instances of all series up to the time are cached.
+     */
+    public boolean covers(DateTime timeMax) {
+        return timeMax.getValue() <= this.expandedUntil;
+    }
+
+    /**
+     * Reads the next records overlapping the range and matching the keyword, starting at the
+     * page token of the previous page or at the start of the range.
+     */
+    public EventPage readPage(String pageToken, DateTime timeMin, DateTime timeMax, String keyword,
+            int maxResults) throws IOException {
+        List<EventRecord> records = new ArrayList<>();
+        int ordinal = pageToken != null ? Integer.parseInt(pageToken)
+                : findFirstCandidate(timeMin.getValue() - this.maxDurationMillis);
+        if (ordinal >= this.size) {
+            return new EventPage(records, null, null);
+        }
+        String[] terms = keyword != null && !keyword.trim().isEmpty()
+                ? keyword.toLowerCase(Locale.ROOT).trim().split("\\s+")
+                : new String[0];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            int indexEntry = ordinal / INDEX_INTERVAL;
+            in.seek(this.indexPositions[indexEntry]);
+            DataInputStream data = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(in.getChannel()), 64 * 1024));
+            for (int skip = indexEntry * INDEX_INTERVAL; skip < ordinal; skip++) {
+                EventRecord.read(data);
+            }
+            while (ordinal < this.size && records.size() < maxResults) {
+                EventRecord record = EventRecord.read(data);
+                ordinal++;
+                if (record.getStartMillis() >= timeMax.getValue()) {
+                    return new EventPage(records, null, null);
+                }
+                if (record.getEndMillis() > timeMin.getValue() && matches(record, terms)) {
+                    records.add(record);
+                }
+            }
+        }
+        return new EventPage(records, ordinal < this.size ? Integer.toString(ordinal) : null,
+                null);
+    }
+
+    /* Changed series are collected apart, the other events are the instances to cache. */
+    private String fetchChanges(Calendar service, ApiRateLimiter rateLimiter, String token,
+            Map<String, EventRecord> changed, Set<String> removed, Set<String> series)
+            throws IOException {
+        String pageToken = null;
+        EventPage page;
+        do {
+            Calendar.Events.List request = service.events().list(this.calendarId)
+                    .setMaxResults(SYNC_PAGE_SIZE).setSingleEvents(false).setSyncToken(token)
+                    .setPageToken(pageToken);
+            rateLimiter.acquire(1);
+            page = parser.execute(request, EventRecord.ALL_FIELDS + ",recurrence");
+            for (EventRecord record : page.getRecords()) {
+                if (record.getRecurrence() != null && !record.isCancelled()) {
+                    series.add(record.getId());
+                } else if (record.isCancelled()) {
+                    changed.remove(record.getId());
+                    removed.add(record.getId());
+                } else {
+                    removed.remove(record.getId());
+                    changed.put(record.getId(), record);
+                }
+            }
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return page.getNextSyncToken();
+    }
+
+    private void fetchInstances(Calendar service, ApiRateLimiter rateLimiter, String seriesId,
+            long horizon, Map<String, EventRecord> records) throws IOException {
+        String pageToken = null;
+        do {
+            Calendar.Events.Instances request = service.events()
+                    .instances(this.calendarId, seriesId).setMaxResults(SYNC_PAGE_SIZE)
+                    .setTimeMax(new DateTime(horizon)).setPageToken(pageToken);
+            rateLimiter.acquire(1);
+            EventPage page;
+            try {
+                page = parser.execute(request, EventRecord.ALL_FIELDS);
+            } catch (GoogleJsonResponseException e) {
+                if (e.getStatusCode() == 404 || e.getStatusCode() == 410) {
+                    /* deleted since it was listed, the next sync removes it */
+                    return;
+                }
+                throw e;
+            }
+            for (EventRecord record : page.getRecords()) {
+                if (!record.isCancelled()) {
+                    records.put(record.getId(), record);
+                }
+            }
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+    }
+
+    private int findFirstCandidate(long startMillis) {
+        int low = 0;
+        int high = this.indexStarts.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (this.indexStarts[middle] <= startMillis) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found * INDEX_INTERVAL;
+    }
+
+    private static boolean matches(EventRecord record, String[] terms) {
+        if (terms.length == 0) {
+            return true;
+        }
+        String text = (record.getSummary() + " " + record.getDescription() + " "
+                + record.getLocation()).toLowerCase(Locale.ROOT);
+        for (String term : terms) {
+            if (!text.contains(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void load(EventOutput output) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                output.status(String.format("* Ignoring event cache %s in unknown format.",
+                        file));
+                return;
+            }
+            String token = in.readUTF();
+            long maxDuration = in.readLong();
+            long horizon = in.readLong();
+            int count = in.readInt();
+            in.seek(in.length() - Long.BYTES);
+            in.seek(in.readLong());
+            int entries = in.readInt();
+            long[] starts = new long[entries];
+            long[] positions = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                starts[i] = in.readLong();
+                positions[i] = in.readLong();
+            }
+            this.syncToken = token.isEmpty() ? null : token;
+            this.maxDurationMillis = maxDuration;
+            this.expandedUntil = horizon;
+            this.size = count;
+            this.indexStarts = starts;
+            this.indexPositions = positions;
+        }
+    }
+
+    private Map<String, EventRecord> readAll() throws IOException {
+        Map<String, EventRecord> records = new HashMap<>();
+        if (this.size == 0) {
+            return records;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(this.indexPositions[0]);
+            DataInputStream data = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(in.getChannel()), 64 * 1024));
+            for (int i = 0; i < this.size; i++) {
+                EventRecord record = EventRecord.read(data);
+                records.put(record.getId(), record);
+            }
+        }
+        return records;
+    }
+
+    private void write(List<EventRecord> records, String nextSyncToken, long horizon)
+            throws IOException {
+        records.sort(Comparator.comparingLong(EventRecord::getStartMillis));
+        long maxDuration = 0;
+        for (EventRecord record : records) {
+            maxDuration = Math.max(maxDuration, record.getEndMillis() - record.getStartMillis());
+        }
+        int entries = (records.size() + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        long[] starts = new long[entries];
+        long[] positions = new long[entries];
+
+        file.getParentFile().mkdirs();
+        File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(nextSyncToken != null ? nextSyncToken : "");
+            out.writeLong(maxDuration);
+            out.writeLong(horizon);
+            out.writeInt(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                if (i % INDEX_INTERVAL == 0) {
+                    starts[i / INDEX_INTERVAL] = records.get(i).getStartMillis();
+                    positions[i / INDEX_INTERVAL] = position(out);
+                }
+                records.get(i).write(out);
+            }
+            long indexPosition = position(out);
+            out.writeInt(entries);
+            for (int i = 0; i < entries; i++) {
+                out.writeLong(starts[i]);
+                out.writeLong(positions[i]);
+            }
+            out.writeLong(indexPosition);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        this.syncToken = nextSyncToken;
+        this.maxDurationMillis = maxDuration;
+        this.expandedUntil = horizon;
+        this.size = records.size();
+        this.indexStarts = starts;
+        this.indexPositions = positions;
+    }
+
+    private static long position(DataOutputStream out) throws IOException {
+        if (out.size() == Integer.MAX_VALUE) {
+            throw new IOException("Event cache exceeds the maximum size of 2 GB.");
+        }
+        return out.size();
+    }
+}
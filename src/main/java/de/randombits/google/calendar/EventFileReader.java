@@ -0,0 +1,418 @@
+package de.randombits.google.calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import com.google.api.client.util.DateTime;
+
+/**
+ * EventFileReader reads the calendar entries of an NDJSON or ICS file one at a time, as written by
+ * {@link EventFileWriter} or, for ICS, by other calendar applications. The file is read through a
+ * FileChannel in chunks of a fixed size, so only the current chunk and entry are held in memory,
+ * no matter how large the file is.
+ * <p>
+ * Of an ICS file only the VEVENT and VTIMEZONE components are read. An entry with a
+ * RECURRENCE-ID is returned as an instance, with the UID as its recurringEventId. A TZID is either
+ * an IANA time zone, a Windows time zone as Outlook writes them or defined by a VTIMEZONE naming
+ * its IANA zone in X-LIC-LOCATION or with a single offset. Other time zones are rejected, times
+ * are never guessed.
+ */
+public class EventFileReader implements AutoCloseable {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final DateTimeFormatter ICS_DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter ICS_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    /* The Windows time zones Outlook and Exchange name in TZID, with their IANA zone. */
+    private static final Map<String, String> WINDOWS_TIME_ZONES = new HashMap<>();
+
+    static {
+        String[] zones = {
+            "Dateline Standard Time", "Etc/GMT+12",
+            "Hawaiian Standard Time", "Pacific/Honolulu",
+            "Alaskan Standard Time", "America/Anchorage",
+            "Pacific Standard Time", "America/Los_Angeles",
+            "US Mountain Standard Time", "America/Phoenix",
+            "Mountain Standard Time", "America/Denver",
+            "Central Standard Time", "America/Chicago",
+            "Central Standard Time (Mexico)", "America/Mexico_City",
+            "Canada Central Standard Time", "America/Regina",
+            "SA Pacific Standard Time", "America/Bogota",
+            "Eastern Standard Time", "America/New_York",
+            "Atlantic Standard Time", "America/Halifax",
+            "Pacific SA Standard Time", "America/Santiago",
+            "E. South America Standard Time", "America/Sao_Paulo",
+            "Argentina Standard Time", "America/Buenos_Aires",
+            "UTC", "Etc/UTC",
+            "GMT Standard Time", "Europe/London",
+            "Greenwich Standard Time", "Atlantic/Reykjavik",
+            "W. Europe Standard Time", "Europe/Berlin",
+            "Central Europe Standard Time", "Europe/Budapest",
+            "Central European Standard Time", "Europe/Warsaw",
+            "Romance Standard Time", "Europe/Paris",
+            "GTB Standard Time", "Europe/Bucharest",
+            "FLE Standard Time", "Europe/Kiev",
+            "E. Europe Standard Time", "Europe/Chisinau",
+            "Turkey Standard Time", "Europe/Istanbul",
+            "Israel Standard Time", "Asia/Jerusalem",
+            "South Africa Standard Time", "Africa/Johannesburg",
+            "Russian Standard Time", "Europe/Moscow",
+            "Arabian Standard Time", "Asia/Dubai",
+            "India Standard Time", "Asia/Calcutta",
+            "China Standard Time", "Asia/Shanghai",
+            "Singapore Standard Time", "Asia/Singapore",
+            "Tokyo Standard Time", "Asia/Tokyo",
+            "Korea Standard Time", "Asia/Seoul",
+            "W. Australia Standard Time", "Australia/Perth",
+            "E. Australia Standard Time", "Australia/Brisbane",
+            "AUS Eastern Standard Time", "Australia/Sydney",
+            "New Zealand Standard Time", "Pacific/Auckland",
+        };
+        for (int i = 0; i < zones.length; i += 2) {
+            WINDOWS_TIME_ZONES.put(zones[i], zones[i + 1]);
+        }
+    }
+
+    private final EventFileWriter.Format format;
+    private final EventListParser parser;
+    private final FileChannel channel;
+    private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    private byte[] line = new byte[8192];
+    private int lineLength;
+    private boolean endOfFile;
+    /* the line read ahead to find out whether the current one is folded */
+    private String nextLine;
+    private long lineNumber;
+    /* the line the current content line starts on, before the line read ahead */
+    private long contentLineNumber;
+    /* the time zones defined by the VTIMEZONE components read so far */
+    private final Map<String, ZoneId> timeZones = new HashMap<>();
+
+    public EventFileReader(File file, EventFileWriter.Format format, EventListParser parser)
+            throws IOException {
+        this.format = format;
+        this.parser = parser;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.chunk.flip();
+    }
+
+    /**
+     * The next entry of the file or null at its end.
+     *
+     * @throws IOException also when the file is not in the format, naming the line
+     */
+    public EventRecord next() throws IOException {
+        return format == EventFileWriter.Format.NDJSON ? nextJson() : nextVEvent();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private EventRecord nextJson() throws IOException {
+        String json;
+        while ((json = readLine()) != null) {
+            if (!json.trim().isEmpty()) {
+                try {
+                    return parser.parseEvent(json);
+                } catch (IOException | IllegalArgumentException e) {
+                    throw new IOException("Line " + lineNumber + " is not an event: "
+                            + e.getMessage(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private EventRecord nextVEvent() throws IOException {
+        String contentLine;
+        while ((contentLine = readContentLine()) != null) {
+            boolean timeZone = contentLine.equalsIgnoreCase("BEGIN:VTIMEZONE");
+            if (timeZone || contentLine.equalsIgnoreCase("BEGIN:VEVENT")) {
+                try {
+                    if (!timeZone) {
+                        return parseVEvent();
+                    }
+                    parseVTimeZone();
+                } catch (DateTimeException | IllegalArgumentException e) {
+                    throw new IOException("Line " + contentLineNumber
+                            + " is not a valid iCalendar entry: " + e.getMessage(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private EventRecord parseVEvent() throws IOException {
+        EventRecord event = new EventRecord();
+        String recurrenceId = null;
+        List<String> recurrence = new ArrayList<>();
+        /* alarms and other components nested in the event are skipped */
+        int nested = 0;
+        String contentLine;
+        while ((contentLine = readContentLine()) != null) {
+            int colon = findValueStart(contentLine);
+            if (colon < 0) {
+                continue;
+            }
+            String[] nameAndParameters = contentLine.substring(0, colon).split(";");
+            String name = nameAndParameters[0].toUpperCase(Locale.ROOT);
+            String value = contentLine.substring(colon + 1);
+            if (name.equals("BEGIN")) {
+                nested++;
+                continue;
+            } else if (name.equals("END")) {
+                if (nested-- == 0) {
+                    break;
+                }
+                continue;
+            } else if (nested > 0) {
+                continue;
+            }
+            Map<String, String> parameters = parseParameters(nameAndParameters);
+            switch (name) {
+                case "UID":
+                    event.setICalUID(unescape(value));
+                    break;
+                case "DTSTART":
+                    event.setStart(parseTime(value, parameters));
+                    event.setTimeZone(getZoneId(parameters.get("TZID")));
+                    break;
+                case "DTEND":
+                    event.setEnd(parseTime(value, parameters));
+                    break;
+                case "RECURRENCE-ID":
+                    recurrenceId = value;
+                    event.setOriginalStart(parseTime(value, parameters));
+                    break;
+                case "SUMMARY":
+                    event.setSummary(unescape(value));
+                    break;
+                case "DESCRIPTION":
+                    event.setDescription(unescape(value));
+                    break;
+                case "LOCATION":
+                    event.setLocation(unescape(value));
+                    break;
+                case "ORGANIZER":
+                    event.setOrganizer(value.regionMatches(true, 0, "mailto:", 0, 7)
+                            ? value.substring(7) : value);
+                    break;
+                case "STATUS":
+                    event.setStatus(value.toLowerCase(Locale.ROOT));
+                    break;
+                case "LAST-MODIFIED":
+                    event.setUpdated(parseTime(value, parameters));
+                    break;
+                case "X-GOOGLE-COLOR-ID":
+                    event.setColorId(value);
+                    break;
+                case "RRULE":
+                case "EXRULE":
+                case "RDATE":
+                case "EXDATE":
+                    recurrence.add(contentLine);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (recurrenceId != null) {
+            event.setRecurringEventId(event.getICalUID());
+            event.setId(event.getICalUID() + "_" + recurrenceId);
+        } else {
+            event.setId(event.getICalUID());
+        }
+        return event.setRecurrence(recurrence.isEmpty() ? null : recurrence);
+    }
+
+    /* Of a time zone the IANA zone it stands for or its offset if it has only one. */
+    private void parseVTimeZone() throws IOException {
+        String tzid = null;
+        String location = null;
+        Set<String> offsets = new HashSet<>();
+        String contentLine;
+        while ((contentLine = readContentLine()) != null
+                && !contentLine.equalsIgnoreCase("END:VTIMEZONE")) {
+            int colon = findValueStart(contentLine);
+            if (colon < 0) {
+                continue;
+            }
+            String name = contentLine.substring(0, colon).split(";")[0].toUpperCase(Locale.ROOT);
+            String value = contentLine.substring(colon + 1);
+            if (name.equals("TZID")) {
+                tzid = value;
+            } else if (name.equals("X-LIC-LOCATION")) {
+                location = value;
+            } else if (name.equals("TZOFFSETTO")) {
+                offsets.add(value);
+            }
+        }
+        if (tzid == null) {
+            return;
+        } else if (location != null && ZoneId.getAvailableZoneIds().contains(location)) {
+            timeZones.put(tzid, ZoneId.of(location));
+        } else if (offsets.size() == 1) {
+            timeZones.put(tzid, ZoneOffset.of(offsets.iterator().next()));
+        }
+    }
+
+    /* The colon after name and parameters, parameter values may contain quoted colons. */
+    private static int findValueStart(String contentLine) {
+        boolean quoted = false;
+        for (int i = 0; i < contentLine.length(); i++) {
+            char c = contentLine.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ':' && !quoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, String> parseParameters(String[] nameAndParameters) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : Arrays.asList(nameAndParameters)
+                .subList(1, nameAndParameters.length)) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(parameter.substring(0, equals).toUpperCase(Locale.ROOT),
+                        parameter.substring(equals + 1).replace("\"", ""));
+            }
+        }
+        return parameters;
+    }
+
+    /* UTC with Z, local time of TZID or, floating, of the default time zone. */
+    private DateTime parseTime(String value, Map<String, String> parameters) {
+        if ("DATE".equalsIgnoreCase(parameters.get("VALUE")) || value.length() == 8) {
+            LocalDate date = LocalDate.parse(value, ICS_DATE);
+            return new DateTime(true, date.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli(),
+                    0);
+        }
+        ZonedDateTime time;
+        if (value.endsWith("Z")) {
+            time = LocalDateTime.parse(value.substring(0, value.length() - 1), ICS_TIME)
+                    .atZone(ZoneOffset.UTC);
+        } else {
+            String zone = parameters.get("TZID");
+            time = LocalDateTime.parse(value, ICS_TIME).atZone(zone != null
+                    ? getZone(zone) : ZoneId.systemDefault());
+        }
+        return new DateTime(false, time.toInstant().toEpochMilli(),
+                time.getOffset().getTotalSeconds() / 60);
+    }
+
+    /* Only IANA time zones are passed on to the API, offsets only count for the times. */
+    private String getZoneId(String timeZone) {
+        if (timeZone == null) {
+            return null;
+        }
+        ZoneId zone = getZone(timeZone);
+        return zone instanceof ZoneOffset ? null : zone.getId();
+    }
+
+    private ZoneId getZone(String timeZone) {
+        ZoneId zone = timeZones.get(timeZone);
+        if (zone != null) {
+            return zone;
+        } else if (WINDOWS_TIME_ZONES.containsKey(timeZone)) {
+            return ZoneId.of(WINDOWS_TIME_ZONES.get(timeZone));
+        }
+        try {
+            return ZoneId.of(timeZone);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Unknown time zone " + timeZone, e);
+        }
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder unescaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char escaped = text.charAt(++i);
+                unescaped.append(escaped == 'n' || escaped == 'N' ? '\n' : escaped);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /* A line of the file with the folded lines following it appended. */
+    private String readContentLine() throws IOException {
+        String contentLine = nextLine != null ? nextLine : readLine();
+        nextLine = null;
+        contentLineNumber = lineNumber;
+        if (contentLine == null) {
+            return null;
+        }
+        StringBuilder unfolded = null;
+        String continued;
+        while ((continued = readLine()) != null) {
+            if (continued.isEmpty() || (continued.charAt(0) != ' '
+                    && continued.charAt(0) != '\t')) {
+                nextLine = continued;
+                break;
+            }
+            if (unfolded == null) {
+                unfolded = new StringBuilder(contentLine);
+            }
+            unfolded.append(continued, 1, continued.length());
+        }
+        return unfolded != null ? unfolded.toString() : contentLine;
+    }
+
+    /* Lines are split at the byte \n, which is never part of a multi-byte UTF-8 character. */
+    private String readLine() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (!chunk.hasRemaining()) {
+                chunk.clear();
+                if (endOfFile || channel.read(chunk) < 0) {
+                    endOfFile = true;
+                    chunk.flip();
+                    if (lineLength == 0) {
+                        return null;
+                    }
+                    break;
+                }
+                chunk.flip();
+            }
+            byte b = chunk.get();
+            if (b == '\n') {
+                break;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+        lineNumber++;
+        int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,241 @@
+package de.randombits.google.calendar;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.model.Event;
+
+/**
+ * EventFileWriter writes calendar entries to a file as they are listed, one at a time through a
+ * large buffer, so an export takes the same memory for a hundred entries as for a million.
+ * <p>
+ * NDJSON holds an event per line in the JSON representation of the Calendar API, with all its
+ * properties when it was listed in full. ICS is an iCalendar file with a VEVENT per entry, which
+ * other calendar applications can read as well.
+ */
+public class EventFileWriter implements AutoCloseable {
+
+    public enum Format {
+        NDJSON, ICS;
+
+        /**
+         * The format given or, when null, the one the file name ends with. NDJSON otherwise.
+         */
+        public static Format of(File file, Format format) {
+            if (format != null) {
+                return format;
+            }
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            return name.endsWith(".ics") || name.endsWith(".ical") ? ICS : NDJSON;
+        }
+    }
+
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    /* iCalendar lines are folded after 75 octets. */
+    private static final int MAX_LINE_OCTETS = 75;
+    /* The instance IDs of Google end with the original start of the instance. */
+    private static final DateTimeFormatter ICS_LOCAL_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final Pattern INSTANCE_START = Pattern.compile("_(\\d{8}(T\\d{6}Z)?)$");
+
+    private final Format format;
+    private final JsonFactory jsonFactory;
+    private final Writer out;
+    private final SimpleDateFormat utcFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+    private long written;
+
+    public EventFileWriter(File file, Format format, JsonFactory jsonFactory) throws IOException {
+        this.format = format;
+        this.jsonFactory = jsonFactory;
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+        this.utcFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        if (format == Format.ICS) {
+            line("BEGIN:VCALENDAR");
+            line("VERSION:2.0");
+            line("PRODID:-//randombits.de//Google Calendar Tools//EN");
+        }
+    }
+
+    /**
+     * Writes the event. Several calendars may be exported into the same file at the same time.
+     */
+    public synchronized void write(EventRecord event) throws IOException {
+        if (format == Format.NDJSON) {
+            /* an event is written only once, its full event is not needed any more */
+            Event json = event.getEvent() != null ? event.getEvent() : event.toEvent();
+            out.write(jsonFactory.toString(json.setEtag(null)));
+            out.write('\n');
+        } else {
+            writeVEvent(event);
+        }
+        written++;
+    }
+
+    /**
+     * Writes the series with an EXDATE for each of its cancelled instances, so they stay cancelled
+     * when the series is imported again. The recurrence of the series is changed accordingly.
+     */
+    public synchronized void writeSeries(EventRecord series, List<EventRecord> cancelled)
+            throws IOException {
+        List<String> recurrence = new ArrayList<>(series.getRecurrence());
+        for (EventRecord instance : cancelled) {
+            String originalStart = formatOriginalStart(instance, series.getTimeZone());
+            if (originalStart != null) {
+                recurrence.add("EXDATE" + originalStart);
+            }
+        }
+        series.setRecurrence(recurrence);
+        if (series.getEvent() != null) {
+            series.getEvent().setRecurrence(recurrence);
+        }
+        write(series);
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (format == Format.ICS) {
+                line("END:VCALENDAR");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeVEvent(EventRecord event) throws IOException {
+        line("BEGIN:VEVENT");
+        line("UID:" + escape(event.getICalUID() != null ? event.getICalUID() : event.getId()));
+        DateTime updated = event.getUpdated();
+        line("DTSTAMP:" + utcFormat.format(new Date(
+                updated != null ? updated.getValue() : System.currentTimeMillis())));
+        if (event.getStart() != null) {
+            line("DTSTART" + formatTime(event.getStart(), event.getTimeZone()));
+        }
+        if (event.getEnd() != null) {
+            line("DTEND" + formatTime(event.getEnd(), event.getTimeZone()));
+        }
+        String originalStart = event.getRecurringEventId() != null
+                ? formatOriginalStart(event, event.getTimeZone()) : null;
+        if (originalStart != null) {
+            line("RECURRENCE-ID" + originalStart);
+        }
+        if (event.getSummary() != null) {
+            line("SUMMARY:" + escape(event.getSummary()));
+        }
+        if (event.getDescription() != null) {
+            line("DESCRIPTION:" + escape(event.getDescription()));
+        }
+        if (event.getLocation() != null) {
+            line("LOCATION:" + escape(event.getLocation()));
+        }
+        if (event.getOrganizer() != null) {
+            line("ORGANIZER:mailto:" + event.getOrganizer());
+        }
+        if (event.getStatus() != null) {
+            line("STATUS:" + event.getStatus().toUpperCase(Locale.ROOT));
+        }
+        if (updated != null) {
+            line("LAST-MODIFIED:" + utcFormat.format(new Date(updated.getValue())));
+        }
+        if (event.getColorId() != null) {
+            line("X-GOOGLE-COLOR-ID:" + event.getColorId());
+        }
+        if (event.getRecurrence() != null) {
+            for (String rule : event.getRecurrence()) {
+                line(rule);
+            }
+        }
+        line("END:VEVENT");
+    }
+
+    /*
+     * The original start of an instance, else taken from the ID if possible. The start is the
+     * last resort, an exception may have been moved.
+     */
+    private String formatOriginalStart(EventRecord instance, String timeZone) {
+        if (instance.getOriginalStart() != null) {
+            return formatTime(instance.getOriginalStart(), timeZone);
+        }
+        Matcher instanceStart = INSTANCE_START.matcher(String.valueOf(instance.getId()));
+        if (instanceStart.find()) {
+            return instanceStart.group(2) != null ? ":" + instanceStart.group(1)
+                    : ";VALUE=DATE:" + instanceStart.group(1);
+        }
+        return instance.getStart() != null ? formatTime(instance.getStart(), null) : null;
+    }
+
+    /* In the time zone of the event if known, a series is expanded in it. */
+    private String formatTime(DateTime time, String timeZone) {
+        if (time.isDateOnly()) {
+            return ";VALUE=DATE:" + dateFormat.format(new Date(time.getValue()));
+        } else if (timeZone != null) {
+            return ";TZID=" + timeZone + ":" + ICS_LOCAL_TIME.format(
+                    Instant.ofEpochMilli(time.getValue()).atZone(ZoneId.of(timeZone)));
+        }
+        return ":" + utcFormat.format(new Date(time.getValue()));
+    }
+
+    /* Folds the line into lines of at most 75 octets, continued with a leading space. */
+    private void line(String line) throws IOException {
+        int octets = 0;
+        for (int i = 0; i < line.length(); ) {
+            int codePoint = line.codePointAt(i);
+            int length = codePoint < 0x80 ? 1
+                    : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (octets + length > MAX_LINE_OCTETS) {
+                out.write("\r\n ");
+                octets = 1;
+            }
+            out.write(line, i, Character.charCount(codePoint));
+            octets += length;
+            i += Character.charCount(codePoint);
+        }
+        out.write("\r\n");
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                case ';':
+                case ',':
+                    escaped.append('\\').append(c);
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,844 @@
+package de.randombits.google.calendar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+
+/**
+ * EventFilter is a filter expression compiled into a single predicate over EventRecords. An
+ * expression combines clauses like {@code summary ~ "^Standup"} with and, or, not and
+ * parentheses:
+ * <ul>
+ * <li>summary, description, location, organizer, attendee, color, type and property.NAME with
+ * = and !=, contains or ~ (a regular expression found anywhere). Case is ignored but for the
+ * equality of color, type and property.NAME, which the API compares exactly. attendee matches
+ * if any attendee does.</li>
+ * <li>updated and duration with =, &lt;, &lt;=, &gt; and &gt;=, e.g. {@code updated >= 2019-01-01}
+ * or {@code duration > 90m}. Durations are given in s, m, h or d.</li>
+ * <li>allday = true or false.</li>
+ * <li>text contains WORDS, the free text search of the API. It may only be and-ed with the rest
+ * of the expression.</li>
+ * </ul>
+ * The clauses and-ed at the top are also pushed down to events().list where the API can evaluate
+ * them: text as q, updated &gt;= as updatedMin, property.NAME = as privateExtendedProperty and type
+ * = as eventTypes. The predicate still checks all clauses but text, which the API or the event
+ * cache evaluate.
+ * <p>
+ * And-ed clauses are evaluated cheapest first. A regular expression is only run on a text
+ * containing the longest literal it requires, and not at all if it is a plain literal.
+ */
+public class EventFilter implements Predicate<EventRecord> {
+    /** Accepts every event. */
+    public static final EventFilter ALL = new EventFilter(new And(new ArrayList<>()));
+
+    private static final String DEFAULT_EVENT_TYPE = "default";
+    private static final Pattern DURATION = Pattern.compile("(\\d+)([smhd])");
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+    /* the letters escaping a class or an anchor, \p and \P with the name of the class */
+    private static final String REGEX_CLASS_ESCAPES = "dDsSwWhHvVRXbBAGZzpP";
+
+    private final Node root;
+    private final List<String> queryTerms = new ArrayList<>();
+    private final List<String> privateProperties = new ArrayList<>();
+    private final List<String> eventTypes = new ArrayList<>();
+    private final Set<String> fields = new LinkedHashSet<>();
+    private DateTime updatedMin;
+
+    private EventFilter(Node root) {
+        this.root = root;
+        root.addFields(fields);
+        for (Node conjunct : root instanceof And ? ((And) root).nodes
+                : Collections.singletonList(root)) {
+            pushDown(conjunct);
+        }
+        if (updatedMin != null) {
+            /* to tell the deleted events updatedMin lists as well */
+            fields.add("status");
+        }
+    }
+
+    /**
+     * Compiles the expression.
+     *
+     * @throws IllegalArgumentException if it is not a valid expression
+     */
+    public static EventFilter parse(String expression) {
+        return new EventFilter(new Parser(expression).parse());
+    }
+
+    /**
+     * Only all-day events or only timed events.
+     */
+    public static EventFilter allDay(boolean allDay) {
+        return new EventFilter(new AllDay(allDay));
+    }
+
+    /**
+     * Events containing all words of the keyword, searched by the API or the event cache.
+     */
+    public static EventFilter keyword(String keyword) {
+        return keyword == null || keyword.trim().isEmpty() ? ALL
+                : new EventFilter(new Text(keyword.trim()));
+    }
+
+    /**
+     * Events accepted by this and the other filter.
+     */
+    public EventFilter and(EventFilter other) {
+        if (this == ALL) {
+            return other;
+        } else if (other == ALL) {
+            return this;
+        }
+        return new EventFilter(new And(Arrays.asList(root, other.root)));
+    }
+
+    @Override
+    public boolean test(EventRecord event) {
+        /* updatedMin lists deleted events as well */
+        return !(updatedMin != null && event.isCancelled()) && root.test(event);
+    }
+
+    /**
+     * The event fields the predicate reads.
+     */
+    public Set<String> getFields() {
+        return Collections.unmodifiableSet(fields);
+    }
+
+    /**
+     * The words the text clauses ask for, null if there are none.
+     */
+    public String getQuery() {
+        return queryTerms.isEmpty() ? null : String.join(" ", queryTerms);
+    }
+
+    /**
+     * Whether the summary, description or location of the event contain all words of the query,
+     * like the event cache searches them. For events the API did not search, e.g. the instances
+     * of a series.
+     */
+    public boolean matchesQuery(EventRecord event) {
+        if (queryTerms.isEmpty()) {
+            return true;
+        }
+        String text = (event.getSummary() + " " + event.getDescription() + " "
+                + event.getLocation()).toLowerCase(Locale.ROOT);
+        for (String words : queryTerms) {
+            for (String word : words.toLowerCase(Locale.ROOT).split("\\s+")) {
+                if (!text.contains(word)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the query parameters of the clauses the API evaluates on the list request.
+     */
+    public void restrict(Calendar.Events.List request) {
+        request.setQ(getQuery());
+        if (updatedMin != null) {
+            request.setUpdatedMin(updatedMin);
+        }
+        if (!privateProperties.isEmpty()) {
+            request.setPrivateExtendedProperty(privateProperties);
+        }
+        if (!eventTypes.isEmpty()) {
+            /* not known to this version of the client library */
+            request.set("eventTypes", eventTypes);
+        }
+    }
+
+    private void pushDown(Node conjunct) {
+        if (conjunct instanceof Text) {
+            queryTerms.add(((Text) conjunct).words);
+        } else if (conjunct instanceof Compare && ((Compare) conjunct).field.equals("updated")) {
+            Compare compare = (Compare) conjunct;
+            if ((compare.op.equals(">=") || compare.op.equals(">") || compare.op.equals("="))
+                    && (updatedMin == null || updatedMin.getValue() < compare.value)) {
+                updatedMin = new DateTime(compare.value);
+            }
+        } else if (conjunct instanceof Match && ((Match) conjunct).op.equals("=")
+                && ((Match) conjunct).field.startsWith("property.")) {
+            Match match = (Match) conjunct;
+            privateProperties.add(match.field.substring("property.".length()) + "="
+                    + match.value);
+        } else if (eventTypes.isEmpty() && isTypeEquality(conjunct)) {
+            eventTypes.add(((Match) conjunct).value);
+        } else if (eventTypes.isEmpty() && conjunct instanceof Or
+                && ((Or) conjunct).nodes.stream().allMatch(EventFilter::isTypeEquality)) {
+            for (Node node : ((Or) conjunct).nodes) {
+                eventTypes.add(((Match) node).value);
+            }
+        }
+    }
+
+    private static boolean isTypeEquality(Node node) {
+        return node instanceof Match && ((Match) node).field.equals("type")
+                && ((Match) node).op.equals("=");
+    }
+
+    /* A compiled part of the expression. */
+    private interface Node {
+        boolean test(EventRecord event);
+
+        /* A rough relative cost of a test, so cheap clauses decide first. */
+        int cost();
+
+        void addFields(Set<String> fields);
+    }
+
+    private static class And implements Node {
+        private final List<Node> nodes;
+
+        And(List<Node> nodes) {
+            /* nested ands are flattened, so their clauses are pushed down as well */
+            this.nodes = new ArrayList<>();
+            for (Node node : nodes) {
+                if (node instanceof And) {
+                    this.nodes.addAll(((And) node).nodes);
+                } else {
+                    this.nodes.add(node);
+                }
+            }
+            this.nodes.sort(Comparator.comparingInt(Node::cost));
+        }
+
+        @Override
+        public boolean test(EventRecord event) {
+            for (Node node : nodes) {
+                if (!node.test(event)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int cost() {
+            return nodes.stream().mapToInt(Node::cost).max().orElse(0);
+        }
+
+        @Override
+        public void addFields(Set<String> fields) {
+            nodes.forEach((node) -> node.addFields(fields));
+        }
+    }
+
+    private static class Or implements Node {
+        private final List<Node> nodes;
+
+        Or(List<Node> nodes) {
+            this.nodes = new ArrayList<>(nodes);
+            this.nodes.sort(Comparator.comparingInt(Node::cost));
+        }
+
+        @Override
+        public boolean test(EventRecord event) {
+            for (Node node : nodes) {
+                if (node.test(event)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int cost() {
+            return nodes.stream().mapToInt(Node::cost).max().orElse(0);
+        }
+
+        @Override
+        public void addFields(Set<String> fields) {
+            nodes.forEach((node) -> node.addFields(fields));
+        }
+    }
+
+    private static class Not implements Node {
+        private final Node node;
+
+        Not(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public boolean test(EventRecord event) {
+            return !node.test(event);
+        }
+
+        @Override
+        public int cost() {
+            return node.cost();
+        }
+
+        @Override
+        public void addFields(Set<String> fields) {
+            node.addFields(fields);
+        }
+    }
+
+    private static class AllDay implements Node {
+        private final boolean allDay;
+
+        AllDay(boolean allDay) {
+            this.allDay = allDay;
+        }
+
+        @Override
+        public boolean test(EventRecord event) {
+            return event.isAllDay() == allDay;
+        }
+
+        @Override
+        public int cost() {
+            return 0;
+        }
+
+        @Override
+        public void addFields(Set<String> fields) {
+        }
+    }
+
+    /* Evaluated by the API or the event cache, never by the predicate. */
+    private static class Text implements Node {
+        private final String words;
+
+        Text(String words) {
+            this.words = words;
+        }
+
+        @Override
+        public boolean test(EventRecord event) {
+            return true;
+        }
+
+        @Override
+        public int cost() {
+            return 0;
+        }
+
+        @Override
+        public void addFields(Set<String> fields) {
+        }
+    }
+
+    /* updated or duration compared with a time in milliseconds. */
+    private static class Compare implements Node {
+        private final String field;
+        private final String op;
+        private final long value;
+        private final ToLongFunction<EventRecord> property;
+
+        Compare(String field, String op, long value) {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+            this.property = field.equals("updated")
+                    ? (event) -> event.getUpdated() != null ? event.getUpdated().getValue()
+                            : Long.MIN_VALUE
+                    : (event) -> event.getEndMillis() - event.getStartMillis();
+        }
+
+        @Override
+        public boolean test(EventRecord event) {
+            long actual = property.applyAsLong(event);
+            switch (op) {
+                case "<":
+                    return actual < value;
+                case "<=":
+                    return actual <= value;
+                case ">":
+                    return actual > value;
+                case ">=":
+                    return actual >= value;
+                default:
+                    return actual == value;
+            }
+        }
+
+        @Override
+        public int cost() {
+            return 1;
+        }
+
+        @Override
+        public void addFields(Set<String> fields) {
+            if (field.equals("updated")) {
+                fields.add("updated");
+            } else {
+                fields.add("start");
+                fields.add("end");
+            }
+        }
+    }
+
+    /* A text property matched with =, contains or ~. */
+    private static class Match implements Node {
+        private final String field;
+        private final String op;
+        private final String value;
+        private final Pattern pattern;
+        /* a literal every match contains, checked before running the regular expression */
+        private final String literal;
+        private final Function<EventRecord, Object> property;
+        private final boolean exact;
+
+        Match(String field, String op, String value) {
+            this.field = field;
+            this.exact = field.equals("color") || field.equals("type")
+                    || field.startsWith("property.");
+            String regexLiteral = op.equals("~") ? findLiteral(value) : null;
+            if (regexLiteral != null && regexLiteral.length() == value.length()) {
+                /* nothing but a literal, no need for the regular expression */
+                op = "contains";
+            }
+            this.op = op;
+            this.value = op.equals("contains") && regexLiteral != null ? regexLiteral : value;
+            this.pattern = op.equals("~")
+                    ? Pattern.compile(value, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)
+                    : null;
+            this.literal = op.equals("~") ? regexLiteral : null;
+            this.property = getProperty(field);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean test(EventRecord event) {
+            Object actual = property.apply(event);
+            if (actual instanceof List) {
+                for (String element : (List<String>) actual) {
+                    if (matches(element)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matches((String) actual);
+        }
+
+        private boolean matches(String text) {
+            if (text == null) {
+                return false;
+            }
+            switch (op) {
+                case "=":
+                    return exact ? text.equals(value) : text.equalsIgnoreCase(value);
+                case "contains":
+                    return containsIgnoreCase(text, value);
+                default:
+                    return (literal == null || containsIgnoreCase(text, literal))
+                            && pattern.matcher(text).find();
+            }
+        }
+
+        @Override
+        public int cost() {
+            int cost = op.equals("=") ? 2 : op.equals("contains") ? 3 : literal != null ? 4 : 5;
+            /* descriptions are by far the longest texts */
+            return field.equals("description") ? cost + 3 : cost;
+        }
+
+        @Override
+        public void addFields(Set<String> fields) {
+            if (field.startsWith("property.")) {
+                fields.add("extendedProperties/private");
+                return;
+            }
+            switch (field) {
+                case "attendee":
+                    fields.add("attendees/email");
+                    break;
+                case "organizer":
+                    fields.add("organizer/email");
+                    break;
+                case "color":
+                    fields.add("colorId");
+                    break;
+                case "type":
+                    fields.add("eventType");
+                    break;
+                default:
+                    fields.add(field);
+            }
+        }
+
+        private static Function<EventRecord, Object> getProperty(String field) {
+            if (field.startsWith("property.")) {
+                String name = field.substring("property.".length());
+                return (event) -> event.getPrivateProperties() != null
+                        ? event.getPrivateProperties().get(name) : null;
+            }
+            switch (field) {
+                case "summary":
+                    return EventRecord::getSummary;
+                case "description":
+                    return EventRecord::getDescription;
+                case "location":
+                    return EventRecord::getLocation;
+                case "organizer":
+                    return EventRecord::getOrganizer;
+                case "attendee":
+                    return EventRecord::getAttendees;
+                case "color":
+                    return EventRecord::getColorId;
+                default:
+                    return (event) -> event.getEventType() != null ? event.getEventType()
+                            : DEFAULT_EVENT_TYPE;
+            }
+        }
+    }
+
+    /*
+     * The longest run of literal characters outside of groups and classes every match of the
+     * regular expression contains, null if there is none, the expression has alternatives or
+     * escapes characters by letter, like \x41, \cX or \Q.
+     */
+    static String findLiteral(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return null;
+        }
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            char next = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+            boolean optional = next == '?' || next == '*' || next == '{';
+            if (c == '\\' && next != 0 && !Character.isLetterOrDigit(next) && depth == 0) {
+                /* an escaped special character stands for itself */
+                char after = i + 2 < regex.length() ? regex.charAt(i + 2) : 0;
+                i++;
+                if (after == '?' || after == '*' || after == '{') {
+                    longest = longer(longest, run);
+                    run.setLength(0);
+                } else {
+                    run.append(next);
+                }
+                continue;
+            } else if (c == '[') {
+                i = skipClass(regex, i);
+            } else if (c == '{') {
+                /* the bounds of a quantifier */
+                i = Math.max(i, regex.indexOf('}', i));
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && REGEX_META.indexOf(c) < 0 && !optional) {
+                run.append(c);
+                if (next == '+') {
+                    /* repeated, but at least once */
+                    longest = longer(longest, run);
+                    run.setLength(0);
+                }
+                continue;
+            } else if (c == '\\') {
+                if (Character.isLetter(next) && REGEX_CLASS_ESCAPES.indexOf(next) < 0) {
+                    /* a character by its code or name, a named back reference or quoting */
+                    return null;
+                }
+                /* a class like \d or \p{L}, an anchor or a back reference like \12 */
+                i++;
+                if ((next == 'p' || next == 'P') && i + 1 < regex.length()) {
+                    i = regex.charAt(i + 1) == '{' ? Math.max(i, regex.indexOf('}', i)) : i + 1;
+                }
+                while (Character.isDigit(next) && i + 1 < regex.length()
+                        && Character.isDigit(regex.charAt(i + 1))) {
+                    i++;
+                }
+            }
+            longest = longer(longest, run);
+            run.setLength(0);
+        }
+        longest = longer(longest, run);
+        return longest.isEmpty() ? null : longest;
+    }
+
+    private static String longer(String longest, StringBuilder run) {
+        return run.length() > longest.length() ? run.toString() : longest;
+    }
+
+    private static int skipClass(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        /* a ] right at the start belongs to the class */
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        for (; i < regex.length() && regex.charAt(i) != ']'; i++) {
+            if (regex.charAt(i) == '\\') {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    static boolean containsIgnoreCase(String text, String literal) {
+        int length = literal.length();
+        if (length == 0) {
+            return true;
+        }
+        /* compared like regionMatches does, upper case first */
+        char firstUpper = Character.toUpperCase(literal.charAt(0));
+        char firstLower = Character.toLowerCase(firstUpper);
+        for (int i = 0, last = text.length() - length; i <= last; i++) {
+            char c = Character.toUpperCase(text.charAt(i));
+            if ((c == firstUpper || Character.toLowerCase(c) == firstLower)
+                    && text.regionMatches(true, i + 1, literal, 1, length - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* A recursive descent parser of the expression. */
+    private static class Parser {
+        private static final List<String> TEXT_FIELDS = Arrays.asList("summary", "description",
+                "location", "organizer", "attendee", "color", "type");
+        private static final List<String> TEXT_OPERATORS = Arrays.asList("=", "!=", "~",
+                "contains");
+        private static final List<String> COMPARISONS = Arrays.asList("=", "<", "<=", ">",
+                ">=");
+
+        private final String expression;
+        private int position;
+        private String token;
+        private boolean quoted;
+        private int tokenStart;
+
+        Parser(String expression) {
+            this.expression = expression;
+            next();
+        }
+
+        Node parse() {
+            Node node = parseOr();
+            if (token != null) {
+                throw error("Unexpected '" + token + "'");
+            }
+            return node;
+        }
+
+        private Node parseOr() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(parseAnd());
+            while (isKeyword("or")) {
+                next();
+                nodes.add(parseAnd());
+            }
+            if (nodes.size() > 1 && nodes.stream().anyMatch((node) -> hasText(node))) {
+                throw error("text can only be combined with and");
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Or(nodes);
+        }
+
+        private Node parseAnd() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(parseNot());
+            while (isKeyword("and")) {
+                next();
+                nodes.add(parseNot());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new And(nodes);
+        }
+
+        private Node parseNot() {
+            if (isKeyword("not")) {
+                next();
+                Node node = parseNot();
+                if (hasText(node)) {
+                    throw error("text cannot be negated");
+                }
+                return new Not(node);
+            } else if (isSymbol("(")) {
+                next();
+                Node node = parseOr();
+                if (!isSymbol(")")) {
+                    throw error("Expected ')'");
+                }
+                next();
+                return node;
+            }
+            return parseClause();
+        }
+
+        private Node parseClause() {
+            if (token == null || quoted || isOperator()) {
+                throw error("Expected a field");
+            }
+            String field = token.toLowerCase(Locale.ROOT);
+            if (field.startsWith("property.")) {
+                /* the name of the property keeps its case */
+                field = "property." + token.substring("property.".length());
+            }
+            next();
+            if (token == null || quoted) {
+                throw error("Expected an operator after " + field);
+            }
+            String op = token.toLowerCase(Locale.ROOT);
+            next();
+            if (token == null || (!quoted && isOperator())) {
+                throw error("Expected a value after " + field + " " + op);
+            }
+            String value = token;
+            next();
+            if (field.equals("text")) {
+                expect(op, field, Collections.singletonList("contains"));
+                return new Text(value);
+            } else if (field.equals("allday")) {
+                expect(op, field, Arrays.asList("=", "!="));
+                if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                    throw error("allday is either true or false");
+                }
+                return new AllDay(Boolean.parseBoolean(value) == op.equals("="));
+            } else if (field.equals("updated") || field.equals("duration")) {
+                expect(op, field, COMPARISONS);
+                return new Compare(field, op, field.equals("updated") ? parseTime(value)
+                        : parseDuration(value));
+            } else if (TEXT_FIELDS.contains(field) || (field.startsWith("property.")
+                    && field.length() > "property.".length())) {
+                expect(op, field, TEXT_OPERATORS);
+                try {
+                    Node match = new Match(field, op.equals("!=") ? "=" : op, value);
+                    return op.equals("!=") ? new Not(match) : match;
+                } catch (PatternSyntaxException e) {
+                    throw error("Invalid regular expression " + value + ": "
+                            + e.getDescription());
+                }
+            }
+            throw error("Unknown field " + field);
+        }
+
+        private boolean hasText(Node node) {
+            if (node instanceof Text) {
+                return true;
+            } else if (node instanceof And) {
+                return ((And) node).nodes.stream().anyMatch(this::hasText);
+            }
+            return false;
+        }
+
+        private void expect(String op, String field, List<String> operators) {
+            if (!operators.contains(op)) {
+                throw error(field + " only supports " + String.join(", ", operators));
+            }
+        }
+
+        private long parseTime(String value) {
+            try {
+                return DateTime.parseRfc3339(value).getValue();
+            } catch (NumberFormatException e) {
+                throw error("Expected a date like 2019-01-31 or a time like "
+                        + "2019-01-31T10:00:00Z instead of " + value);
+            }
+        }
+
+        private long parseDuration(String value) {
+            Matcher duration = DURATION.matcher(value.toLowerCase(Locale.ROOT));
+            if (!duration.matches()) {
+                throw error("Expected a duration like 30m, 2h or 1d instead of " + value);
+            }
+            long amount = Long.parseLong(duration.group(1));
+            switch (duration.group(2)) {
+                case "s":
+                    return TimeUnit.SECONDS.toMillis(amount);
+                case "m":
+                    return TimeUnit.MINUTES.toMillis(amount);
+                case "h":
+                    return TimeUnit.HOURS.toMillis(amount);
+                default:
+                    return TimeUnit.DAYS.toMillis(amount);
+            }
+        }
+
+        private boolean isKeyword(String keyword) {
+            return token != null && !quoted && token.equalsIgnoreCase(keyword);
+        }
+
+        private boolean isSymbol(String symbol) {
+            return token != null && !quoted && token.equals(symbol);
+        }
+
+        private boolean isOperator() {
+            return TEXT_OPERATORS.contains(token) || COMPARISONS.contains(token)
+                    || token.equals("(") || token.equals(")");
+        }
+
+        /* Reads the next token: a symbol, an operator, a quoted string or a word. */
+        private void next() {
+            while (position < expression.length()
+                    && Character.isWhitespace(expression.charAt(position))) {
+                position++;
+            }
+            tokenStart = position;
+            quoted = false;
+            if (position >= expression.length()) {
+                token = null;
+                return;
+            }
+            char c = expression.charAt(position);
+            if (c == '"' || c == '\'') {
+                StringBuilder value = new StringBuilder();
+                position++;
+                while (position < expression.length() && expression.charAt(position) != c) {
+                    char next = expression.charAt(position++);
+                    if (next == '\\' && position < expression.length()
+                            && (expression.charAt(position) == c
+                                    || expression.charAt(position) == '\\')) {
+                        /* only the quote and the backslash itself are escaped */
+                        next = expression.charAt(position++);
+                    }
+                    value.append(next);
+                }
+                if (position >= expression.length()) {
+                    throw error("Missing closing quote");
+                }
+                position++;
+                token = value.toString();
+                quoted = true;
+            } else if (c == '(' || c == ')' || c == '~') {
+                token = String.valueOf(c);
+                position++;
+            } else if (c == '<' || c == '>' || c == '!' || c == '=') {
+                boolean withEquals = position + 1 < expression.length()
+                        && expression.charAt(position + 1) == '=' && c != '=';
+                token = expression.substring(position, position + (withEquals ? 2 : 1));
+                position += token.length();
+                if (token.equals("!")) {
+                    throw error("Expected !=");
+                }
+            } else {
+                int end = position;
+                while (end < expression.length() && !Character.isWhitespace(expression.charAt(end))
+                        && "()~<>!=\"'".indexOf(expression.charAt(end)) < 0) {
+                    end++;
+                }
+                token = expression.substring(position, end);
+                position = end;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("%s at position %s of filter: %s",
+                    message, tokenStart + 1, expression));
+        }
+    }
+}
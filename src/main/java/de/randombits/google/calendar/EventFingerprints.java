@@ -0,0 +1,226 @@
+package de.randombits.google.calendar;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * EventFingerprints remembers events by a 64 bit hash of the properties that make two events
+ * duplicates of each other, together with a long value per fingerprint. Fingerprints and values
+ * are kept in an open addressing table of primitive longs, so an event takes at most 32 bytes no
+ * matter how long its summary is, and millions of events fit in memory.
+ * <p>
+ * Two different events share a fingerprint by chance with a probability of about one in
+ * 10<sup>7</sup> for a million events. {@link #matches} tells such events apart where both are
+ * at hand.
+ */
+public class EventFingerprints {
+
+    /**
+     * The properties two events must agree in to be duplicates. ICAL_UID alone identifies an
+     * event across calendars, e.g. an imported copy.
+     */
+    public enum Key {
+        SUMMARY, START, END, LOCATION, ORGANIZER, ICAL_UID
+    }
+
+    private static final long FREE = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Set<Key> keys;
+    private long[] fingerprints = new long[INITIAL_CAPACITY];
+    private long[] values = new long[INITIAL_CAPACITY];
+    private int size;
+
+    public EventFingerprints(Collection<Key> keys) {
+        this.keys = EnumSet.copyOf(keys);
+    }
+
+    public Set<Key> getKeys() {
+        return keys;
+    }
+
+    /**
+     * The partial response fields an event needs for its fingerprint, besides id and start.
+     */
+    public String getFields() {
+        return (keys.contains(Key.END) ? ",end" : "")
+                + (keys.contains(Key.LOCATION) ? ",location" : "")
+                + (keys.contains(Key.ORGANIZER) ? ",organizer/email" : "")
+                + (keys.contains(Key.ICAL_UID) ? ",iCalUID" : "");
+    }
+
+    /**
+     * Whether the event can be compared with others. The instances of a recurring event only
+     * differ in their start, so without the start in the key they are not compared at all.
+     */
+    public boolean isComparable(EventRecord event) {
+        return keys.contains(Key.START) || event.getRecurringEventId() == null;
+    }
+
+    public long fingerprint(EventRecord event) {
+        long hash = FNV_OFFSET;
+        for (Key key : keys) {
+            hash = mix(hash, key.ordinal());
+            switch (key) {
+                case SUMMARY:
+                    hash = mix(hash, trim(event.getSummary()));
+                    break;
+                case START:
+                    hash = mix(hash, event.isAllDay() ? 1 : 0);
+                    hash = mix(hash, event.getStartMillis());
+                    break;
+                case END:
+                    hash = mix(hash, event.getEndMillis());
+                    break;
+                case LOCATION:
+                    hash = mix(hash, event.getLocation());
+                    break;
+                case ORGANIZER:
+                    hash = mix(hash, event.getOrganizer());
+                    break;
+                case ICAL_UID:
+                    hash = mix(hash, event.getICalUID());
+                    break;
+                default:
+                    break;
+            }
+        }
+        hash = finish(hash);
+        /* 0 marks a free slot of the table */
+        return hash != FREE ? hash : 1;
+    }
+
+    /**
+     * Whether the events agree in all properties of the key, unlike events that only share their
+     * fingerprint by chance.
+     */
+    public boolean matches(EventRecord event, EventRecord other) {
+        for (Key key : keys) {
+            boolean equal;
+            switch (key) {
+                case SUMMARY:
+                    equal = Objects.equals(trim(event.getSummary()), trim(other.getSummary()));
+                    break;
+                case START:
+                    equal = event.isAllDay() == other.isAllDay()
+                            && event.getStartMillis() == other.getStartMillis();
+                    break;
+                case END:
+                    equal = event.getEndMillis() == other.getEndMillis();
+                    break;
+                case LOCATION:
+                    equal = Objects.equals(event.getLocation(), other.getLocation());
+                    break;
+                case ORGANIZER:
+                    equal = Objects.equals(event.getOrganizer(), other.getOrganizer());
+                    break;
+                case ICAL_UID:
+                    equal = Objects.equals(event.getICalUID(), other.getICalUID());
+                    break;
+                default:
+                    equal = true;
+                    break;
+            }
+            if (!equal) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A 64 bit hash of the value, e.g. to remember an event by its id.
+     */
+    public static long hash(String value) {
+        return finish(mix(FNV_OFFSET, value));
+    }
+
+    /**
+     * The value stored for the fingerprint or missing if there is none.
+     */
+    public long get(long fingerprint, long missing) {
+        int slot = find(fingerprint);
+        return fingerprints[slot] == fingerprint ? values[slot] : missing;
+    }
+
+    public boolean contains(long fingerprint) {
+        return fingerprints[find(fingerprint)] == fingerprint;
+    }
+
+    public void put(long fingerprint, long value) {
+        int slot = find(fingerprint);
+        if (fingerprints[slot] != fingerprint) {
+            fingerprints[slot] = fingerprint;
+            if (++size * 2 > fingerprints.length) {
+                values[slot] = value;
+                grow();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* Linear probing, the table is at most half full. */
+    private int find(long fingerprint) {
+        int mask = fingerprints.length - 1;
+        int slot = (int) fingerprint & mask;
+        while (fingerprints[slot] != FREE && fingerprints[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldFingerprints = fingerprints;
+        long[] oldValues = values;
+        fingerprints = new long[oldFingerprints.length * 2];
+        values = new long[oldValues.length * 2];
+        for (int i = 0; i < oldFingerprints.length; i++) {
+            if (oldFingerprints[i] != FREE) {
+                int slot = find(oldFingerprints[i]);
+                fingerprints[slot] = oldFingerprints[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static String trim(String value) {
+        return value != null ? value.trim() : null;
+    }
+
+    /* FNV-1a over the characters, with a marker that tells null from the empty string. */
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            return mix(hash, -1);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash, value.length());
+    }
+
+    private static long mix(long hash, long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /* The finalizer of MurmurHash3, so the low bits used as slot depend on all bits. */
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
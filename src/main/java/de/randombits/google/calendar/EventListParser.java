@@ -0,0 +1,252 @@
+package de.randombits.google.calendar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.CalendarRequest;
+import com.google.api.services.calendar.model.Event;
+
+/**
+ * EventListParser reads the response of events().list or events().instances token by token
+ * straight into EventRecords, without building the full Event model. Properties an EventRecord
+ * does not hold are skipped.
+ * <p>
+ * Only when all fields are asked for with {@link #FULL_EVENT}, as export does, each event is read
+ * into the full Event model as well and kept with its record.
+ */
+public class EventListParser {
+    /* The partial response field asking for events with all their properties. */
+    public static final String FULL_EVENT = "*";
+
+    private final JsonFactory jsonFactory;
+
+    public EventListParser(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Executes the list or instances request asking only for the given event fields and parses
+     * the response.
+     */
+    public EventPage execute(CalendarRequest<?> request, String eventFields) throws IOException {
+        boolean full = isFull(eventFields);
+        request.setFields("nextPageToken,nextSyncToken,items("
+                + (full ? FULL_EVENT : eventFields) + ")");
+        request.getRequestHeaders().setAcceptEncoding("gzip");
+        HttpResponse response = request.executeUnparsed();
+        try {
+            return parse(response.getContent(), full);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Whether the fields ask for the full events.
+     */
+    public static boolean isFull(String eventFields) {
+        return Arrays.asList(eventFields.split(",")).contains(FULL_EVENT);
+    }
+
+    public EventPage parse(InputStream content) throws IOException {
+        return parse(content, false);
+    }
+
+    /**
+     * Parses the response, with the full events kept when asked for.
+     */
+    public EventPage parse(InputStream content, boolean full) throws IOException {
+        List<EventRecord> records = new ArrayList<>();
+        String nextPageToken = null;
+        String nextSyncToken = null;
+        JsonParser parser = jsonFactory.createJsonParser(content);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object listing events.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("items".equals(name) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        records.add(full ? parseFullEvent(parser) : parseEvent(parser));
+                    }
+                } else if ("nextPageToken".equals(name)) {
+                    nextPageToken = parser.getText();
+                } else if ("nextSyncToken".equals(name)) {
+                    nextSyncToken = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return new EventPage(records, nextPageToken, nextSyncToken);
+    }
+
+    /**
+     * Parses a single event object in full, e.g. a line of an NDJSON file written by export.
+     */
+    public EventRecord parseEvent(String json) throws IOException {
+        JsonParser parser = jsonFactory.createJsonParser(json);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object for an event.");
+            }
+            return parseFullEvent(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static EventRecord parseFullEvent(JsonParser parser) throws IOException {
+        Event event = parser.parse(Event.class);
+        return EventRecord.of(event).setEvent(event);
+    }
+
+    private static EventRecord parseEvent(JsonParser parser) throws IOException {
+        EventRecord record = new EventRecord();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch (name) {
+                case "id":
+                    record.setId(parser.getText());
+                    break;
+                case "etag":
+                    record.setEtag(parser.getText());
+                    break;
+                case "status":
+                    record.setStatus(parser.getText());
+                    break;
+                case "summary":
+                    record.setSummary(parser.getText());
+                    break;
+                case "description":
+                    record.setDescription(parser.getText());
+                    break;
+                case "location":
+                    record.setLocation(parser.getText());
+                    break;
+                case "colorId":
+                    record.setColorId(parser.getText());
+                    break;
+                case "recurringEventId":
+                    record.setRecurringEventId(parser.getText());
+                    break;
+                case "iCalUID":
+                    record.setICalUID(parser.getText());
+                    break;
+                case "recurrence":
+                    record.setRecurrence(parseStrings(parser));
+                    break;
+                case "updated":
+                    record.setUpdated(DateTime.parseRfc3339(parser.getText()));
+                    break;
+                case "start":
+                    record.setStart(parseEventDateTime(parser, record));
+                    break;
+                case "originalStartTime":
+                    record.setOriginalStart(parseEventDateTime(parser, null));
+                    break;
+                case "end":
+                    record.setEnd(parseEventDateTime(parser, null));
+                    break;
+                case "organizer":
+                    record.setOrganizer(parseEmail(parser));
+                    break;
+                case "attendees":
+                    record.setAttendees(parseEmails(parser));
+                    break;
+                case "eventType":
+                    record.setEventType(parser.getText());
+                    break;
+                case "extendedProperties":
+                    record.setPrivateProperties(parsePrivateProperties(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return record;
+    }
+
+    /* The time zone of the start is kept, the end is in the same one. */
+    private static DateTime parseEventDateTime(JsonParser parser, EventRecord startOf)
+            throws IOException {
+        DateTime dateTime = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("dateTime".equals(name) || ("date".equals(name) && dateTime == null)) {
+                dateTime = DateTime.parseRfc3339(parser.getText());
+            } else if ("timeZone".equals(name) && startOf != null) {
+                startOf.setTimeZone(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return dateTime;
+    }
+
+    private static List<String> parseStrings(JsonParser parser) throws IOException {
+        List<String> values = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.VALUE_STRING) {
+            values.add(parser.getText());
+        }
+        return values;
+    }
+
+    private static List<String> parseEmails(JsonParser parser) throws IOException {
+        List<String> emails = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            emails.add(parseEmail(parser));
+        }
+        return emails;
+    }
+
+    /* Shared properties are skipped. */
+    private static Map<String, String> parsePrivateProperties(JsonParser parser)
+            throws IOException {
+        Map<String, String> properties = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("private".equals(name)) {
+                properties = new HashMap<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.getCurrentName();
+                    parser.nextToken();
+                    properties.put(key, parser.getText());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return properties;
+    }
+
+    private static String parseEmail(JsonParser parser) throws IOException {
+        String email = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("email".equals(name)) {
+                email = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return email;
+    }
+}
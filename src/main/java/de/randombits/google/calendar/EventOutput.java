@@ -0,0 +1,389 @@
+package de.randombits.google.calendar;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import com.google.api.client.util.DateTime;
+
+/**
+ * EventOutput writes a line per processed event as plain text, NDJSON or CSV. Lines are collected
+ * in large chunks which a background thread writes, so listing and batching do not wait for the
+ * console or the file.
+ * <p>
+ * Instead of a line per event the output can also be reduced to counters printed every few
+ * seconds (progress) or to nothing but the status lines (quiet).
+ */
+public class EventOutput implements AutoCloseable {
+
+    public enum Format {
+        PLAIN, NDJSON, CSV
+    }
+
+    public enum Verbosity {
+        EVENTS, PROGRESS, QUIET
+    }
+
+    /**
+     * What happened to an event, with the line written for it in plain format. The arguments of
+     * the line are summary, start and ID.
+     */
+    public enum Action {
+        FOUND("found", "%1$s (%2$s) (%3$s)"),
+        IGNORED("ignored", "Ignoring due to filter - %1$s  %2$s (%3$s)"),
+        LIST("list", "%1$s - %2$s"),
+        TOUCH("touch", "Touching %1$s  %2$s (%3$s)"),
+        DELETE("delete", "Deleting %1$s  %2$s (%3$s)"),
+        MOVE("move", "Moving %1$s  %2$s (%3$s)"),
+        REMOVE_COLOR("removeColor", "Removing color from %1$s  %2$s (%3$s)"),
+        PATCH("patch", "Patching %1$s  %2$s (%3$s)"),
+        TRUNCATE("truncate", "Truncating series %1$s  %2$s (%3$s)"),
+        EXPORT("export", "Exporting %1$s  %2$s (%3$s)"),
+        IMPORT("import", "Importing %1$s  %2$s (%3$s)");
+
+        private final String name;
+        private final String plainFormat;
+
+        Action(String name, String plainFormat) {
+            this.name = name;
+            this.plainFormat = plainFormat;
+        }
+    }
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_SECONDS = 2;
+    private static final String CSV_HEADER = "action,id,start,end,summary,description,location,"
+            + "colorId,status,organizer,recurringEventId,updated,etag\n";
+    private static final Object END = new Object();
+
+    private final Format format;
+    private final Verbosity verbosity;
+    private final boolean console;
+    private final PrintStream statusConsole;
+    private final BlockingQueue<Object> chunks = new ArrayBlockingQueue<>(64);
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final AtomicLongArray counts = new AtomicLongArray(Action.values().length);
+    private final Thread writerThread;
+    private final long startNanos = System.nanoTime();
+    private ScheduledExecutorService progress;
+    private StringBuilder buffer = new StringBuilder(CHUNK_SIZE);
+    private boolean closed;
+
+    /**
+     * @param file file to write the events to or null for the console
+     */
+    public EventOutput(Format format, Verbosity verbosity, File file) throws IOException {
+        this.format = format;
+        this.verbosity = verbosity;
+        this.console = file == null;
+        this.statusConsole = statusConsole(format, verbosity, file);
+        OutputStream out = file != null ? new FileOutputStream(file) : System.out;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                WRITE_BUFFER_SIZE);
+        this.writerThread = new Thread(() -> write(writer), "output");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        if (format == Format.CSV && (file != null || verbosity == Verbosity.EVENTS)) {
+            this.buffer.append(CSV_HEADER);
+        }
+        if (verbosity == Verbosity.PROGRESS) {
+            this.progress = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.progress.scheduleAtFixedRate(this::printProgress, PROGRESS_INTERVAL_SECONDS,
+                    PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The console stream for status lines: stderr while the events go to stdout in a format
+     * meant for other programs, so they can still be piped, stdout otherwise.
+     */
+    public static PrintStream statusConsole(Format format, Verbosity verbosity, File file) {
+        return file == null && format != Format.PLAIN && verbosity == Verbosity.EVENTS
+                ? System.err : System.out;
+    }
+
+    /**
+     * Writes a line for the event, unless only progress or nothing is to be shown. A file gets
+     * the lines in any case.
+     */
+    public synchronized void event(Action action, EventRecord event) {
+        counts.incrementAndGet(action.ordinal());
+        if (verbosity != Verbosity.EVENTS && console) {
+            return;
+        }
+        switch (format) {
+            case NDJSON:
+                appendJson(action, event);
+                break;
+            case CSV:
+                appendCsv(action, event);
+                break;
+            default:
+                buffer.append(String.format(action.plainFormat, event.getSummary(),
+                        event.getStart(), event.getId())).append('\n');
+                break;
+        }
+        if (buffer.length() >= CHUNK_SIZE) {
+            publish();
+        }
+    }
+
+    /**
+     * Writes the properties of the event in plain format as one JSON line. NDJSON and CSV always
+     * contain them: the columns of the CSV header, as far as they were read. The iCalUID, time
+     * zone, attendees, event type and private properties are left out, export writes them.
+     */
+    public synchronized void details(EventRecord event) {
+        if (format != Format.PLAIN || (verbosity != Verbosity.EVENTS && console)) {
+            return;
+        }
+        appendJson(null, event);
+    }
+
+    /**
+     * Writes a status line to the console. It is kept in order with the events when they are
+     * written to the console as plain text as well.
+     */
+    public synchronized void status(String line) {
+        if (closed || !console || format != Format.PLAIN) {
+            statusConsole.println(line);
+            return;
+        }
+        buffer.append(line).append('\n');
+    }
+
+    /**
+     * Hands the lines collected so far to the writer without waiting for them to be written.
+     */
+    public synchronized void publish() {
+        if (buffer.length() == 0) {
+            return;
+        }
+        put(buffer.toString());
+        buffer = new StringBuilder(CHUNK_SIZE);
+    }
+
+    /**
+     * Waits until everything collected so far is written, e.g. before other output goes to the
+     * console directly.
+     */
+    public void flush() {
+        CountDownLatch written = new CountDownLatch(1);
+        synchronized (this) {
+            publish();
+            put(written);
+        }
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        rethrowFailure();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (progress != null) {
+            progress.shutdownNow();
+            printProgress();
+        }
+        synchronized (this) {
+            publish();
+            put(END);
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        rethrowFailure();
+    }
+
+    private void put(Object chunk) {
+        try {
+            chunks.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Keeps taking chunks after a failure, so producers never block on a full queue. */
+    private void write(Writer writer) {
+        try {
+            while (true) {
+                Object chunk = chunks.take();
+                if (chunk == END) {
+                    break;
+                } else if (chunk instanceof CountDownLatch) {
+                    flushQuietly(writer);
+                    ((CountDownLatch) chunk).countDown();
+                } else if (failure.get() == null) {
+                    try {
+                        writer.write((String) chunk);
+                        if (chunks.isEmpty()) {
+                            writer.flush();
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly(writer);
+        if (!console) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private void flushQuietly(Writer writer) {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void rethrowFailure() {
+        if (failure.get() != null) {
+            throw new RuntimeException(failure.get());
+        }
+    }
+
+    private void printProgress() {
+        StringBuilder line = new StringBuilder("* Progress after ")
+                .append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos))
+                .append("s:");
+        for (Action action : Action.values()) {
+            long count = counts.get(action.ordinal());
+            if (count > 0) {
+                line.append(' ').append(action.name).append(' ').append(count);
+            }
+        }
+        statusConsole.println(line);
+    }
+
+    private void appendJson(Action action, EventRecord event) {
+        buffer.append('{');
+        int length = buffer.length();
+        appendJsonField("action", action != null ? action.name : null, length);
+        appendJsonField("id", event.getId(), length);
+        appendJsonField("start", toString(event.getStart()), length);
+        appendJsonField("end", toString(event.getEnd()), length);
+        appendJsonField("summary", event.getSummary(), length);
+        appendJsonField("description", event.getDescription(), length);
+        appendJsonField("location", event.getLocation(), length);
+        appendJsonField("colorId", event.getColorId(), length);
+        appendJsonField("status", event.getStatus(), length);
+        appendJsonField("organizer", event.getOrganizer(), length);
+        appendJsonField("recurringEventId", event.getRecurringEventId(), length);
+        appendJsonField("updated", toString(event.getUpdated()), length);
+        appendJsonField("etag", event.getEtag(), length);
+        buffer.append("}\n");
+    }
+
+    private void appendJsonField(String name, String value, int objectStart) {
+        if (value == null) {
+            return;
+        }
+        if (buffer.length() > objectStart) {
+            buffer.append(',');
+        }
+        buffer.append('"').append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    buffer.append("\\\"");
+                    break;
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        buffer.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        buffer.append(c);
+                    }
+            }
+        }
+        buffer.append('"');
+    }
+
+    private void appendCsv(Action action, EventRecord event) {
+        appendCsvField(action.name).append(',');
+        appendCsvField(event.getId()).append(',');
+        appendCsvField(toString(event.getStart())).append(',');
+        appendCsvField(toString(event.getEnd())).append(',');
+        appendCsvField(event.getSummary()).append(',');
+        appendCsvField(event.getDescription()).append(',');
+        appendCsvField(event.getLocation()).append(',');
+        appendCsvField(event.getColorId()).append(',');
+        appendCsvField(event.getStatus()).append(',');
+        appendCsvField(event.getOrganizer()).append(',');
+        appendCsvField(event.getRecurringEventId()).append(',');
+        appendCsvField(toString(event.getUpdated())).append(',');
+        appendCsvField(event.getEtag()).append('\n');
+    }
+
+    /* Quoted as in RFC 4180 when the value contains a separator, a quote or a line break. */
+    private StringBuilder appendCsvField(String value) {
+        if (value == null) {
+            return buffer;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return buffer.append(value);
+        }
+        return buffer.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    private static String toString(DateTime dateTime) {
+        return dateTime != null ? dateTime.toStringRfc3339() : null;
+    }
+}
@@ -0,0 +1,30 @@
+package de.randombits.google.calendar;
+
+import java.util.List;
+
+/**
+ * EventPage is one page of events, either read from the API or from the local event cache.
+ */
+public class EventPage {
+    private final List<EventRecord> records;
+    private final String nextPageToken;
+    private final String nextSyncToken;
+
+    public EventPage(List<EventRecord> records, String nextPageToken, String nextSyncToken) {
+        this.records = records;
+        this.nextPageToken = nextPageToken;
+        this.nextSyncToken = nextSyncToken;
+    }
+
+    public List<EventRecord> getRecords() {
+        return records;
+    }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public String getNextSyncToken() {
+        return nextSyncToken;
+    }
+}
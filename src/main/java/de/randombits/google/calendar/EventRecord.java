@@ -0,0 +1,464 @@
+package de.randombits.google.calendar;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventAttendee;
+import com.google.api.services.calendar.model.EventDateTime;
+
+/**
+ * EventRecord holds the few properties of an event the tools work with. It is much smaller than
+ * the full Event model, is filled directly from the streamed API response and can be written to
+ * and read from the local event cache. Properties not requested from the API stay null.
+ */
+public class EventRecord {
+    /* The partial response fields of an event covering everything an EventRecord holds. */
+    public static final String ALL_FIELDS = "id,etag,status,summary,description,location,"
+            + "colorId,organizer/email,recurringEventId,iCalUID,start,end,updated,"
+            + "attendees/email,eventType,extendedProperties/private";
+
+    private String id;
+    private String etag;
+    private String status;
+    private String summary;
+    private String description;
+    private String location;
+    private String colorId;
+    private String organizer;
+    private String recurringEventId;
+    private String iCalUID;
+    /* Only set for recurring series, which are never kept in the cache. */
+    private List<String> recurrence;
+    private DateTime start;
+    private DateTime end;
+    private String timeZone;
+    private DateTime updated;
+    private List<String> attendees;
+    private String eventType;
+    private Map<String, String> privateProperties;
+    /* Only set for instances read from a file or listed in full, never kept in the cache. */
+    private DateTime originalStart;
+    private Event event;
+
+    public static EventRecord of(Event event) {
+        return new EventRecord().setId(event.getId()).setEtag(event.getEtag())
+                .setStatus(event.getStatus()).setSummary(event.getSummary())
+                .setDescription(event.getDescription()).setLocation(event.getLocation())
+                .setColorId(event.getColorId())
+                .setOrganizer(event.getOrganizer() != null ? event.getOrganizer().getEmail() : null)
+                .setRecurringEventId(event.getRecurringEventId()).setICalUID(event.getICalUID())
+                .setRecurrence(event.getRecurrence()).setStart(toDateTime(event.getStart()))
+                .setEnd(toDateTime(event.getEnd()))
+                .setTimeZone(event.getStart() != null ? event.getStart().getTimeZone() : null)
+                .setUpdated(event.getUpdated()).setAttendees(toEmails(event.getAttendees()))
+                .setEventType((String) event.get("eventType"))
+                .setPrivateProperties(event.getExtendedProperties() != null
+                        ? event.getExtendedProperties().getPrivate() : null)
+                .setOriginalStart(toDateTime(event.getOriginalStartTime()));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public EventRecord setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public EventRecord setEtag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public EventRecord setStatus(String status) {
+        this.status = status;
+        return this;
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    public EventRecord setSummary(String summary) {
+        this.summary = summary;
+        return this;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public EventRecord setDescription(String description) {
+        this.description = description;
+        return this;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public EventRecord setLocation(String location) {
+        this.location = location;
+        return this;
+    }
+
+    public String getColorId() {
+        return colorId;
+    }
+
+    public EventRecord setColorId(String colorId) {
+        this.colorId = colorId;
+        return this;
+    }
+
+    /**
+     * The email address of the organizer.
+     */
+    public String getOrganizer() {
+        return organizer;
+    }
+
+    public EventRecord setOrganizer(String organizer) {
+        this.organizer = organizer;
+        return this;
+    }
+
+    public String getRecurringEventId() {
+        return recurringEventId;
+    }
+
+    public EventRecord setRecurringEventId(String recurringEventId) {
+        this.recurringEventId = recurringEventId;
+        return this;
+    }
+
+    /**
+     * The UID of the event in iCalendar format, shared by all instances of a series.
+     */
+    public String getICalUID() {
+        return iCalUID;
+    }
+
+    public EventRecord setICalUID(String iCalUID) {
+        this.iCalUID = iCalUID;
+        return this;
+    }
+
+    /**
+     * The RRULE, EXRULE, RDATE and EXDATE lines of a recurring series, null for single events and
+     * the instances of a series.
+     */
+    public List<String> getRecurrence() {
+        return recurrence;
+    }
+
+    public EventRecord setRecurrence(List<String> recurrence) {
+        this.recurrence = recurrence;
+        return this;
+    }
+
+    public DateTime getStart() {
+        return start;
+    }
+
+    public EventRecord setStart(DateTime start) {
+        this.start = start;
+        return this;
+    }
+
+    public DateTime getEnd() {
+        return end;
+    }
+
+    public EventRecord setEnd(DateTime end) {
+        this.end = end;
+        return this;
+    }
+
+    /**
+     * The time zone of the start and end, in which a series is expanded. Null if not given.
+     */
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    public EventRecord setTimeZone(String timeZone) {
+        this.timeZone = timeZone;
+        return this;
+    }
+
+    public DateTime getUpdated() {
+        return updated;
+    }
+
+    public EventRecord setUpdated(DateTime updated) {
+        this.updated = updated;
+        return this;
+    }
+
+    /**
+     * The email addresses of the attendees.
+     */
+    public List<String> getAttendees() {
+        return attendees;
+    }
+
+    public EventRecord setAttendees(List<String> attendees) {
+        this.attendees = attendees;
+        return this;
+    }
+
+    /**
+     * The type of the event, like default, outOfOffice or focusTime.
+     */
+    public String getEventType() {
+        return eventType;
+    }
+
+    public EventRecord setEventType(String eventType) {
+        this.eventType = eventType;
+        return this;
+    }
+
+    /**
+     * The private extended properties, only visible to the calendar they are set in.
+     */
+    public Map<String, String> getPrivateProperties() {
+        return privateProperties;
+    }
+
+    public EventRecord setPrivateProperties(Map<String, String> privateProperties) {
+        this.privateProperties = privateProperties;
+        return this;
+    }
+
+    /**
+     * The start of an instance as its series has it, before the instance was moved.
+     */
+    public DateTime getOriginalStart() {
+        return originalStart;
+    }
+
+    public EventRecord setOriginalStart(DateTime originalStart) {
+        this.originalStart = originalStart;
+        return this;
+    }
+
+    /**
+     * The full event with all its properties, when it was listed or read as such for export and
+     * import. Null otherwise.
+     */
+    public Event getEvent() {
+        return event;
+    }
+
+    public EventRecord setEvent(Event event) {
+        this.event = event;
+        return this;
+    }
+
+    public boolean isCancelled() {
+        return "cancelled".equals(status);
+    }
+
+    public boolean isAllDay() {
+        return start != null && start.isDateOnly();
+    }
+
+    public long getStartMillis() {
+        return start != null ? start.getValue() : Long.MIN_VALUE;
+    }
+
+    public long getEndMillis() {
+        return end != null ? end.getValue() : getStartMillis();
+    }
+
+    public Event toEvent() {
+        Event event = new Event().setId(id).setEtag(etag).setStatus(status).setSummary(summary)
+                .setDescription(description).setLocation(location).setColorId(colorId)
+                .setOrganizer(organizer != null ? new Event.Organizer().setEmail(organizer) : null)
+                .setRecurringEventId(recurringEventId).setICalUID(iCalUID)
+                .setRecurrence(recurrence)
+                .setStart(toEventDateTime(start, timeZone))
+                .setEnd(toEventDateTime(end, timeZone)).setUpdated(updated)
+                .setAttendees(toAttendees(attendees))
+                .setExtendedProperties(privateProperties != null
+                        ? new Event.ExtendedProperties().setPrivate(privateProperties) : null)
+                .setOriginalStartTime(toEventDateTime(originalStart, timeZone));
+        if (eventType != null) {
+            event.set("eventType", eventType);
+        }
+        return event;
+    }
+
+    void write(DataOutput out) throws IOException {
+        writeString(out, id);
+        writeString(out, etag);
+        writeString(out, status);
+        writeString(out, summary);
+        writeString(out, description);
+        writeString(out, location);
+        writeString(out, colorId);
+        writeString(out, organizer);
+        writeString(out, recurringEventId);
+        writeString(out, iCalUID);
+        writeDateTime(out, start);
+        writeDateTime(out, end);
+        writeString(out, timeZone);
+        writeDateTime(out, updated);
+        writeStrings(out, attendees);
+        writeString(out, eventType);
+        writeProperties(out, privateProperties);
+    }
+
+    static EventRecord read(DataInput in) throws IOException {
+        return new EventRecord().setId(readString(in)).setEtag(readString(in))
+                .setStatus(readString(in)).setSummary(readString(in))
+                .setDescription(readString(in)).setLocation(readString(in))
+                .setColorId(readString(in)).setOrganizer(readString(in))
+                .setRecurringEventId(readString(in)).setICalUID(readString(in))
+                .setStart(readDateTime(in))
+                .setEnd(readDateTime(in)).setTimeZone(readString(in))
+                .setUpdated(readDateTime(in)).setAttendees(readStrings(in))
+                .setEventType(readString(in)).setPrivateProperties(readProperties(in));
+    }
+
+    private static DateTime toDateTime(EventDateTime eventDateTime) {
+        if (eventDateTime == null) {
+            return null;
+        }
+        return eventDateTime.getDateTime() != null ? eventDateTime.getDateTime()
+                : eventDateTime.getDate();
+    }
+
+    private static EventDateTime toEventDateTime(DateTime dateTime, String timeZone) {
+        if (dateTime == null) {
+            return null;
+        }
+        return dateTime.isDateOnly() ? new EventDateTime().setDate(dateTime)
+                : new EventDateTime().setDateTime(dateTime).setTimeZone(timeZone);
+    }
+
+    private static List<String> toEmails(List<EventAttendee> attendees) {
+        if (attendees == null) {
+            return null;
+        }
+        List<String> emails = new ArrayList<>(attendees.size());
+        for (EventAttendee attendee : attendees) {
+            emails.add(attendee.getEmail());
+        }
+        return emails;
+    }
+
+    private static List<EventAttendee> toAttendees(List<String> emails) {
+        if (emails == null) {
+            return null;
+        }
+        List<EventAttendee> attendees = new ArrayList<>(emails.size());
+        for (String email : emails) {
+            attendees.add(new EventAttendee().setEmail(email));
+        }
+        return attendees;
+    }
+
+    /* Strings are written with an int length because descriptions may exceed writeUTF's limit. */
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutput out, List<String> values) throws IOException {
+        out.writeInt(values != null ? values.size() : -1);
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static List<String> readStrings(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static void writeProperties(DataOutput out, Map<String, String> properties)
+            throws IOException {
+        out.writeInt(properties != null ? properties.size() : -1);
+        if (properties != null) {
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                writeString(out, property.getKey());
+                writeString(out, property.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readProperties(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> properties = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            properties.put(readString(in), readString(in));
+        }
+        return properties;
+    }
+
+    private static void writeDateTime(DataOutput out, DateTime dateTime) throws IOException {
+        if (dateTime == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(dateTime.isDateOnly() ? 2 : 1);
+        out.writeLong(dateTime.getValue());
+        out.writeInt(dateTime.getTimeZoneShift());
+    }
+
+    private static DateTime readDateTime(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        if (kind == 0) {
+            return null;
+        }
+        long value = in.readLong();
+        int timeZoneShift = in.readInt();
+        return new DateTime(kind == 2, value, timeZoneShift);
+    }
+}
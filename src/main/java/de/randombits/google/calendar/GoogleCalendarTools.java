@@ -5,39 +5,55 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.batch.BatchRequest;
-import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.googleapis.json.GoogleJsonError;
-import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Data;
 import com.google.api.client.util.DateTime;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.CalendarRequest;
 import com.google.api.services.calendar.CalendarScopes;
 import com.google.api.services.calendar.model.CalendarList;
+import com.google.api.services.calendar.model.CalendarListEntry;
 import com.google.api.services.calendar.model.Event;
-import com.google.api.services.calendar.model.Events;
-import com.google.common.util.concurrent.RateLimiter;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.ITypeConverter;
 import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
 import picocli.CommandLine.Spec;
 import picocli.CommandLine.Model.CommandSpec;
 
@@ -50,35 +66,192 @@ public class GoogleCalendarTools implements Callable<Integer> {
     private static final String APPLICATION_NAME = "Google Calendar Tools";
     private static final List<String> SCOPES = Collections.singletonList(CalendarScopes.CALENDAR);
     private static final String TOKENS_DIRECTORY_PATH = "tokens";
+    private static final String CACHE_DIRECTORY_PATH = "cache";
+    /* The event fields each command needs, requested as partial response. */
+    private static final String BASIC_FIELDS = "id,summary,start";
+    private static final String REMOVE_COLOR_FIELDS = BASIC_FIELDS + ",description";
+    private static final String DEDUP_FIELDS = BASIC_FIELDS + ",updated,recurringEventId";
+    private static final String EXPORT_FIELDS =
+            EventRecord.ALL_FIELDS + ",recurrence,originalStartTime";
+    /* The iCalUIDs import makes up, from the properties of entries that have none. */
+    private static final String IMPORT_UID_SUFFIX = "@google-calendar-tools";
+    private static final EventFingerprints IMPORT_UID_KEY = new EventFingerprints(EnumSet.of(
+            EventFingerprints.Key.SUMMARY, EventFingerprints.Key.START,
+            EventFingerprints.Key.END, EventFingerprints.Key.LOCATION));
+    /* Private extended property set by the touch strategy EXTENDED_PROPERTY. */
+    private static final String TOUCH_PROPERTY = "googleCalendarToolsTouched";
+    /* The largest page events().list returns, independent of the batch size. */
+    private static final int LIST_PAGE_SIZE = 2500;
+
+    /**
+     * How touch marks an event as changed. RENAME appends to the summary and restores it with a
+     * second call. EXTENDED_PROPERTY sets a private extended property to the time of the run with
+     * a single call, which can be repeated without harm.
+     */
+    public enum TouchStrategy {
+        RENAME, EXTENDED_PROPERTY
+    }
+
+    /**
+     * The HTTP client the API is called with. NET is the transport of the Google client on
+     * HttpURLConnection, APACHE an explicit pool of connections on Apache HttpClient.
+     */
+    public enum Transport {
+        NET, APACHE
+    }
+
+    /**
+     * Which entry of a set of duplicates dedup keeps. FIRST is the one listed first, OLDEST and
+     * NEWEST the one with the earliest or latest update time.
+     */
+    public enum Survivor {
+        FIRST, OLDEST, NEWEST
+    }
 
     @Spec
     CommandSpec spec;
 
     @Option(names = {"-b", "--batchsize"},
-            description = "The number of events to process in one API call. Default is ${DEFAULT-VALUE}.")
-    private int batchSize = 10;
+            description = "The number of API calls to send in one batch. Operations from several pages of events are packed into one batch. The Calendar API allows at most 50. Default is ${DEFAULT-VALUE}.")
+    private int batchSize = BatchExecutor.MAX_CALLS_PER_BATCH;
+
+    @Option(names = {"--batch-linger"},
+            description = "Milliseconds a partly filled batch waits for more operations before it is sent anyway. Default is ${DEFAULT-VALUE}.")
+    private long batchLingerMillis = 2000;
+
+    @Option(names = {"-c", "--calendar-id"}, split = ",",
+            description = "The IDs of the calendars to run actions against, separated by commas or by repeating the option. Default is primary, unless calendars are selected with --calendar-regex or --all-calendars.")
+    private List<String> calendarIds;
+
+    @Option(names = {"--calendar-regex"},
+            description = "Run actions against the calendars of the calendar list whose name or ID contains a match of this regular expression.")
+    private Pattern calendarRegex;
+
+    @Option(names = {"--all-calendars"},
+            description = "Run actions against all calendars of the calendar list. Default is ${DEFAULT-VALUE}.")
+    private boolean allCalendars;
 
-    @Option(names = {"-c", "--calendar-id"},
-            description = "The ID of the calendar to run actions against. Default is ${DEFAULT-VALUE}.")
-    private String calendarId = "primary";
+    @Option(names = {"--parallel-calendars"},
+            description = "The number of calendars processed at the same time when actions run against several calendars. They all share the rate limit and the batches. Default is ${DEFAULT-VALUE}.")
+    private int parallelCalendars = 4;
+
+    @Option(names = {"--calendar-concurrency"},
+            description = "The number of operations of one calendar that may wait for or be in a batch at the same time when several calendars are processed, so a large calendar does not crowd out the others. Default is ${DEFAULT-VALUE}.")
+    private int calendarConcurrency = 2 * BatchExecutor.MAX_CALLS_PER_BATCH;
 
     @Option(names = {"-d", "--dry-run"},
             description = "Do not actually manipulate the calendar. Default is ${DEFAULT-VALUE}.")
     private boolean dryRun;
 
 
-    @Option(names = {"-f", "--client-credentials"}, required = true,
-            description = "JSON file with client credentials necessary to access the Google APIs.")
+    @Option(names = {"-f", "--client-credentials"},
+            description = "JSON file with client credentials necessary to access the Google APIs. Required unless the command is sent to a server started with serve.")
     private File clientCredentialsFile;
 
     @Option(names = {"-r", "--rate-limit"},
             description = "Rate limit to apply to API calls. A double value for allowed calls per second. Default is ${DEFAULT-VALUE}.")
     private double rateLimit = 3.0;
 
+    @Option(names = {"--rate-limit-mode"},
+            description = "How the rate limit is applied: ${COMPLETION-CANDIDATES}. In adaptive mode the rate starts at the rate limit, grows while API calls succeed and is cut when the API reports exceeded quota. Default is ${DEFAULT-VALUE}.")
+    private ApiRateLimiter.Mode rateLimitMode = ApiRateLimiter.Mode.FIXED;
+
+    @Option(names = {"--min-rate-limit"},
+            description = "Lower bound for the rate limit in adaptive mode. Default is ${DEFAULT-VALUE}.")
+    private double minRateLimit = 0.5;
+
+    @Option(names = {"--max-rate-limit"},
+            description = "Upper bound for the rate limit in adaptive mode. Default is ${DEFAULT-VALUE}.")
+    private double maxRateLimit = 25.0;
+
     @Option(names = {"-t", "--read-timeout"},
             description = "Read-timeout for API calls in milliseconds. Default is ${DEFAULT-VALUE}.")
     private int readTimeoutInMilliseconds = 5000;
 
+    @Option(names = {"--connect-timeout"},
+            description = "Connect-timeout for API calls in milliseconds. Default is ${DEFAULT-VALUE}.")
+    private int connectTimeoutInMilliseconds = 20000;
+
+    @Option(names = {"--transport"},
+            description = "HTTP client to call the API with: ${COMPLETION-CANDIDATES}. NET uses HttpURLConnection, whose connections the JDK keeps alive. APACHE uses Apache HttpClient with a pool of --max-connections persistent connections, kept open for --keep-alive seconds. Default is ${DEFAULT-VALUE}.")
+    private Transport transport = Transport.NET;
+
+    @Option(names = {"--max-connections"},
+            description = "Size of the connection pool of the APACHE transport. Default is ${DEFAULT-VALUE}.")
+    private int maxConnections = 20;
+
+    @Option(names = {"--keep-alive"},
+            description = "Seconds an idle connection of the APACHE transport is kept open for reuse. Default is ${DEFAULT-VALUE}.")
+    private int keepAliveSeconds = 60;
+
+    @Option(names = {"--gzip-requests"},
+            description = "Compress the bodies of requests, mostly batches, with gzip. Responses are always requested compressed. Default is ${DEFAULT-VALUE}.")
+    private boolean gzipRequests;
+
+    @Option(names = {"-p", "--parallel-batches"},
+            description = "The number of batches to keep in flight at the same time. Default is ${DEFAULT-VALUE}.")
+    private int parallelBatches = 4;
+
+    @Option(names = {"--parallel-listing"},
+            description = "Split the date range into time windows and list that many of them in parallel. The windows are sized from the density of events. 1 lists page by page. Default is ${DEFAULT-VALUE}.")
+    private int parallelListing = 1;
+
+    @Option(names = {"--cache"},
+            description = "Keep the events of the calendar in a local cache which is updated with the changes since the last run. Events are then listed and filtered locally. Default is ${DEFAULT-VALUE}.")
+    private boolean useCache;
+
+    @Option(names = {"--series"},
+            description = "Process recurring events as series instead of instance by instance. A series lying within the date range is changed with one API call, delete truncates a series that ends within the date range. The instances of other series and exceptions are processed one by one. Cannot be combined with --cache, --parallel-listing or a journal. Default is ${DEFAULT-VALUE}.")
+    private boolean seriesAware;
+
+    @Option(names = {"--metrics-json"},
+            description = "Write a JSON summary of API calls, latencies, batch sizes, rate limiting, retries and failures to this file when the run ends. Use - to print it to the console.")
+    private File metricsJsonFile;
+
+    @Option(names = {"--metrics-prometheus"},
+            description = "Keep the same metrics in this file in the Prometheus text format. The file is updated every 10 seconds, e.g. for the textfile collector of the node exporter.")
+    private File metricsPrometheusFile;
+
+    @Option(names = {"--metrics-port"},
+            description = "Serve the metrics in the Prometheus text format on this port under /metrics while the tool runs. 0 does not serve them. Default is ${DEFAULT-VALUE}.")
+    private int metricsPort;
+
+    @Option(names = {"--metrics-host"},
+            description = "The address to serve the metrics on with --metrics-port, e.g. 0.0.0.0 for all interfaces. Default is the loopback address.")
+    private String metricsHost;
+
+    @Option(names = {"-o", "--output"},
+            description = "Write the line for each processed event to this file instead of the console.")
+    private File outputFile;
+
+    @Option(names = {"--format"},
+            description = "Format of the lines for processed events: ${COMPLETION-CANDIDATES}. NDJSON and CSV contain all properties of an event that were read. Default is ${DEFAULT-VALUE}.")
+    private EventOutput.Format outputFormat = EventOutput.Format.PLAIN;
+
+    @Option(names = {"-q", "--quiet"},
+            description = "Do not print a line for each processed event on the console. Default is ${DEFAULT-VALUE}.")
+    private boolean quiet;
+
+    @Option(names = {"--progress"},
+            description = "Print counters of the processed events every few seconds instead of a line for each event on the console. Default is ${DEFAULT-VALUE}.")
+    private boolean progress;
+
+    @Option(names = {"--journal"},
+            description = "Record the progress of touch, delete, move and removeColor in this file, so an interrupted run can be continued with --resume.")
+    private File journalFile;
+
+    @Option(names = {"--resume"},
+            description = "Continue the run recorded in this journal. Operations that are done are not repeated and the listing continues where it stopped. Progress is added to the same journal.")
+    private File resumeJournalFile;
+
+    @Option(names = {"--touch-strategy"},
+            description = "How touch and apply mark a calendar entry as changed: ${COMPLETION-CANDIDATES}. RENAME changes the summary and restores it with a second API call. EXTENDED_PROPERTY sets the private extended property " + TOUCH_PROPERTY + " to the time of the run with a single API call. Default is ${DEFAULT-VALUE}.")
+    private TouchStrategy touchStrategy = TouchStrategy.RENAME;
+
+    @Option(names = {"--plan"},
+            description = "Do not change the calendar but write the changes of touch, delete, move and removeColor to this plan file, together with the ETag of each event. Changes to events already in the plan are merged. Run apply to carry out the plan.")
+    private File planFile;
+
     private static class SearchOptions {
         @Option(names = {"-k", "--keyword"},
                 description = "Filters the events to process by this keyword.")
@@ -91,6 +264,38 @@ public class GoogleCalendarTools implements Callable<Integer> {
         @Option(names = {"--timed-events"},
                 description = "Process timed events (not all-day). Default is ${DEFAULT-VALUE}.")
         private boolean processTimedEvents = true;
+
+        @Option(names = {"--filter"}, paramLabel = "EXPRESSION", converter = FilterConverter.class,
+                description = "Process only events matching this expression of clauses like summary ~ \"^Standup\", attendee = a@example.com, color = 5, type = outOfOffice, property.NAME = VALUE, updated >= 2019-01-01, duration > 90m or text contains WORDS, combined with and, or, not and parentheses. Clauses the API can evaluate are passed on to it.")
+        private EventFilter filter;
+
+        private EventFilter combined;
+
+        /* The keyword, the filter and the kinds of events to process as a single filter. */
+        synchronized EventFilter getFilter() {
+            if (combined == null) {
+                combined = EventFilter.keyword(keyword)
+                        .and(filter != null ? filter : EventFilter.ALL);
+                if (!processAllDayEvents) {
+                    combined = combined.and(EventFilter.allDay(false));
+                }
+                if (!processTimedEvents) {
+                    combined = combined.and(EventFilter.allDay(true));
+                }
+            }
+            return combined;
+        }
+    }
+
+    private static class FilterConverter implements ITypeConverter<EventFilter> {
+        @Override
+        public EventFilter convert(String expression) {
+            try {
+                return EventFilter.parse(expression);
+            } catch (IllegalArgumentException e) {
+                throw new CommandLine.TypeConversionException(e.getMessage());
+            }
+        }
     }
 
     private static class DateRange {
@@ -103,12 +308,94 @@ public class GoogleCalendarTools implements Callable<Integer> {
         Date startDate;
     }
 
+    /**
+     * The state of processing one calendar: how far it is listed and how many of its events were
+     * found and submitted.
+     */
+    private static class CalendarRun {
+        private final String calendarId;
+        private final long startNanos = System.nanoTime();
+        private long listedNanos;
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        /* limits the operations waiting for or in a batch, null for a single calendar */
+        private Semaphore inFlight;
+        private String pageToken;
+        /* Start of the last event listed. */
+        private DateTime listedUntil;
+        private EventCache eventCache;
+        private ShardedEventLister shardedEventLister;
+        private SeriesResolver seriesResolver;
+        private int found;
+        private int submitted;
+
+        CalendarRun(String calendarId) {
+            this.calendarId = calendarId;
+        }
+    }
+
     private Calendar service;
-    private String pageToken;
-    private RateLimiter rateLimiter;
+    /* true while more than one calendar is processed */
+    private boolean multipleCalendars;
+    private ApiRateLimiter rateLimiter;
+    private Metrics metrics;
+    private EventOutput output;
+    private RunJournal journal;
+    private ChangePlan plan;
+    /* Value of the touch property written by this run, the same for retries. */
+    private final String touchTime = new DateTime(System.currentTimeMillis()).toStringRfc3339();
+    /* Start of the events to list when resuming, fixed for the whole run. */
+    private DateTime resumeFrom;
+    private MetricsExporter metricsExporter;
+    private BatchExecutor batchExecutor;
+    private BatchAccumulator batchAccumulator;
+    private SeriesResolver.Change seriesChange = SeriesResolver.Change.UPDATE;
+    private final EventListParser eventListParser = new EventListParser(JSON_FACTORY);
+    private HttpTransport httpTransport;
+    private ConnectionPool connectionPool;
+    /* Connections the pool had opened before the command, a server's pool is kept between them. */
+    private long connectionsOpenedBefore;
+    /* Root URL of the API, null for Google's. */
+    private String rootUrl;
+    private Credential credential;
+    /* The server running this command in serve mode, null otherwise. */
+    private CommandServer server;
+
+    public GoogleCalendarTools() {
+    }
+
+    /**
+     * Runs against the given transport with the given credential instead of Google's endpoints
+     * and the OAuth flow, e.g. against a local stand-in of the Calendar API.
+     */
+    GoogleCalendarTools(HttpTransport httpTransport, Credential credential) {
+        this.httpTransport = httpTransport;
+        this.credential = credential;
+    }
+
+    /**
+     * Runs against the API at the given root URL with the transport selected on the command line
+     * and the given credential, e.g. to compare the transports against a local server.
+     */
+    GoogleCalendarTools(String rootUrl, Credential credential) {
+        this.rootUrl = rootUrl;
+        this.credential = credential;
+    }
+
+    /**
+     * Runs a command sent to the server, with the transport, credential, rate limiter and event
+     * caches of the server.
+     */
+    GoogleCalendarTools(CommandServer server) {
+        this.httpTransport = server.getHttpTransport();
+        this.connectionPool = server.getConnectionPool();
+        this.credential = server.getCredential();
+        this.server = server;
+    }
 
     public static void main(String[] args) {
-        int exitCode = new CommandLine(new GoogleCalendarTools()).execute(args);
+        int exitCode = new CommandLine(new GoogleCalendarTools())
+                .setCaseInsensitiveEnumValuesAllowed(true).execute(args);
         System.exit(exitCode);
     }
 
@@ -117,14 +404,52 @@ public class GoogleCalendarTools implements Callable<Integer> {
         throw new CommandLine.ParameterException(spec.commandLine(), "Missing required subcommand");
     }
 
+    @Command(name = "serve",
+            description = "Keep the connection to the Google Calendar API, the authorization, the rate limiter and the event caches and run the commands sent with the client, until stopped with Ctrl-C.")
+    public void commandServe(
+            @Option(names = {"--port"}, defaultValue = "" + ServeClient.DEFAULT_PORT,
+                    description = "Local port to accept commands on. Default is ${DEFAULT-VALUE}.") int port) {
+        if (this.server != null) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "serve cannot be sent to a server.");
+        }
+        try {
+            HttpTransport httpTransport = newHttpTransport();
+            Credential credential = this.credential != null ? this.credential
+                    : getCredentials(httpTransport);
+            /* the rate limiter lives as long as the server, each command sets its metrics */
+            ApiRateLimiter rateLimiter = new ApiRateLimiter(this.rateLimit, this.rateLimitMode,
+                    this.minRateLimit, this.maxRateLimit, new Metrics());
+            CommandServer server = new CommandServer(httpTransport, this.connectionPool,
+                    credential, rateLimiter);
+            server.serve(port, new File(ServeClient.KEY_FILE_PATH),
+                    (workingDirectory, args) -> runSentCommand(server, workingDirectory, args));
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs a command sent to the server. Relative paths are resolved against the working
+     * directory of the client.
+     */
+    static int runSentCommand(CommandServer server, File workingDirectory, String[] args) {
+        return new CommandLine(new GoogleCalendarTools(server))
+                .setCaseInsensitiveEnumValuesAllowed(true)
+                .registerConverter(File.class, (path) -> new File(path).isAbsolute()
+                        ? new File(path) : new File(workingDirectory, path))
+                .execute(args);
+    }
+
     @Command(name = "listCalendars", description = "List all calendars of the user.")
     public void commandListCalendars() {
         System.out.println("Listing calendars..");
 
         initializeService();
-        do {
-            listCalendars();
-        } while (this.pageToken != null);
+        for (CalendarListEntry calendar : fetchCalendars()) {
+            System.out.printf("%s - %s\n", calendar.getSummary(), calendar.getId());
+        }
+        closeService();
     }
 
     @Command(name = "list",
@@ -134,63 +459,245 @@ public class GoogleCalendarTools implements Callable<Integer> {
                     description = "Show details of the events") boolean showDetails,
             @Mixin DateRange dateRange, @Mixin SearchOptions searchOptions) {
 
-        System.out.println("Listing calendar entries...");
+        statusConsole().println("Listing calendar entries...");
 
         initializeService();
-        do {
-            /*
-             * use the half of the batch size because two updates are needed to touch them
-             */
-            Set<Event> events = findEvents(dateRange, this.batchSize, searchOptions);
-            listEvents(events, showDetails);
-        } while (this.pageToken != null);
-        System.out.println("No more events to list.");
+        forEachCalendar((run) -> {
+            do {
+                List<EventRecord> events = findEvents(run, dateRange, searchOptions,
+                        showDetails ? EventRecord.ALL_FIELDS : BASIC_FIELDS);
+                listEvents(events, showDetails);
+            } while (run.pageToken != null);
+        });
+        closeService();
+        statusConsole().println("No more events to list.");
     }
 
     @Command(name = "touch",
             description = "Touch entries in the calender. This is useful to force syncing of older calendar entries to an Android device for example.")
     public void commandTouchEvents(@Mixin DateRange dateRange, @Mixin SearchOptions searchOptions) {
-        System.out.println("Touching calendar entries...");
+        statusConsole().println("Touching calendar entries...");
 
         initializeService();
-        do {
-            /*
-             * use the half of the batch size because two updates are needed to touch them
-             */
-            int maxResults = batchSize / 2;
-            Set<Event> events = findEvents(dateRange, maxResults, searchOptions);
-            touchEvents(events);
-        } while (this.pageToken != null);
-        System.out.println("No more events to touch.");
+        forEachCalendar((run) -> {
+            startJournal(run, "touch", (events) -> touchEvents(run, events));
+            do {
+                List<EventRecord> events = findEvents(run, dateRange, searchOptions, BASIC_FIELDS);
+                touchEvents(run, events);
+                checkpoint(run);
+            } while (run.pageToken != null);
+        });
+        finishBatches();
+        statusConsole().println("No more events to touch.");
     }
 
     @Command(name = "delete",
             description = "Delete entries from a calendar.")
     public void commandDeleteEvents(@Mixin DateRange dateRange,
             @Mixin SearchOptions searchOptions) {
-        System.out.println("Deleting calendar entries...");
+        statusConsole().println("Deleting calendar entries...");
+
+        initializeService();
+        this.seriesChange = SeriesResolver.Change.DELETE;
+        forEachCalendar((run) -> {
+            startJournal(run, "delete", (events) -> deleteEvents(run, events));
+            do {
+                List<EventRecord> events = findEvents(run, dateRange, searchOptions, BASIC_FIELDS);
+                deleteEvents(run, events);
+                checkpoint(run);
+            } while (run.pageToken != null);
+        });
+        finishBatches();
+        statusConsole().println("No more events to delete.");
+
+    }
 
+    @Command(name = "dedup",
+            description = "Delete duplicate entries from a calendar. Entries are duplicates when they agree in all properties of the key. One entry of each set of duplicates is kept.")
+    public void commandDedupEvents(@Mixin DateRange dateRange, @Mixin SearchOptions searchOptions,
+            @Option(names = {"--key"}, split = ",",
+                    description = "The properties duplicates agree in, any of ${COMPLETION-CANDIDATES}. Default is summary,start,end.") List<EventFingerprints.Key> keys,
+            @Option(names = {"--keep"}, defaultValue = "OLDEST",
+                    description = "The entry kept of a set of duplicates: ${COMPLETION-CANDIDATES}. FIRST keeps the one listed first. OLDEST and NEWEST keep the one changed least or most recently and list the date range twice. Default is ${DEFAULT-VALUE}.") Survivor survivor) {
+        statusConsole().println("Deleting duplicate calendar entries...");
+
+        if (this.seriesAware || this.journalFile != null || this.resumeJournalFile != null) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "dedup cannot be combined with --series or a journal.");
+        }
+        List<EventFingerprints.Key> key = keys != null ? keys : Arrays.asList(
+                EventFingerprints.Key.SUMMARY, EventFingerprints.Key.START,
+                EventFingerprints.Key.END);
+        initializeService();
+        forEachCalendar((run) -> {
+            EventFingerprints fingerprints = new EventFingerprints(key);
+            DuplicateFinder finder = new DuplicateFinder(fingerprints, survivor);
+            String fields = DEDUP_FIELDS + fingerprints.getFields();
+            if (finder.isRanking()) {
+                /* the first listing finds the survivor of each fingerprint */
+                do {
+                    finder.rank(findEvents(run, dateRange, searchOptions, fields));
+                } while (run.pageToken != null);
+                run.found = 0;
+            }
+            int duplicates = 0;
+            do {
+                List<EventRecord> found =
+                        finder.find(findEvents(run, dateRange, searchOptions, fields));
+                for (EventRecord event : finder.takeCollisions()) {
+                    this.output.status(String.format("* Not deleting %s, it only shares the "
+                            + "fingerprint of a duplicate.", describe(run, "entry", event)));
+                }
+                duplicates += found.size();
+                deleteEvents(run, found);
+            } while (run.pageToken != null);
+            this.output.status(String.format("* %s: %s duplicates of %s distinct entries.",
+                    run.calendarId, duplicates, fingerprints.size()));
+            if ((this.dryRun || this.plan != null) && finder.getUnverified() > 0) {
+                this.output.status(String.format("* %s duplicates were not compared with the "
+                        + "entry kept, only by fingerprint. Two different entries share one "
+                        + "with a chance of about 1 in %.0f.", finder.getUnverified(),
+                        finder.getCollisionOdds()));
+            }
+        });
+        finishBatches();
+        statusConsole().println("No more duplicates to delete.");
+    }
+
+    @Command(name = "export",
+            description = "Export entries of the calendar to a file, which import can read. Use --series to keep recurring events as series.")
+    public void commandExportEvents(@Mixin DateRange dateRange, @Mixin SearchOptions searchOptions,
+            @Parameters(paramLabel = "FILE", description = "The file to write.") File file,
+            @Option(names = {"--file-format"},
+                    description = "Format of the file: ${COMPLETION-CANDIDATES}. NDJSON holds an entry per line as JSON of the Calendar API. ICS is an iCalendar file. Default is ICS for a file ending with .ics, NDJSON otherwise.") EventFileWriter.Format fileFormat) {
+        statusConsole().println("Exporting calendar entries...");
+
+        EventFileWriter.Format format = EventFileWriter.Format.of(file, fileFormat);
+        /* NDJSON keeps every property of an event, which the cache does not hold */
+        String fields = format == EventFileWriter.Format.NDJSON ? EventListParser.FULL_EVENT
+                : EXPORT_FIELDS;
+        if (this.useCache && format == EventFileWriter.Format.NDJSON) {
+            this.output.status("* The cache does not hold all properties of an event, listing "
+                    + "them from the API instead.");
+        }
         initializeService();
-        do {
-            Set<Event> events = findEvents(dateRange, this.batchSize, searchOptions);
-            deleteEvents(events);
-        } while (this.pageToken != null);
-        System.out.println("No more events to delete.");
+        try (EventFileWriter writer = new EventFileWriter(file, format, JSON_FACTORY)) {
+            forEachCalendar((run) -> {
+                Map<String, EventRecord> series = new LinkedHashMap<>();
+                List<EventRecord> exceptions = new ArrayList<>();
+                do {
+                    List<EventRecord> events = findEvents(run, dateRange, searchOptions, fields);
+                    exportEvents(writer, events, series, exceptions);
+                } while (run.pageToken != null);
+                exportSeries(run, writer, series, exceptions);
+            });
+            this.output.status(String.format("* Exported %s calendar entries to %s.",
+                    writer.getWritten(), file));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        closeService();
+        statusConsole().println("No more events to export.");
+    }
 
+    @Command(name = "import",
+            description = "Import entries from a file written by export or an iCalendar file into the calendar. Entries keep their iCalUID, so an import can be repeated and only adds what is missing.")
+    public void commandImportEvents(@Mixin DateRange dateRange,
+            @Parameters(paramLabel = "FILE", description = "The file to read.") File file,
+            @Option(names = {"--file-format"},
+                    description = "Format of the file: ${COMPLETION-CANDIDATES}. Default is ICS for a file ending with .ics, NDJSON otherwise.") EventFileWriter.Format fileFormat,
+            @Option(names = {"--update-existing"},
+                    description = "Import entries again whose iCalUID is already in the calendar, which updates them. By default they are skipped. Default is ${DEFAULT-VALUE}.") boolean updateExisting) {
+        statusConsole().println("Importing calendar entries...");
+
+        if (this.plan != null || this.planFile != null || this.seriesAware
+                || this.journalFile != null || this.resumeJournalFile != null) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "import cannot be combined with --plan, --series or a journal.");
+        }
+        EventFileWriter.Format format = EventFileWriter.Format.of(file, fileFormat);
+        initializeService();
+        forEachCalendar((run) -> {
+            EventFingerprints existing =
+                    new EventFingerprints(EnumSet.of(EventFingerprints.Key.ICAL_UID));
+            if (!updateExisting) {
+                do {
+                    for (EventRecord event : findEvents(run, dateRange, new SearchOptions(),
+                            BASIC_FIELDS + existing.getFields())) {
+                        existing.put(existing.fingerprint(event), 0);
+                    }
+                } while (run.pageToken != null);
+                run.found = 0;
+            }
+            int skipped = 0;
+            /* the iCalUIDs of the series read and of those not yet imported */
+            Set<String> series = new HashSet<>();
+            Set<String> pendingSeries = new HashSet<>();
+            try (EventFileReader reader =
+                    new EventFileReader(file, format, this.eventListParser)) {
+                List<EventRecord> events = new ArrayList<>();
+                EventRecord event;
+                while ((event = reader.next()) != null) {
+                    if (!isImported(event, dateRange)) {
+                        this.output.event(EventOutput.Action.IGNORED, event);
+                        continue;
+                    }
+                    run.found++;
+                    boolean exception = event.getRecurringEventId() != null
+                            && series.contains(event.getICalUID());
+                    if (!exception) {
+                        event.setICalUID(getImportUid(event)).setOriginalStart(null);
+                    }
+                    if (event.getRecurrence() != null) {
+                        series.add(event.getICalUID());
+                    }
+                    if (existing.contains(existing.fingerprint(event))) {
+                        skipped++;
+                        continue;
+                    } else if (exception && pendingSeries.contains(event.getICalUID())) {
+                        /* the API only takes an exception once its series is imported */
+                        importEvents(run, events);
+                        events = new ArrayList<>();
+                        awaitSubmitted(run);
+                        pendingSeries.clear();
+                    } else if (event.getRecurrence() != null) {
+                        pendingSeries.add(event.getICalUID());
+                    }
+                    events.add(event);
+                    if (events.size() == LIST_PAGE_SIZE) {
+                        importEvents(run, events);
+                        events = new ArrayList<>();
+                    }
+                }
+                importEvents(run, events);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.output.status(String.format("* %s: %s entries already in the calendar skipped.",
+                    run.calendarId, skipped));
+        });
+        finishBatches();
+        statusConsole().println("No more events to import.");
     }
 
     @Command(name = "move", description = "Move entries from one calendar to another one.")
     public void commandMoveEvents(@Mixin DateRange dateRange, @Mixin SearchOptions searchOptions,
             @Option(names = {"-t", "--target-calendar-id"},
                     description = "The ID of the calendar to move events to when the move action is run.") String targetCalendarId) {
-        System.out.println("Moving calendar entries...");
+        statusConsole().println("Moving calendar entries...");
 
         initializeService();
-        do {
-            Set<Event> events = findEvents(dateRange, this.batchSize, searchOptions);
-            moveEvents(events, targetCalendarId);
-        } while (this.pageToken != null);
-        System.out.println("No more events to move.");
+        this.seriesChange = SeriesResolver.Change.MOVE;
+        forEachCalendar((run) -> {
+            startJournal(run, "move", (events) -> moveEvents(run, events, targetCalendarId));
+            do {
+                List<EventRecord> events = findEvents(run, dateRange, searchOptions, BASIC_FIELDS);
+                moveEvents(run, events, targetCalendarId);
+                checkpoint(run);
+            } while (run.pageToken != null);
+        });
+        finishBatches();
+        statusConsole().println("No more events to move.");
 
     }
 
@@ -198,7 +705,7 @@ public class GoogleCalendarTools implements Callable<Integer> {
     public void commandRemoveColor(@Mixin DateRange dateRange, @Mixin SearchOptions searchOptions,
             @Option(names = {"-c", "--color"},
                     description = "The HEX code of the color to remove. If not sepecified all entries (regradless of color) have the color information removed.") String color) {
-        System.out.println("Removing color information from calendar entries...");
+        statusConsole().println("Removing color information from calendar entries...");
 
         initializeService();
 
@@ -206,37 +713,166 @@ public class GoogleCalendarTools implements Callable<Integer> {
         if (color != null) {
             patternToRemove = Pattern.compile("<font color=\\\"#" + color + "\\\">●</font>");
         } else {
-            patternToRemove = Pattern.compile("<font color=\\\"#.*\\\">●</font>");
+            /* not .*, which would run to the last quote of the description */
+            patternToRemove = Pattern.compile("<font color=\\\"#[0-9A-Fa-f]*\\\">●</font>");
+        }
+        Pattern pattern = patternToRemove;
+        forEachCalendar((run) -> {
+            startJournal(run, "removeColor",
+                    (events) -> removeColorFromEvents(run, events, pattern));
+            do {
+                List<EventRecord> events =
+                        findEvents(run, dateRange, searchOptions, REMOVE_COLOR_FIELDS);
+                removeColorFromEvents(run, events, pattern);
+                checkpoint(run);
+            } while (run.pageToken != null);
+        });
+        finishBatches();
+        statusConsole().println("No more events to move.");
+
+    }
+
+    @Command(name = "apply",
+            description = "Carry out the changes of a plan written with --plan. A change is only made when the event was not changed since it was planned.")
+    public void commandApply(@Parameters(paramLabel = "PLAN",
+            description = "The plan file.") File planFile) {
+        statusConsole().println("Applying plan...");
+
+        if (this.planFile != null) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "--plan cannot be used with apply.");
+        }
+        ChangePlan changes;
+        try {
+            changes = ChangePlan.read(planFile, JSON_FACTORY);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        initializeService();
+        this.output.status(String.format("* Plan contains %s changes.", changes.size()));
+        /* the second call of a touch and the move after a patch depend on the first call */
+        Set<String> succeeded = ConcurrentHashMap.newKeySet();
+        this.batchExecutor.setListener(new BatchExecutor.Listener() {
+            @Override
+            public void succeeded(BatchOperation operation) {
+                succeeded.add(operation.getEvent().getId());
+            }
+
+            @Override
+            public void failed(BatchOperation operation, String reason) {
+            }
+        });
+        List<BatchOperation> operations = new ArrayList<>();
+        List<BatchOperation> followUps = new ArrayList<>();
+        try {
+            for (ChangePlan.Change change : changes.getChanges()) {
+                applyChange(change, operations, followUps);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        do {
-            Set<Event> events = findEvents(dateRange, this.batchSize, searchOptions);
-            removeColorFromEvents(events, patternToRemove);
-        } while (this.pageToken != null);
-        System.out.println("No more events to move.");
+        submit(null, operations);
+        this.batchAccumulator.flush();
+        this.batchExecutor.awaitCompletion();
+        List<BatchOperation> dependent = new ArrayList<>();
+        for (BatchOperation operation : followUps) {
+            if (succeeded.contains(operation.getEvent().getId())) {
+                dependent.add(operation);
+            }
+        }
+        submit(null, dependent);
+        finishBatches();
+        statusConsole().println("Plan applied.");
+    }
 
+    private EventOutput.Verbosity getVerbosity() {
+        return this.quiet ? EventOutput.Verbosity.QUIET
+                : this.progress ? EventOutput.Verbosity.PROGRESS : EventOutput.Verbosity.EVENTS;
     }
 
+    /* The first and last line of a command go where its status lines go. */
+    private PrintStream statusConsole() {
+        return EventOutput.statusConsole(this.outputFormat, getVerbosity(), this.outputFile);
+    }
 
     private void initializeService() {
+        if (this.seriesAware && (this.useCache || this.parallelListing > 1
+                || this.journalFile != null || this.resumeJournalFile != null)) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "--series cannot be combined with --cache, --parallel-listing or a journal.");
+        }
         try {
-            NetHttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+            HttpTransport httpTransport = newHttpTransport();
+            this.metrics = new Metrics();
+            if (this.connectionPool != null) {
+                this.connectionPool.setMetrics(this.metrics);
+                this.connectionsOpenedBefore = this.connectionPool.getConnectionsOpened();
+            }
+            this.output = new EventOutput(this.outputFormat, getVerbosity(), this.outputFile);
+            this.metricsExporter = new MetricsExporter(this.metrics, JSON_FACTORY,
+                    this.metricsJsonFile, this.metricsPrometheusFile, this.metricsHost,
+                    this.metricsPort, this.output);
+            this.rateLimiter = this.server != null ? this.server.getRateLimiter()
+                    : new ApiRateLimiter(this.rateLimit, this.rateLimitMode,
+                            this.minRateLimit, this.maxRateLimit, this.metrics);
+            if (this.server != null) {
+                this.rateLimiter.setMetrics(this.metrics);
+            }
+            this.rateLimiter.setOutput(this.output);
             RetryHttpInitializerWrapper httpRequestInitializer =
-                    new RetryHttpInitializerWrapper(getCredentials(httpTransport), 
-                            this.readTimeoutInMilliseconds);
-            this.service = new Calendar.Builder(httpTransport, JSON_FACTORY, httpRequestInitializer)
-                    .setApplicationName(APPLICATION_NAME).build();
-            this.rateLimiter = RateLimiter.create(this.rateLimit);
+                    new RetryHttpInitializerWrapper(
+                            this.credential != null ? this.credential
+                                    : getCredentials(httpTransport),
+                            this.readTimeoutInMilliseconds, this.connectTimeoutInMilliseconds,
+                            this.gzipRequests, this.rateLimiter, this.metrics, this.output);
+            Calendar.Builder builder =
+                    new Calendar.Builder(httpTransport, JSON_FACTORY, httpRequestInitializer)
+                            .setApplicationName(APPLICATION_NAME);
+            if (this.rootUrl != null) {
+                builder.setRootUrl(this.rootUrl);
+            }
+            this.service = builder.build();
+            /* the batch itself is timed and retried like any other request */
+            this.batchExecutor = new BatchExecutor(this.parallelBatches,
+                    () -> this.service.batch(httpRequestInitializer),
+                    httpRequestInitializer.getBatchPartInitializer(), this.rateLimiter,
+                    this.metrics, this.output);
+            this.batchAccumulator = new BatchAccumulator(this.batchExecutor, this.batchSize,
+                    this.batchLingerMillis);
+            if (this.planFile != null) {
+                this.plan = ChangePlan.open(this.planFile, JSON_FACTORY);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
         } catch (GeneralSecurityException | IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private Credential getCredentials(NetHttpTransport netHttpTransport) {
+    /* The transport selected with --transport, unless one was given. */
+    private HttpTransport newHttpTransport() throws GeneralSecurityException, IOException {
+        if (this.httpTransport != null) {
+            return this.httpTransport;
+        } else if (this.transport == Transport.APACHE) {
+            this.connectionPool = new ConnectionPool(this.maxConnections,
+                    TimeUnit.SECONDS.toMillis(this.keepAliveSeconds));
+            return this.connectionPool.getTransport();
+        }
+        return GoogleNetHttpTransport.newTrustedTransport();
+    }
+
+    private Credential getCredentials(HttpTransport httpTransport) {
+        if (this.clientCredentialsFile == null) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "Missing required option '--client-credentials=<clientCredentialsFile>'");
+        }
         try (InputStream in = new FileInputStream(this.clientCredentialsFile)) {
             GoogleClientSecrets clientSecrets =
                     GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
             GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-                    netHttpTransport, JSON_FACTORY, clientSecrets, SCOPES).setDataStoreFactory(
+                    httpTransport, JSON_FACTORY, clientSecrets, SCOPES).setDataStoreFactory(
                             new FileDataStoreFactory(new java.io.File(TOKENS_DIRECTORY_PATH)))
                             .setAccessType("offline").build();
             LocalServerReceiver receiver = new LocalServerReceiver.Builder().setPort(8888).build();
@@ -246,224 +882,719 @@ public class GoogleCalendarTools implements Callable<Integer> {
         }
     }
 
-    private void listCalendars() {
+    /* All entries of the calendar list, page by page. */
+    private List<CalendarListEntry> fetchCalendars() {
+        List<CalendarListEntry> calendars = new ArrayList<>();
         try {
-            rateLimit(1);
-
-            CalendarList calendars = this.service.calendarList().list().execute();
-            calendars.getItems().stream().forEach((calendar) -> System.out.printf("%s - %s\n",
-                    calendar.getSummary(), calendar.getId()));
+            String pageToken = null;
+            do {
+                rateLimit(1);
+                CalendarList page = this.service.calendarList().list().setPageToken(pageToken)
+                        .setFields("nextPageToken,items(id,summary)").execute();
+                if (page.getItems() != null) {
+                    calendars.addAll(page.getItems());
+                }
+                pageToken = page.getNextPageToken();
+            } while (pageToken != null);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return calendars;
     }
 
-    private void listEvents(Set<Event> events, boolean showDetails) {
-        events.stream().forEach((event) -> {
-            if (showDetails) {
-                try {
-                    System.out.println(event.toPrettyString());
-                } catch (IOException e) {
-                    e.printStackTrace();
+    /**
+     * The IDs of the calendars selected with -c, --calendar-regex and --all-calendars.
+     */
+    private List<String> selectCalendars() {
+        Set<String> selected = new LinkedHashSet<>();
+        if (this.calendarIds != null) {
+            selected.addAll(this.calendarIds);
+        }
+        if (this.calendarRegex != null || this.allCalendars) {
+            for (CalendarListEntry calendar : fetchCalendars()) {
+                if (this.allCalendars || this.calendarRegex.matcher(calendar.getId()).find()
+                        || (calendar.getSummary() != null
+                                && this.calendarRegex.matcher(calendar.getSummary()).find())) {
+                    selected.add(calendar.getId());
                 }
             }
-            System.out.printf("%s - %s\n", event.getSummary(), getStart(event));
-        });
+        } else if (selected.isEmpty()) {
+            selected.add("primary");
+        }
+        return new ArrayList<>(selected);
     }
 
-    private void touchEvents(Set<Event> events) {
-        JsonBatchCallback<Event> batchCallback = new JsonBatchCallback<Event>() {
-            public void onSuccess(Event event, HttpHeaders responseHeaders) {
+    /**
+     * Runs the command for each selected calendar. Several calendars are processed concurrently
+     * and share the rate limit and the batches, each with a limit on the operations it may have
+     * queued. A report of all calendars follows at the end.
+     */
+    private void forEachCalendar(Consumer<CalendarRun> command) {
+        List<String> calendars = selectCalendars();
+        if (calendars.isEmpty()) {
+            this.output.status("* No calendar selected.");
+            return;
+        }
+        this.multipleCalendars = calendars.size() > 1;
+        if (this.multipleCalendars
+                && (this.journalFile != null || this.resumeJournalFile != null)) {
+            throw new CommandLine.ParameterException(spec.commandLine(),
+                    "A journal can only be used with a single calendar.");
+        }
+        if (!this.multipleCalendars) {
+            runCalendar(new CalendarRun(calendars.get(0)), command);
+            return;
+        }
+        this.output.status(String.format("* Processing %s calendars, %s at a time.",
+                calendars.size(), this.parallelCalendars));
+        ExecutorService workers = BatchExecutor.newWorkerPool(this.parallelCalendars, "calendar");
+        Semaphore running = new Semaphore(this.parallelCalendars);
+        List<CalendarRun> runs = new ArrayList<>();
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (String calendarId : calendars) {
+                CalendarRun run = new CalendarRun(calendarId);
+                run.inFlight = new Semaphore(Math.max(1, this.calendarConcurrency), true);
+                runs.add(run);
+                running.acquireUninterruptibly();
+                results.add(workers.submit(() -> {
+                    try {
+                        runCalendar(run, command);
+                    } finally {
+                        running.release();
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                    : new RuntimeException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        /* the report waits for the operations of all calendars */
+        this.batchAccumulator.flush();
+        this.batchExecutor.awaitCompletion();
+        for (CalendarRun run : runs) {
+            this.output.status(String.format(
+                    "* %s: %s found, %s submitted, %s succeeded, %s failed, listed in %ss.",
+                    run.calendarId, run.found, run.submitted, run.succeeded.get(),
+                    run.failed.get(), TimeUnit.NANOSECONDS.toSeconds(run.listedNanos)));
+        }
+    }
 
-            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-                throw new RuntimeException("API Call failed due to: " + e);
+    private void runCalendar(CalendarRun run, Consumer<CalendarRun> command) {
+        try {
+            command.accept(run);
+        } finally {
+            run.listedNanos = System.nanoTime() - run.startNanos;
+            if (run.shardedEventLister != null) {
+                run.shardedEventLister.close();
             }
-        };
+        }
+    }
 
-        BatchRequest batchRequest = this.service.batch();
+    private void listEvents(List<EventRecord> events, boolean showDetails) {
+        for (EventRecord event : events) {
+            if (showDetails) {
+                this.output.details(event);
+            }
+            this.output.event(EventOutput.Action.LIST, event);
+        }
+    }
+
+    private void touchEvents(CalendarRun run, List<EventRecord> events) {
+        List<BatchOperation> operations = new ArrayList<>();
 
         try {
-            for (Event event : events) {
-                Event patch = new Event();
-                patch.setSummary(event.getSummary() + " touch");
-                System.out.printf("Touching %s  %s (%s)\n", event.getSummary(), getStart(event),
-                        event.getId());
-                this.service.events().patch(calendarId, event.getId(), patch).queue(batchRequest,
-                        batchCallback);
-                patch.setSummary(event.getSummary());
-                this.service.events().patch(calendarId, event.getId(), patch).queue(batchRequest,
-                        batchCallback);
-            }
-            if (this.dryRun) {
-                System.out.println("* Dry-run requested. Not executing API calls");
-            } else {
-                rateLimit(events.size() * 2);
-                batchRequest.execute();
+            for (EventRecord event : events) {
+                this.output.event(EventOutput.Action.TOUCH, event);
+                if (this.plan != null) {
+                    this.plan.touch(run.calendarId, event);
+                    continue;
+                }
+                operations.add(new BatchOperation(event, describe(run, "Touching", event),
+                        touch(run.calendarId, event.getId(), event.getSummary())));
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        submit(run, operations);
     }
 
-    private void deleteEvents(Set<Event> events) {
-        JsonBatchCallback<Void> batchCallback = new JsonBatchCallback<Void>() {
-            public void onSuccess(Void nothing, HttpHeaders responseHeaders) {
-            }
+    private void deleteEvents(CalendarRun run, List<EventRecord> events) {
+        List<BatchOperation> operations = new ArrayList<>();
 
-            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-                throw new RuntimeException("API Call failed due to: " + e);
+        try {
+            for (EventRecord event : events) {
+                List<String> recurrence = run.seriesResolver != null
+                        ? run.seriesResolver.getTruncatedRecurrence(event.getId()) : null;
+                if (recurrence != null) {
+                    this.output.event(EventOutput.Action.TRUNCATE, event);
+                    operations.add(new BatchOperation(event, describe(run, "Truncating", event),
+                            this.service.events().patch(run.calendarId, event.getId(),
+                                    new Event().setRecurrence(recurrence))));
+                    continue;
+                }
+                this.output.event(EventOutput.Action.DELETE, event);
+                if (this.plan != null) {
+                    this.plan.delete(run.calendarId, event);
+                    continue;
+                }
+                operations.add(new BatchOperation(event, describe(run, "Deleting", event),
+                        this.service.events().delete(run.calendarId, event.getId())));
             }
-        };
-
-        BatchRequest batchRequest = this.service.batch();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        submit(run, operations);
+    }
 
+    /*
+     * With --series the series are held back until their cancelled instances are known, and their
+     * exceptions with them, so an import finds each series before its exceptions.
+     */
+    private void exportEvents(EventFileWriter writer, List<EventRecord> events,
+            Map<String, EventRecord> series, List<EventRecord> exceptions) {
         try {
-            for (Event event : events) {
-                System.out.printf("Deleting %s  %s (%s)\n", event.getSummary(), getStart(event),
-                        event.getId());
-                this.service.events().delete(calendarId, event.getId()).queue(batchRequest,
-                        batchCallback);
-            }
-            if (this.dryRun) {
-                System.out.println("* Dry-run requested. Not executing API calls");
-            } else {
-                rateLimit(events.size());
-                batchRequest.execute();
+            for (EventRecord event : events) {
+                if (event.isCancelled()) {
+                    continue;
+                } else if (this.seriesAware && event.getRecurrence() != null) {
+                    series.put(event.getId(), event);
+                    continue;
+                } else if (series.containsKey(event.getRecurringEventId())) {
+                    exceptions.add(event);
+                    continue;
+                }
+                this.output.event(EventOutput.Action.EXPORT, event);
+                writer.write(event);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void moveEvents(Set<Event> events, String targetCalendarId) {
-        JsonBatchCallback<Event> batchCallback = new JsonBatchCallback<Event>() {
-            public void onSuccess(Event event, HttpHeaders responseHeaders) {
+    /* The series held back with their cancelled instances as EXDATE, then their exceptions. */
+    private void exportSeries(CalendarRun run, EventFileWriter writer,
+            Map<String, EventRecord> series, List<EventRecord> exceptions) {
+        if (series.isEmpty()) {
+            return;
+        }
+        Map<String, List<EventRecord>> cancelled = new HashMap<>();
+        for (EventRecord instance : run.seriesResolver.takeCancelledExceptions()) {
+            cancelled.computeIfAbsent(instance.getRecurringEventId(), (id) -> new ArrayList<>())
+                    .add(instance);
+        }
+        try {
+            for (EventRecord event : series.values()) {
+                this.output.event(EventOutput.Action.EXPORT, event);
+                writer.writeSeries(event,
+                        cancelled.getOrDefault(event.getId(), Collections.emptyList()));
             }
-
-            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-                throw new RuntimeException("API Call failed due to: " + e);
+            for (EventRecord event : exceptions) {
+                this.output.event(EventOutput.Action.EXPORT, event);
+                writer.write(event);
             }
-        };
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Entries of the file within the date range, a series when it starts before its end. */
+    private static boolean isImported(EventRecord event, DateRange dateRange) {
+        return !event.isCancelled() && event.getStart() != null
+                && event.getStartMillis() < dateRange.endDate.getTime()
+                && (event.getRecurrence() != null
+                        || event.getEndMillis() > dateRange.startDate.getTime()
+                        || event.getStartMillis() >= dateRange.startDate.getTime());
+    }
+
+    /*
+     * The instances of a series share its iCalUID. Unless their series is imported as well, they
+     * are imported as entries of their own. Entries without one get a UID from their properties,
+     * which stays the same on a second run.
+     */
+    private static String getImportUid(EventRecord event) {
+        if (event.getRecurringEventId() != null && event.getId() != null) {
+            return event.getId() + IMPORT_UID_SUFFIX;
+        } else if (event.getICalUID() != null) {
+            return event.getICalUID();
+        }
+        return Long.toHexString(IMPORT_UID_KEY.fingerprint(event)) + IMPORT_UID_SUFFIX;
+    }
 
-        BatchRequest batchRequest = this.service.batch();
+    private void importEvents(CalendarRun run, List<EventRecord> events) {
+        List<BatchOperation> operations = new ArrayList<>();
 
         try {
-            for (Event event : events) {
-                System.out.printf("Moving %s  %s (%s)\n", event.getSummary(), getStart(event),
-                        event.getId());
-                this.service.events().move(this.calendarId, event.getId(), targetCalendarId)
-                        .queue(batchRequest, batchCallback);
-            }
-            if (this.dryRun) {
-                System.out.println("* Dry-run requested. Not executing API calls");
-            } else {
-                rateLimit(events.size());
-                batchRequest.execute();
+            for (EventRecord event : events) {
+                this.output.event(EventOutput.Action.IMPORT, event);
+                /* an exception is matched to its series by iCalUID and original start */
+                Event imported = (event.getEvent() != null ? event.getEvent() : event.toEvent())
+                        .setId(null).setEtag(null).setRecurringEventId(null).setUpdated(null)
+                        .setICalUID(event.getICalUID());
+                if (event.getOriginalStart() == null) {
+                    imported.setOriginalStartTime(null);
+                }
+                if (imported.getEnd() == null) {
+                    /* an iCalendar entry may end with its start, the API needs an end */
+                    imported.setEnd(imported.getStart());
+                }
+                operations.add(new BatchOperation(event, describe(run, "Importing", event),
+                        this.service.events().calendarImport(run.calendarId, imported)
+                                .setConferenceDataVersion(1).setSupportsAttachments(true)));
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        submit(run, operations);
     }
 
-    private void removeColorFromEvents(Set<Event> events, Pattern patternToRemove) {
-        JsonBatchCallback<Event> batchCallback = new JsonBatchCallback<Event>() {
-            public void onSuccess(Event event, HttpHeaders responseHeaders) {
-            }
+    private void moveEvents(CalendarRun run, List<EventRecord> events,
+            String targetCalendarId) {
+        List<BatchOperation> operations = new ArrayList<>();
 
-            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-                throw new RuntimeException("API Call failed due to: " + e);
+        try {
+            for (EventRecord event : events) {
+                this.output.event(EventOutput.Action.MOVE, event);
+                if (this.plan != null) {
+                    this.plan.move(run.calendarId, event, targetCalendarId);
+                    continue;
+                }
+                operations.add(new BatchOperation(event, describe(run, "Moving", event),
+                        this.service.events().move(run.calendarId, event.getId(),
+                                targetCalendarId)));
             }
-        };
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        submit(run, operations);
+    }
 
-        BatchRequest batchRequest = this.service.batch();
+    private void removeColorFromEvents(CalendarRun run, List<EventRecord> events,
+            Pattern patternToRemove) {
+        List<BatchOperation> operations = new ArrayList<>();
 
         try {
-            for (Event event : events) {
+            for (EventRecord event : events) {
                 String existingDescription = event.getDescription();
-                if (existingDescription == null) {
+                if (existingDescription == null || !existingDescription.contains("●</font>")) {
+                    /* no need to run the pattern */
                     continue;
                 }
                 String descriptionWithoutColor =
                         patternToRemove.matcher(existingDescription).replaceFirst("");
+                if (descriptionWithoutColor.equals(existingDescription)) {
+                    /* no color to remove */
+                    continue;
+                }
+                this.output.event(EventOutput.Action.REMOVE_COLOR, event);
+                if (this.plan != null) {
+                    this.plan.patch(run.calendarId, event, "description",
+                            descriptionWithoutColor.length() != 0 ? descriptionWithoutColor
+                                    : null);
+                    continue;
+                }
+                /* an empty description is cleared explicitly, a plain null would be left out */
                 Event patch = new Event();
-                patch.setDescription(
-                        descriptionWithoutColor.length() != 0 ? descriptionWithoutColor : null);
-                System.out.printf("Removing color from %s  %s (%s)\n", event.getSummary(),
-                        getStart(event), event.getId());
-                this.service.events().patch(calendarId, event.getId(), patch).queue(batchRequest,
-                        batchCallback);
-            }
-            if (this.dryRun) {
-                System.out.println("* Dry-run requested. Not executing API calls");
-            } else {
-                rateLimit(events.size());
-                batchRequest.execute();
+                patch.setDescription(descriptionWithoutColor.length() != 0
+                        ? descriptionWithoutColor : Data.NULL_STRING);
+                operations.add(new BatchOperation(event,
+                        describe(run, "Removing color from", event),
+                        this.service.events().patch(run.calendarId, event.getId(), patch)));
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        submit(run, operations);
     }
 
-    private void rateLimit(int permits) {
-        double waitTime = this.rateLimiter.acquire(permits);
-        if (waitTime > 0.0) {
-            System.out.printf("* API call rate limited by waiting %s\n", waitTime);
+    /**
+     * The calls that mark the event as changed with the touch strategy.
+     */
+    private CalendarRequest<?>[] touch(String calendarId, String eventId, String summary)
+            throws IOException {
+        if (this.touchStrategy == TouchStrategy.EXTENDED_PROPERTY) {
+            Event patch = new Event().setExtendedProperties(new Event.ExtendedProperties()
+                    .setPrivate(Collections.singletonMap(TOUCH_PROPERTY, this.touchTime)));
+            return new CalendarRequest<?>[] {
+                    this.service.events().patch(calendarId, eventId, patch)};
+        }
+        Event patch = new Event();
+        patch.setSummary(summary + " touch");
+        Event restore = new Event();
+        restore.setSummary(summary);
+        return new CalendarRequest<?>[] {this.service.events().patch(calendarId, eventId, patch),
+                this.service.events().patch(calendarId, eventId, restore)};
+    }
+
+    /**
+     * Adds the calls for a planned change, the first one conditional on the ETag of the planning.
+     * Calls that must wait for the first one to succeed go to the follow-ups.
+     */
+    private void applyChange(ChangePlan.Change change, List<BatchOperation> operations,
+            List<BatchOperation> followUps) throws IOException {
+        String calendarId = change.getCalendarId();
+        String eventId = change.getEventId();
+        EventRecord event = new EventRecord().setId(eventId).setSummary(change.getSummary())
+                .setStart(change.getStart() != null ? DateTime.parseRfc3339(change.getStart())
+                        : null);
+        CalendarRequest<?> request;
+        if (change.isDelete()) {
+            this.output.event(EventOutput.Action.DELETE, event);
+            request = this.service.events().delete(calendarId, eventId);
+        } else if (!change.getPatch().isEmpty()) {
+            Event patch = new Event();
+            for (Map.Entry<String, String> field : change.getPatch().entrySet()) {
+                patch.set(field.getKey(),
+                        field.getValue() != null ? field.getValue() : Data.NULL_STRING);
+            }
+            this.output.event(EventOutput.Action.PATCH, event);
+            request = this.service.events().patch(calendarId, eventId, patch);
+        } else if (change.isTouch()) {
+            this.output.event(EventOutput.Action.TOUCH, event);
+            CalendarRequest<?>[] touch = touch(calendarId, eventId, change.getSummary());
+            request = touch[0];
+            if (touch.length > 1) {
+                followUps.add(new BatchOperation(event, describe(null, "Restoring", event),
+                        Arrays.copyOfRange(touch, 1, touch.length)));
+            }
+        } else {
+            this.output.event(EventOutput.Action.MOVE, event);
+            request = this.service.events().move(calendarId, eventId, change.getMoveTo());
+        }
+        if (change.getEtag() != null) {
+            request.getRequestHeaders().setIfMatch(change.getEtag());
+        }
+        operations.add(new BatchOperation(event, describe(null,
+                "Applying " + (change.isDelete() ? "delete" : "change") + " to", event), request));
+        if (!change.isDelete() && !change.getPatch().isEmpty() && change.getMoveTo() != null) {
+            this.output.event(EventOutput.Action.MOVE, event);
+            followUps.add(new BatchOperation(event, describe(null, "Moving", event),
+                    this.service.events().move(calendarId, eventId, change.getMoveTo())));
         }
     }
 
-    private Set<Event> findEvents(DateRange dateRange, int maxResults,
-            SearchOptions searchOptions) {
-        Set<Event> found = new HashSet<>();
-        Events events;
+    /**
+     * Hands the operations to the batches. With several calendars each operation first takes a
+     * permit of its calendar, which is returned once the operation is done.
+     */
+    private void submit(CalendarRun run, List<BatchOperation> operations) {
+        if (this.plan != null) {
+            return;
+        } else if (this.dryRun) {
+            this.output.status("* Dry-run requested. Not executing API calls");
+            return;
+        }
+        for (BatchOperation operation : operations) {
+            if (this.journal != null) {
+                this.journal.submitted(operation);
+            }
+            if (run != null) {
+                run.submitted++;
+                operation.setCompletion((succeeded) -> {
+                    (succeeded ? run.succeeded : run.failed).incrementAndGet();
+                    if (run.inFlight != null) {
+                        run.inFlight.release();
+                    }
+                });
+                if (run.inFlight != null && !run.inFlight.tryAcquire()) {
+                    /* the permits may be held by operations still waiting for their batch */
+                    this.batchAccumulator.flush();
+                    acquireInFlight(run);
+                }
+            }
+            this.batchAccumulator.add(operation);
+        }
+        this.batchAccumulator.flushIfLingering();
+    }
 
+    /*
+     * Permits held by retries come back once the retries are sent, which no other submit may do
+     * while every calendar waits here. The operations of a batch failing as a whole never give
+     * back their permits.
+     */
+    private void acquireInFlight(CalendarRun run) {
         try {
-            Calendar.Events.List request = this.service.events().list(this.calendarId)
-                    .setMaxResults(maxResults).setTimeMin(new DateTime(dateRange.startDate))
-                    .setTimeMax(new DateTime(dateRange.endDate)).setPageToken(this.pageToken)
-                    .setOrderBy("starttime").setSingleEvents(true);
-            if (searchOptions != null) {
-                request.setQ(searchOptions.keyword);
+            while (!run.inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                this.batchExecutor.rethrowFailure();
+                this.batchExecutor.sendDueRetries();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Waits until the operations submitted for the calendar are done. */
+    private void awaitSubmitted(CalendarRun run) {
+        this.batchAccumulator.flush();
+        try {
+            while (run.succeeded.get() + run.failed.get() < run.submitted) {
+                this.batchExecutor.rethrowFailure();
+                this.batchExecutor.sendDueRetries();
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Opens the journal of the command and, when resuming, submits the operations that were not
+     * done in the earlier run with the given action.
+     */
+    private void startJournal(CalendarRun run, String command,
+            Consumer<List<EventRecord>> action) {
+        if (this.journalFile == null && this.resumeJournalFile == null) {
+            return;
+        } else if (this.dryRun || this.plan != null) {
+            this.output.status("* Only planning or dry-run requested. Not writing a journal.");
+            return;
+        }
+        try {
+            this.journal = this.resumeJournalFile != null
+                    ? RunJournal.resume(this.resumeJournalFile, command, run.calendarId,
+                            this.output)
+                    : RunJournal.create(this.journalFile, command, run.calendarId);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.batchExecutor.setListener(this.journal);
+        this.resumeFrom = this.journal.getListedUntil();
+        List<EventRecord> pending = this.journal.getPending();
+        if (!pending.isEmpty()) {
+            this.output.status(String.format(
+                    "* Submitting %s operations pending in the journal.", pending.size()));
+            action.accept(pending);
+        }
+    }
+
+    /* Called once the operations for a page of events are submitted. */
+    private void checkpoint(CalendarRun run) {
+        if (this.journal == null) {
+            return;
+        }
+        if (run.pageToken == null) {
+            this.journal.checkpoint(null);
+        } else if (run.listedUntil != null) {
+            this.journal.checkpoint(run.listedUntil);
+        }
+    }
+
+    private DateTime getTimeMin(DateRange dateRange) {
+        DateTime start = new DateTime(dateRange.startDate);
+        return this.resumeFrom != null && this.resumeFrom.getValue() > start.getValue()
+                ? this.resumeFrom : start;
+    }
+
+    private void finishBatches() {
+        if (this.plan != null) {
+            try {
+                this.plan.write();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.output.status(String.format(
+                    "* Wrote plan with %s changes to %s. Run apply to carry it out.",
+                    this.plan.size(), this.plan.getFile()));
+        }
+        this.batchAccumulator.flush();
+        this.batchExecutor.awaitCompletion();
+        this.output.flush();
+        this.batchExecutor.printSummary();
+        closeService();
+    }
+
+    /* Stops the worker threads, so the tools can run more than once in the same JVM. */
+    private void closeService() {
+        this.batchExecutor.close();
+        if (this.connectionPool != null) {
+            this.output.status(String.format("* %s HTTP connections opened, %s in the pool.",
+                    this.connectionPool.getConnectionsOpened() - this.connectionsOpenedBefore,
+                    this.connectionPool.getConnectionsInPool()));
+        }
+        this.output.close();
+        this.metricsExporter.close();
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        /* the pool of a server is kept for the next command */
+        if (this.connectionPool != null && this.server == null) {
+            this.connectionPool.close();
+        }
+    }
+
+    private String describe(CalendarRun run, String action, EventRecord event) {
+        String description = String.format("%s %s  %s (%s)", action, event.getSummary(),
+                event.getStart(), event.getId());
+        return this.multipleCalendars && run != null ? description + " in " + run.calendarId
+                : description;
+    }
+
+    private void rateLimit(int permits) {
+        this.rateLimiter.acquire(permits);
+    }
+
+    private List<EventRecord> findEvents(CalendarRun run, DateRange dateRange,
+            SearchOptions searchOptions, String fields) {
+        if (this.journal != null && this.journal.isListingComplete()) {
+            run.pageToken = null;
+            return new ArrayList<>();
+        }
+        if (this.plan != null && !fields.contains("etag")) {
+            /* changes are planned against the ETag of the event */
+            fields += ",etag";
+        }
+        if (this.seriesAware && !fields.contains("recurrence")) {
+            fields += ",recurrence,recurringEventId";
+        }
+        EventFilter filter = searchOptions != null ? searchOptions.getFilter() : EventFilter.ALL;
+        for (String field : filter.getFields()) {
+            if (!Arrays.asList(fields.split(",")).contains(field)) {
+                fields += "," + field;
+            }
+        }
+        if (this.useCache && !EventListParser.isFull(fields) && isCached(run, dateRange)) {
+            return findCachedEvents(run, dateRange, filter);
+        } else if (this.parallelListing > 1) {
+            return findShardedEvents(run, dateRange, filter, fields);
+        }
+
+        try {
+            Calendar.Events.List request = this.service.events().list(run.calendarId)
+                    .setMaxResults(LIST_PAGE_SIZE).setTimeMin(getTimeMin(dateRange))
+                    .setTimeMax(new DateTime(dateRange.endDate)).setPageToken(run.pageToken);
+            if (this.seriesAware) {
+                /* series and exceptions instead of instances, in no particular order */
+                request.setSingleEvents(false);
+            } else {
+                request.setOrderBy("starttime").setSingleEvents(true);
+            }
+            filter.restrict(request);
             rateLimit(1);
-            events = request.execute();
-            events.getItems().stream().filter((event) -> filterEvent(event, searchOptions))
-                    .forEach((event) -> {
-                        found.add(event);
-                        System.out.printf("%s (%s) (%s)\n", event.getSummary(), getStart(event),
-                                event.getId());
-                    });
-            this.pageToken = events.getNextPageToken();
-            System.out.printf("* Found %s calendar entries.\n", found.size());
-            return found;
+            EventPage page = this.eventListParser.execute(request, fields);
+            run.pageToken = page.getNextPageToken();
+            List<EventRecord> events = filterEvents(run, page, filter, "calendar entries");
+            return this.seriesAware ? resolveSeries(run, events, dateRange, filter, fields)
+                    : events;
         } catch (NumberFormatException | IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private DateTime getStart(Event event) {
-        DateTime start = event.getStart().getDateTime();
-        if (start == null) {
-            start = event.getStart().getDate();
+    private List<EventRecord> resolveSeries(CalendarRun run, List<EventRecord> events,
+            DateRange dateRange, EventFilter filter, String fields) throws IOException {
+        if (run.seriesResolver == null) {
+            run.seriesResolver = new SeriesResolver(this.service, this.eventListParser,
+                    this.rateLimiter, run.calendarId, getTimeMin(dateRange),
+                    new DateTime(dateRange.endDate), filter, fields, this.seriesChange,
+                    this.plan == null, this.output);
         }
-        return start;
+        List<EventRecord> resolved = run.seriesResolver.resolve(events);
+        if (run.pageToken == null) {
+            resolved.addAll(run.seriesResolver.takeExceptions());
+            this.output.status(String.format("* Processed recurring events: %s.",
+                    run.seriesResolver.getSummary()));
+        }
+        return resolved;
     }
 
-    private boolean filterEvent(Event event, SearchOptions searchOptions) {
-
-        if (!searchOptions.processAllDayEvents) {
-            if (event.getStart().getDateTime() == null) {
-                System.out.printf("Ignoring due to filter - %s  %s (%s)\n", event.getSummary(),
-                        getStart(event), event.getId());
-                return false;
+    /* Syncs the cache of the calendar and tells whether it holds the whole range. */
+    private boolean isCached(CalendarRun run, DateRange dateRange) {
+        try {
+            if (run.eventCache == null) {
+                Function<String, EventCache> newCache = (calendarId) -> new EventCache(
+                        new File(CACHE_DIRECTORY_PATH), calendarId, this.eventListParser);
+                /* in serve mode the caches stay loaded for the next command */
+                run.eventCache = this.server != null
+                        ? this.server.getEventCache(run.calendarId, newCache)
+                        : newCache.apply(run.calendarId);
+                run.eventCache.sync(this.service, this.rateLimiter, this.output);
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        if (!searchOptions.processTimedEvents) {
-            if (event.getStart().getDateTime() != null) {
-                System.out.printf("Ignoring due to filter - %s  %s (%s)\n", event.getSummary(),
-                        getStart(event), event.getId());
-                return false;
+        if (run.eventCache.covers(new DateTime(dateRange.endDate))) {
+            return true;
+        } else if (run.pageToken == null) {
+            this.output.status("* The event cache holds recurring events for the next two years "
+                    + "only. Listing from the API instead.");
+        }
+        return false;
+    }
+
+    private List<EventRecord> findCachedEvents(CalendarRun run, DateRange dateRange,
+            EventFilter filter) {
+        try {
+            EventPage page = run.eventCache.readPage(run.pageToken,
+                    getTimeMin(dateRange), new DateTime(dateRange.endDate),
+                    filter.getQuery(), LIST_PAGE_SIZE);
+            run.pageToken = page.getNextPageToken();
+            return filterEvents(run, page, filter, "cached calendar entries");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<EventRecord> findShardedEvents(CalendarRun run, DateRange dateRange,
+            EventFilter filter, String fields) {
+        try {
+            if (run.shardedEventLister == null) {
+                run.shardedEventLister = new ShardedEventLister(this.service,
+                        this.eventListParser, this.rateLimiter, run.calendarId,
+                        getTimeMin(dateRange), new DateTime(dateRange.endDate),
+                        filter, fields, this.parallelListing, this.output);
+            }
+            EventPage page = run.shardedEventLister.readPage(LIST_PAGE_SIZE);
+            run.pageToken = page.getNextPageToken();
+            if (run.pageToken == null) {
+                run.shardedEventLister.close();
+                run.shardedEventLister = null;
             }
+            return filterEvents(run, page, filter, "calendar entries");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<EventRecord> filterEvents(CalendarRun run, EventPage page,
+            EventFilter filter, String source) {
+        List<EventRecord> found = new ArrayList<>();
+        if (!page.getRecords().isEmpty()) {
+            run.listedUntil = page.getRecords().get(page.getRecords().size() - 1).getStart();
+        }
+        page.getRecords().stream().filter((event) -> filterEvent(event, filter))
+                .forEach((event) -> {
+                    found.add(event);
+                    this.output.event(EventOutput.Action.FOUND, event);
+                });
+        run.found += found.size();
+        this.output.status(String.format("* Found %s %s%s.", found.size(), source,
+                this.multipleCalendars ? " in " + run.calendarId : ""));
+        this.metrics.recordEventsProcessed(found.size());
+        this.output.publish();
+        return found;
+    }
+
+    private boolean filterEvent(EventRecord event, EventFilter filter) {
+        if (this.journal != null && this.journal.isHandled(event.getId())) {
+            /* submitted by an earlier run or earlier in this one */
+            return false;
+        }
+
+        if (!filter.test(event)) {
+            this.output.event(EventOutput.Action.IGNORED, event);
+            return false;
         }
         return true;
     }
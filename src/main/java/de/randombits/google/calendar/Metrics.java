@@ -0,0 +1,328 @@
+package de.randombits.google.calendar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+
+/**
+ * Metrics counts what happens during a run: API calls and their latency per endpoint, the size
+ * of batches, the time spent waiting for the rate limiter, quota errors, retries and failures by
+ * HTTP status and the number of events processed. All methods may be called from any thread.
+ * <p>
+ * The metrics can be written as a JSON summary or in the text format of Prometheus.
+ */
+public class Metrics {
+    private static final String PREFIX = "calendar_tools_";
+    private static final double[] LATENCY_BOUNDS_SECONDS =
+            {0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final double[] BATCH_SIZE_BOUNDS = {1, 5, 10, 20, 30, 40, 50};
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+    private final Histogram batchSizes = new Histogram(BATCH_SIZE_BOUNDS);
+    private final LongAdder rateLimiterWaits = new LongAdder();
+    private final DoubleAdder rateLimiterWaitSeconds = new DoubleAdder();
+    private final LongAdder rateLimitExceeded = new LongAdder();
+    private final Map<Integer, LongAdder> retries = new ConcurrentHashMap<>();
+    private final Map<Integer, LongAdder> batchItemFailures = new ConcurrentHashMap<>();
+    private final LongAdder eventsProcessed = new LongAdder();
+    private final LongAdder operationsSucceeded = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private volatile double rate;
+
+    /**
+     * Turns the path of an API URL into its URI template, e.g.
+     * calendars/{calendarId}/events/{eventId}, so calls are counted per endpoint and not per
+     * event.
+     */
+    public static String endpoint(String method, String path) {
+        if (path.startsWith("/batch/")) {
+            return method + " batch";
+        }
+        String[] parts = path.split("/");
+        StringBuilder template = new StringBuilder();
+        boolean inApi = false;
+        for (int i = 0; i < parts.length; i++) {
+            if (!inApi) {
+                inApi = parts[i].equals("v3");
+                continue;
+            }
+            if (template.length() > 0) {
+                template.append('/');
+            }
+            if (parts[i - 1].equals("calendars")) {
+                template.append("{calendarId}");
+            } else if (parts[i - 1].equals("events") && !parts[i].equals("import")
+                    && !parts[i].equals("quickAdd")) {
+                template.append("{eventId}");
+            } else {
+                template.append(parts[i]);
+            }
+        }
+        return method + " " + template;
+    }
+
+    /**
+     * Records a call which was sent on its own, together with its latency.
+     */
+    public void recordCall(String endpoint, long nanos) {
+        counter(calls, endpoint).increment();
+        latencies.computeIfAbsent(endpoint, (key) -> new Histogram(LATENCY_BOUNDS_SECONDS))
+                .observe(nanos / 1e9);
+    }
+
+    /**
+     * Records a call which was sent inside a batch. Its latency is the one of the batch.
+     */
+    public void recordBatchedCall(String endpoint) {
+        counter(calls, endpoint).increment();
+    }
+
+    public void recordBatchSize(int calls) {
+        batchSizes.observe(calls);
+    }
+
+    public void recordRateLimiterWait(double seconds) {
+        rateLimiterWaits.increment();
+        rateLimiterWaitSeconds.add(seconds);
+    }
+
+    public void recordRateLimitExceeded() {
+        rateLimitExceeded.increment();
+    }
+
+    public void recordRate(double rate) {
+        this.rate = rate;
+    }
+
+    public void recordRetry(int status) {
+        counter(retries, status).increment();
+    }
+
+    public void recordBatchItemFailure(int status) {
+        counter(batchItemFailures, status).increment();
+    }
+
+    public void recordEventsProcessed(int events) {
+        eventsProcessed.add(events);
+    }
+
+    public void recordOperationSucceeded() {
+        operationsSucceeded.increment();
+    }
+
+    public void recordConnectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void writeJson(OutputStream out, JsonFactory jsonFactory) throws IOException {
+        double elapsedSeconds = getElapsedSeconds();
+        JsonGenerator json = jsonFactory.createJsonGenerator(out, StandardCharsets.UTF_8);
+        json.enablePrettyPrint();
+        json.writeStartObject();
+        writeNumber(json, "elapsedSeconds", elapsedSeconds);
+        writeNumber(json, "eventsProcessed", eventsProcessed.sum());
+        writeNumber(json, "eventsPerSecond",
+                elapsedSeconds > 0 ? eventsProcessed.sum() / elapsedSeconds : 0);
+        writeNumber(json, "operationsSucceeded", operationsSucceeded.sum());
+        writeNumber(json, "connectionsOpened", connectionsOpened.sum());
+
+        json.writeFieldName("calls");
+        json.writeStartObject();
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(calls).entrySet()) {
+            json.writeFieldName(entry.getKey());
+            json.writeStartObject();
+            writeNumber(json, "count", entry.getValue().sum());
+            Histogram latency = latencies.get(entry.getKey());
+            if (latency != null) {
+                json.writeFieldName("latencySeconds");
+                latency.writeJson(json);
+            }
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+
+        json.writeFieldName("batchSize");
+        batchSizes.writeJson(json);
+
+        json.writeFieldName("rateLimiter");
+        json.writeStartObject();
+        writeNumber(json, "rate", rate);
+        writeNumber(json, "waits", rateLimiterWaits.sum());
+        writeNumber(json, "waitSeconds", rateLimiterWaitSeconds.sum());
+        writeNumber(json, "rateLimitExceeded", rateLimitExceeded.sum());
+        json.writeEndObject();
+
+        writeByStatus(json, "retriesByStatus", retries);
+        writeByStatus(json, "batchItemFailuresByStatus", batchItemFailures);
+        json.writeEndObject();
+        json.flush();
+    }
+
+    public void writePrometheus(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        writeHeader(out, "api_calls_total", "counter",
+                "API calls by endpoint. Calls inside a batch count for their own endpoint.");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(calls).entrySet()) {
+            out.printf("%sapi_calls_total{endpoint=\"%s\"} %s\n", PREFIX, entry.getKey(),
+                    entry.getValue().sum());
+        }
+        writeHeader(out, "http_request_duration_seconds", "histogram",
+                "Latency of HTTP requests by endpoint. A batch is one request.");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(latencies).entrySet()) {
+            entry.getValue().writePrometheus(out, "http_request_duration_seconds",
+                    "endpoint=\"" + entry.getKey() + "\",");
+        }
+        writeHeader(out, "batch_size_calls", "histogram", "API calls per batch.");
+        batchSizes.writePrometheus(out, "batch_size_calls", "");
+        writeHeader(out, "rate_limit", "gauge", "Current rate limit in calls per second.");
+        out.printf("%srate_limit %s\n", PREFIX, rate);
+        writeHeader(out, "rate_limiter_waits_total", "counter",
+                "Number of times the rate limiter made a call wait.");
+        out.printf("%srate_limiter_waits_total %s\n", PREFIX, rateLimiterWaits.sum());
+        writeHeader(out, "rate_limiter_wait_seconds_total", "counter",
+                "Time spent waiting for the rate limiter.");
+        out.printf("%srate_limiter_wait_seconds_total %s\n", PREFIX, rateLimiterWaitSeconds.sum());
+        writeHeader(out, "rate_limit_exceeded_total", "counter",
+                "Calls rejected by the API because the quota was exceeded.");
+        out.printf("%srate_limit_exceeded_total %s\n", PREFIX, rateLimitExceeded.sum());
+        writeHeader(out, "retries_total", "counter", "Retried calls by HTTP status.");
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(retries).entrySet()) {
+            out.printf("%sretries_total{status=\"%s\"} %s\n", PREFIX, entry.getKey(),
+                    entry.getValue().sum());
+        }
+        writeHeader(out, "batch_item_failures_total", "counter",
+                "Operations inside batches that failed permanently by HTTP status.");
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(batchItemFailures).entrySet()) {
+            out.printf("%sbatch_item_failures_total{status=\"%s\"} %s\n", PREFIX, entry.getKey(),
+                    entry.getValue().sum());
+        }
+        writeHeader(out, "events_processed_total", "counter", "Events found by the command.");
+        out.printf("%sevents_processed_total %s\n", PREFIX, eventsProcessed.sum());
+        writeHeader(out, "operations_succeeded_total", "counter", "Operations that succeeded.");
+        out.printf("%soperations_succeeded_total %s\n", PREFIX, operationsSucceeded.sum());
+        writeHeader(out, "http_connections_opened_total", "counter",
+                "HTTP connections opened, only counted for the Apache transport.");
+        out.printf("%shttp_connections_opened_total %s\n", PREFIX, connectionsOpened.sum());
+        writeHeader(out, "elapsed_seconds", "gauge", "Time since the run started.");
+        out.printf("%selapsed_seconds %s\n", PREFIX, getElapsedSeconds());
+        out.flush();
+    }
+
+    private double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static <K> LongAdder counter(Map<K, LongAdder> counters, K key) {
+        return counters.computeIfAbsent(key, (Function<K, LongAdder>) (k) -> new LongAdder());
+    }
+
+    private static void writeHeader(PrintWriter out, String name, String type, String help) {
+        out.printf("# HELP %s%s %s\n", PREFIX, name, help);
+        out.printf("# TYPE %s%s %s\n", PREFIX, name, type);
+    }
+
+    private static void writeNumber(JsonGenerator json, String name, double value)
+            throws IOException {
+        json.writeFieldName(name);
+        json.writeNumber(value);
+    }
+
+    private static void writeNumber(JsonGenerator json, String name, long value)
+            throws IOException {
+        json.writeFieldName(name);
+        json.writeNumber(value);
+    }
+
+    private static void writeByStatus(JsonGenerator json, String name,
+            Map<Integer, LongAdder> counters) throws IOException {
+        json.writeFieldName(name);
+        json.writeStartObject();
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            writeNumber(json, entry.getKey().toString(), entry.getValue().sum());
+        }
+        json.writeEndObject();
+    }
+
+    /**
+     * A histogram with fixed bucket bounds. The counts are cumulative when written, as
+     * Prometheus expects them.
+     */
+    private static class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int bucket = Arrays.binarySearch(bounds, value);
+            counts[bucket >= 0 ? bucket : -bucket - 1].increment();
+            sum.add(value);
+        }
+
+        long[] cumulativeCounts() {
+            long[] cumulative = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i].sum();
+                cumulative[i] = total;
+            }
+            return cumulative;
+        }
+
+        void writeJson(JsonGenerator json) throws IOException {
+            long[] cumulative = cumulativeCounts();
+            json.writeStartObject();
+            writeNumber(json, "count", cumulative[cumulative.length - 1]);
+            writeNumber(json, "sum", sum.sum());
+            json.writeFieldName("buckets");
+            json.writeStartObject();
+            for (int i = 0; i < bounds.length; i++) {
+                writeNumber(json, formatBound(bounds[i]), cumulative[i]);
+            }
+            writeNumber(json, "+Inf", cumulative[bounds.length]);
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+
+        void writePrometheus(PrintWriter out, String name, String labels) {
+            long[] cumulative = cumulativeCounts();
+            for (int i = 0; i < bounds.length; i++) {
+                out.printf("%s%s_bucket{%sle=\"%s\"} %s\n", PREFIX, name, labels,
+                        formatBound(bounds[i]), cumulative[i]);
+            }
+            out.printf("%s%s_bucket{%sle=\"+Inf\"} %s\n", PREFIX, name, labels,
+                    cumulative[bounds.length]);
+            String plainLabels =
+                    labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            out.printf("%s%s_sum%s %s\n", PREFIX, name, plainLabels, sum.sum());
+            out.printf("%s%s_count%s %s\n", PREFIX, name, plainLabels,
+                    cumulative[bounds.length]);
+        }
+
+        private static String formatBound(double bound) {
+            return bound == Math.rint(bound) ? Long.toString((long) bound)
+                    : Double.toString(bound);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package de.randombits.google.calendar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.google.api.client.json.JsonFactory;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * MetricsExporter makes the metrics available while the tool runs and after it finished: as a
+ * file in the Prometheus text format which is rewritten periodically, on an HTTP endpoint for
+ * Prometheus to scrape and as a JSON summary written when the run ends.
+ */
+public class MetricsExporter implements AutoCloseable {
+    private static final long UPDATE_INTERVAL_SECONDS = 10;
+    private static final String PROMETHEUS_CONTENT_TYPE =
+            "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Metrics metrics;
+    private final JsonFactory jsonFactory;
+    private final File jsonFile;
+    private final File prometheusFile;
+    private final EventOutput output;
+    private ScheduledExecutorService scheduler;
+    private HttpServer server;
+
+    /**
+     * @param jsonFile file for the JSON summary, - for the console or null for none
+     * @param prometheusFile file to keep the metrics in for Prometheus or null for none
+     * @param host address to serve the metrics on or null for the loopback address only
+     * @param port port to serve the metrics on under /metrics or 0 to not serve them
+     * @param output where the status lines go
+     */
+    public MetricsExporter(Metrics metrics, JsonFactory jsonFactory, File jsonFile,
+            File prometheusFile, String host, int port, EventOutput output) throws IOException {
+        this.metrics = metrics;
+        this.jsonFactory = jsonFactory;
+        this.jsonFile = jsonFile;
+        this.prometheusFile = prometheusFile;
+        this.output = output;
+        if (prometheusFile != null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.scheduler.scheduleAtFixedRate(this::writePrometheusFile,
+                    UPDATE_INTERVAL_SECONDS, UPDATE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        if (port > 0) {
+            InetSocketAddress address = host != null ? new InetSocketAddress(host, port)
+                    : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            this.server = HttpServer.create(address, 0);
+            this.server.createContext("/metrics", (exchange) -> {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+                    metrics.writePrometheus(writer);
+                }
+                exchange.getResponseHeaders().set("Content-Type", PROMETHEUS_CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.size());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    body.writeTo(out);
+                }
+            });
+            this.server.start();
+            output.status(String.format("* Serving metrics on http://%s:%s/metrics",
+                    address.getHostString(), port));
+        }
+    }
+
+    /**
+     * Stops updating the metrics and writes them one last time.
+     */
+    @Override
+    public void close() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            writePrometheusFile();
+        }
+        if (this.server != null) {
+            this.server.stop(0);
+        }
+        if (this.jsonFile == null) {
+            return;
+        }
+        try {
+            if (this.jsonFile.getPath().equals("-")) {
+                metrics.writeJson(System.out, jsonFactory);
+                System.out.println();
+            } else {
+                try (OutputStream out = new FileOutputStream(this.jsonFile)) {
+                    metrics.writeJson(out, jsonFactory);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Written to a temporary file first, so readers never see half of the metrics. */
+    private synchronized void writePrometheusFile() {
+        File temporary = new File(prometheusFile.getPath() + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary),
+                    StandardCharsets.UTF_8)) {
+                metrics.writePrometheus(writer);
+            }
+            Files.move(temporary.toPath(), prometheusFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            output.status(String.format("* Could not write metrics to %s: %s", prometheusFile,
+                    e));
+        }
+    }
+}
@@ -1,34 +1,80 @@
 package de.randombits.google.calendar;
 
 import java.io.IOException;
+import java.io.InputStream;
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.GZipEncoding;
 import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.ExponentialBackOff;
 
 /**
  * RetryHttpInitializerWrapper will automatically retry upon RPC failures, preserving the
- * auto-refresh behavior of the Google Credentials.
+ * auto-refresh behavior of the Google Credentials. Responses telling that the quota is exceeded
+ * are reported to the rate limiter and retried as well. Request bodies, above all those of
+ * batches, can be sent compressed with gzip.
  */
 public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final int MAX_ERROR_SIZE = 64 * 1024;
+
     private final Credential wrappedCredential;
     private int readTimeoutInMilliseconds;
+    private final int connectTimeoutInMilliseconds;
+    private final boolean gzipRequests;
+    private final ApiRateLimiter rateLimiter;
+    private final Metrics metrics;
+    private final EventOutput output;
+    /* A request is sent and its response intercepted on the same thread. */
+    private final ThreadLocal<Long> sentNanos = new ThreadLocal<>();
 
-    public RetryHttpInitializerWrapper(Credential wrappedCredential, 
-            int readTimeoutInMilliseconds) {
+    public RetryHttpInitializerWrapper(Credential wrappedCredential,
+            int readTimeoutInMilliseconds, int connectTimeoutInMilliseconds, boolean gzipRequests,
+            ApiRateLimiter rateLimiter, Metrics metrics, EventOutput output) {
         this.wrappedCredential = wrappedCredential;
         this.readTimeoutInMilliseconds = readTimeoutInMilliseconds;
+        this.connectTimeoutInMilliseconds = connectTimeoutInMilliseconds;
+        this.gzipRequests = gzipRequests;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.output = output;
     }
 
     public void initialize(HttpRequest request) {
         request.setReadTimeout(this.readTimeoutInMilliseconds);
+        request.setConnectTimeout(this.connectTimeoutInMilliseconds);
+        if (this.gzipRequests) {
+            request.setEncoding(new GZipEncoding());
+        }
         final HttpUnsuccessfulResponseHandler backoffHandler =
                 new HttpBackOffUnsuccessfulResponseHandler(new ExponentialBackOff());
-        request.setInterceptor(wrappedCredential);
+        final HttpUnsuccessfulResponseHandler rateLimitBackoffHandler =
+                new HttpBackOffUnsuccessfulResponseHandler(new ExponentialBackOff())
+                        .setBackOffRequired(
+                                HttpBackOffUnsuccessfulResponseHandler.BackOffRequired.ALWAYS);
+        request.setInterceptor((sending) -> {
+            wrappedCredential.intercept(sending);
+            sentNanos.set(System.nanoTime());
+        });
+        request.setResponseInterceptor((response) -> {
+            Long sent = sentNanos.get();
+            if (sent != null) {
+                HttpRequest sentRequest = response.getRequest();
+                metrics.recordCall(Metrics.endpoint(sentRequest.getRequestMethod(),
+                        sentRequest.getUrl().getRawPath()), System.nanoTime() - sent);
+            }
+            /* calls inside a batch are counted by the batch callbacks */
+            if (response.isSuccessStatusCode() && !isBatch(response.getRequest())) {
+                rateLimiter.onSuccess(1);
+            }
+        });
         request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
             public boolean handleResponse(final HttpRequest request, final HttpResponse response,
                     final boolean supportsRetry) throws IOException {
@@ -38,9 +84,18 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
                      * something specific to authentication, and no backoff is desired.
                      */
                     return true;
+                } else if (isRateLimitExceeded(response)) {
+                    rateLimiter.onRateLimitExceeded();
+                    if (rateLimitBackoffHandler.handleResponse(request, response, supportsRetry)) {
+                        metrics.recordRetry(response.getStatusCode());
+                        output.status("* Retrying after quota error " + request.getUrl());
+                        return true;
+                    }
+                    return false;
                 } else if (backoffHandler.handleResponse(request, response, supportsRetry)) {
                     /* Otherwise, we defer to the judgement of our internal backoff handler. */
-                    System.out.printf("* Retrying %s\n", request.getUrl().toString());
+                    metrics.recordRetry(response.getStatusCode());
+                    output.status("* Retrying " + request.getUrl());
                     return true;
                 } else {
                     return false;
@@ -49,4 +104,52 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
         });
         request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(new ExponentialBackOff()));
     }
+
+    /**
+     * The initializer for calls queued into a batch, applied after this one. BatchRequest runs
+     * the handlers of a failed call and sends it again right away if they ask for it, sleeping
+     * on the batch thread for the backoff and without taking permits from the rate limiter. So
+     * calls in a batch only keep the refresh of the credentials, retries are left to the
+     * BatchExecutor, which re-queues them into later batches.
+     */
+    public HttpRequestInitializer getBatchPartInitializer() {
+        return (request) -> request.setUnsuccessfulResponseHandler(wrappedCredential)
+                .setIOExceptionHandler(null);
+    }
+
+    private static boolean isBatch(HttpRequest request) {
+        return request.getUrl().getRawPath().startsWith("/batch/");
+    }
+
+    /**
+     * A 403 only means a quota error if the reason in the body says so. Bodies of calls inside a
+     * batch can be rewound so the batch callback still sees the error. Other bodies can only be
+     * read once, so a 403 that is not about the quota is thrown right here with its details.
+     */
+    private static boolean isRateLimitExceeded(HttpResponse response) throws IOException {
+        if (response.getStatusCode() == 429) {
+            return true;
+        } else if (response.getStatusCode() != 403) {
+            return false;
+        }
+        InputStream content = response.getContent();
+        if (content == null) {
+            return false;
+        }
+        if (content.markSupported()) {
+            content.mark(MAX_ERROR_SIZE);
+            try {
+                return ApiRateLimiter.isRateLimitExceeded(
+                        GoogleJsonResponseException.from(JSON_FACTORY, response).getDetails());
+            } finally {
+                content.reset();
+            }
+        }
+        GoogleJsonResponseException error =
+                GoogleJsonResponseException.from(JSON_FACTORY, response);
+        if (ApiRateLimiter.isRateLimitExceeded(error.getDetails())) {
+            return true;
+        }
+        throw error;
+    }
 }
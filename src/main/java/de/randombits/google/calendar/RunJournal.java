@@ -0,0 +1,328 @@
+package de.randombits.google.calendar;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import com.google.api.client.util.DateTime;
+
+/**
+ * RunJournal records the progress of a command in an append-only file, so an interrupted run can
+ * be resumed. Each line is one record with tab separated fields:
+ * <ul>
+ * <li>{@code R command calendarId} starts the journal,
+ * <li>{@code E id summary start description} an operation on the event was submitted,
+ * <li>{@code D id} the operation succeeded,
+ * <li>{@code F id reason} the operation failed permanently,
+ * <li>{@code C startMillis} all events starting before were listed and submitted, {@code C end}
+ * the listing is complete.
+ * </ul>
+ * Records are written to disk and synced in batches. Operations that were submitted but not
+ * recorded as done are submitted again on resume, so at most the operations of the last unsynced
+ * records are repeated.
+ */
+public class RunJournal implements BatchExecutor.Listener, AutoCloseable {
+    private static final int SYNC_RECORDS = 500;
+    private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final String NULL = "\\N";
+    private static final String LISTING_COMPLETE = "end";
+
+    private final File file;
+    private final FileOutputStream stream;
+    private final Writer writer;
+    private final Set<String> handled = new HashSet<>();
+    private final Map<String, EventRecord> pending = new LinkedHashMap<>();
+    private final Thread shutdownHook;
+    private int done;
+    private int failed;
+    private Long listedUntil;
+    private boolean listingComplete;
+    private int unsynced;
+    private long lastSync = System.nanoTime();
+
+    private RunJournal(File file, boolean append) throws IOException {
+        this.file = file;
+        this.stream = new FileOutputStream(file, append);
+        this.writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        /* keeps what was recorded when the run is stopped with Ctrl-C */
+        this.shutdownHook = new Thread(this::syncQuietly, "journal");
+        Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    }
+
+    /**
+     * Starts a new journal, replacing an existing file.
+     */
+    public static RunJournal create(File file, String command, String calendarId)
+            throws IOException {
+        RunJournal journal = new RunJournal(file, false);
+        journal.append("R", command, calendarId);
+        journal.sync();
+        return journal;
+    }
+
+    /**
+     * Reads the journal of an earlier run of the same command to continue it.
+     */
+    public static RunJournal resume(File file, String command, String calendarId,
+            EventOutput output) throws IOException {
+        List<String[]> records = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records.add(line.split("\t", -1));
+            }
+        }
+        if (records.isEmpty() || !records.get(0)[0].equals("R") || records.get(0).length < 3) {
+            throw new IllegalArgumentException(file + " is not a journal.");
+        }
+        String[] header = records.get(0);
+        if (!header[1].equals(command) || !unescape(header[2]).equals(calendarId)) {
+            throw new IllegalArgumentException(String.format(
+                    "%s is the journal of %s on calendar %s, not of %s on calendar %s.", file,
+                    header[1], unescape(header[2]), command, calendarId));
+        }
+        RunJournal journal = new RunJournal(file, true);
+        if (isCutOff(file)) {
+            /* new records start on a line of their own, not after the cut off one */
+            journal.writer.write('\n');
+        }
+        for (String[] record : records.subList(1, records.size())) {
+            journal.replay(record);
+        }
+        output.status(String.format(
+                "* Resuming from journal: %s done, %s failed, %s pending, %s.", journal.done,
+                journal.failed, journal.pending.size(),
+                journal.listingComplete ? "listing complete"
+                        : journal.listedUntil != null
+                                ? "listing from " + new DateTime(journal.listedUntil)
+                                : "listing from the start"));
+        return journal;
+    }
+
+    /**
+     * Operations that were submitted but neither succeeded nor failed in the earlier run. Their
+     * events are not handed out by the listing again.
+     */
+    public synchronized List<EventRecord> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Whether an operation on the event was already submitted by this or an earlier run.
+     */
+    public synchronized boolean isHandled(String eventId) {
+        return handled.contains(eventId);
+    }
+
+    /**
+     * Start of the events to list next or null to list from the start of the date range.
+     */
+    public synchronized DateTime getListedUntil() {
+        return listedUntil != null ? new DateTime(listedUntil) : null;
+    }
+
+    public synchronized boolean isListingComplete() {
+        return listingComplete;
+    }
+
+    public synchronized void submitted(BatchOperation operation) {
+        EventRecord event = operation.getEvent();
+        handled.add(event.getId());
+        pending.put(event.getId(), event);
+        append("E", event.getId(), event.getSummary(),
+                event.getStart() != null ? event.getStart().toStringRfc3339() : null,
+                event.getDescription());
+    }
+
+    @Override
+    public synchronized void succeeded(BatchOperation operation) {
+        pending.remove(operation.getEvent().getId());
+        done++;
+        append("D", operation.getEvent().getId());
+    }
+
+    @Override
+    public synchronized void failed(BatchOperation operation, String reason) {
+        pending.remove(operation.getEvent().getId());
+        failed++;
+        append("F", operation.getEvent().getId(), reason);
+    }
+
+    /**
+     * Records that the events listed so far were submitted. The listing continues at the given
+     * start time on resume, or not at all when it is null.
+     */
+    public synchronized void checkpoint(DateTime listedUntil) {
+        if (listedUntil == null) {
+            this.listingComplete = true;
+            append("C", LISTING_COMPLETE);
+        } else {
+            this.listedUntil = listedUntil.getValue();
+            append("C", Long.toString(listedUntil.getValue()));
+        }
+        sync();
+    }
+
+    @Override
+    public synchronized void close() {
+        sync();
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            /* the JVM is already shutting down */
+        }
+    }
+
+    private static boolean isCutOff(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() == 0) {
+                return false;
+            }
+            in.seek(in.length() - 1);
+            return in.read() != '\n';
+        }
+    }
+
+    private void replay(String[] record) {
+        switch (record[0]) {
+            case "E":
+                if (record.length < 5) {
+                    /* the last line may be cut off by a crash */
+                    return;
+                }
+                String start = unescape(record[3]);
+                EventRecord event = new EventRecord().setId(unescape(record[1]))
+                        .setSummary(unescape(record[2]))
+                        .setStart(start != null ? DateTime.parseRfc3339(start) : null)
+                        .setDescription(unescape(record[4]));
+                handled.add(event.getId());
+                pending.put(event.getId(), event);
+                break;
+            case "D":
+                if (pending.remove(unescape(record[1])) != null) {
+                    done++;
+                }
+                break;
+            case "F":
+                if (pending.remove(unescape(record[1])) != null) {
+                    failed++;
+                }
+                break;
+            case "C":
+                if (record[1].equals(LISTING_COMPLETE)) {
+                    listingComplete = true;
+                } else if (!record[1].isEmpty()) {
+                    listedUntil = Long.parseLong(record[1]);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void append(String type, String... fields) {
+        try {
+            writer.write(type);
+            for (String field : fields) {
+                writer.write('\t');
+                writer.write(escape(field));
+            }
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write journal " + file, e);
+        }
+        if (++unsynced >= SYNC_RECORDS || System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS) {
+            sync();
+        }
+    }
+
+    private synchronized void sync() {
+        if (unsynced == 0) {
+            return;
+        }
+        try {
+            writer.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write journal " + file, e);
+        }
+        unsynced = 0;
+        lastSync = System.nanoTime();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            /* nothing left to do on shutdown */
+        }
+    }
+
+    static String escape(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String unescape(String value) {
+        if (value.equals(NULL)) {
+            return null;
+        }
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                unescaped.append(next == 't' ? '\t'
+                        : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,240 @@
+package de.randombits.google.calendar;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+
+/**
+ * SeriesResolver decides how the recurring series found by a listing without single events are
+ * processed. A series whose instances all lie within the date range is processed as a whole with
+ * one call on the series. A series ending within the range but starting before it can be
+ * truncated at the start of the range instead of being deleted instance by instance. Of all other
+ * series the instances within the range are listed and processed one by one.
+ * <p>
+ * Exceptions, instances changed on their own, are listed next to their series in no particular
+ * order. They are held back until the listing is complete and handed out unless they went with
+ * their series or were already handed out as one of its instances. Truncating a series removes
+ * its exceptions after the new end as well. Cancelled exceptions, deleted instances, are never
+ * handed out as events, export asks for them to exclude them from their series.
+ * <p>
+ * With a filter a series is neither deleted nor moved as a whole, since the listing does not tell
+ * whether the filter rejects one of its exceptions. Its instances are listed and filtered instead.
+ */
+public class SeriesResolver {
+
+    /**
+     * What the command does to an event. Exceptions are separate events for patches, but are
+     * moved and deleted together with their series.
+     */
+    public enum Change {
+        UPDATE, MOVE, DELETE
+    }
+
+    private static final int PAGE_SIZE = 2500;
+
+    private final Calendar service;
+    private final EventListParser parser;
+    private final ApiRateLimiter rateLimiter;
+    private final String calendarId;
+    private final DateTime timeMin;
+    private final DateTime timeMax;
+    private final EventFilter filter;
+    private final String fields;
+    private final Change change;
+    private final boolean truncate;
+    private final EventOutput output;
+
+    /* series whose exceptions are moved or deleted with them */
+    private final Set<String> coveredSeries = new HashSet<>();
+    private final Set<String> listedInstances = new HashSet<>();
+    private final Map<String, List<String>> truncatedSeries = new HashMap<>();
+    private final List<EventRecord> exceptions = new ArrayList<>();
+    private final List<EventRecord> cancelledExceptions = new ArrayList<>();
+    private int wholeSeries;
+    private int expandedSeries;
+
+    /**
+     * @param filter the filter the listed events passed, which the instances must pass as well
+     * @param truncate whether a series may be truncated when it is deleted
+     */
+    public SeriesResolver(Calendar service, EventListParser parser, ApiRateLimiter rateLimiter,
+            String calendarId, DateTime timeMin, DateTime timeMax, EventFilter filter,
+            String fields, Change change, boolean truncate, EventOutput output) {
+        this.service = service;
+        this.parser = parser;
+        this.rateLimiter = rateLimiter;
+        this.calendarId = calendarId;
+        this.timeMin = timeMin;
+        this.timeMax = timeMax;
+        this.filter = filter;
+        /* the query is checked on the instances, which the API does not search */
+        this.fields = filter.getQuery() != null ? fields + ",description,location" : fields;
+        this.change = change;
+        this.truncate = truncate && change == Change.DELETE;
+        this.output = output;
+    }
+
+    /**
+     * Replaces the series among the events by the series itself or its instances within the range
+     * and holds back the exceptions.
+     */
+    public List<EventRecord> resolve(List<EventRecord> events) throws IOException {
+        List<EventRecord> resolved = new ArrayList<>();
+        for (EventRecord event : events) {
+            if (event.getRecurrence() != null) {
+                resolveSeries(event, resolved);
+            } else if (event.getRecurringEventId() != null) {
+                (event.isCancelled() ? cancelledExceptions : exceptions).add(event);
+            } else {
+                resolved.add(event);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * The exceptions to process on their own, once the listing is complete.
+     */
+    public List<EventRecord> takeExceptions() {
+        List<EventRecord> remaining = new ArrayList<>();
+        for (EventRecord exception : exceptions) {
+            if (!listedInstances.contains(exception.getId())
+                    && !coveredSeries.contains(exception.getRecurringEventId())) {
+                remaining.add(exception);
+            }
+        }
+        exceptions.clear();
+        return remaining;
+    }
+
+    /**
+     * The cancelled instances of all series listed, once the listing is complete.
+     */
+    public List<EventRecord> takeCancelledExceptions() {
+        List<EventRecord> cancelled = new ArrayList<>(cancelledExceptions);
+        cancelledExceptions.clear();
+        return cancelled;
+    }
+
+    /**
+     * The recurrence to patch the series with instead of deleting it, or null.
+     */
+    public List<String> getTruncatedRecurrence(String seriesId) {
+        return truncatedSeries.get(seriesId);
+    }
+
+    public String getSummary() {
+        return String.format("%s series as a whole, %s truncated, %s instance by instance",
+                wholeSeries, truncatedSeries.size(), expandedSeries);
+    }
+
+    private void resolveSeries(EventRecord series, List<EventRecord> resolved)
+            throws IOException {
+        if (change != Change.UPDATE && filter != EventFilter.ALL) {
+            expand(series, resolved);
+            return;
+        }
+        boolean startsInRange = series.getStartMillis() >= timeMin.getValue();
+        boolean endsInRange = !hasInstancesAfterRange(series);
+        if (startsInRange && endsInRange) {
+            wholeSeries++;
+            if (change != Change.UPDATE) {
+                coveredSeries.add(series.getId());
+            }
+            resolved.add(series);
+        } else if (truncate && endsInRange && isTruncatable(series)) {
+            truncatedSeries.put(series.getId(), truncate(series));
+            coveredSeries.add(series.getId());
+            resolved.add(series);
+        } else {
+            expand(series, resolved);
+        }
+    }
+
+    /* The instances within the range, checked by the filter, as some of them are exceptions. */
+    private void expand(EventRecord series, List<EventRecord> resolved) throws IOException {
+        expandedSeries++;
+        String pageToken = null;
+        do {
+            Calendar.Events.Instances request = service.events()
+                    .instances(calendarId, series.getId()).setTimeMin(timeMin)
+                    .setTimeMax(timeMax).setMaxResults(PAGE_SIZE).setPageToken(pageToken);
+            rateLimiter.acquire(1);
+            EventPage page = parser.execute(request, fields);
+            for (EventRecord instance : page.getRecords()) {
+                listedInstances.add(instance.getId());
+                if (filter.test(instance) && filter.matchesQuery(instance)) {
+                    resolved.add(instance);
+                } else {
+                    output.event(EventOutput.Action.IGNORED, instance);
+                }
+            }
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+    }
+
+    private boolean hasInstancesAfterRange(EventRecord series) throws IOException {
+        Calendar.Events.Instances request = service.events()
+                .instances(calendarId, series.getId()).setTimeMin(timeMax).setMaxResults(1);
+        rateLimiter.acquire(1);
+        return !parser.execute(request, "id").getRecords().isEmpty();
+    }
+
+    /* Additional dates could still fall into the range. */
+    private static boolean isTruncatable(EventRecord series) {
+        int rules = 0;
+        for (String line : series.getRecurrence()) {
+            if (line.startsWith("RRULE:")) {
+                rules++;
+            } else if (line.startsWith("RDATE") || line.startsWith("EXRULE")) {
+                return false;
+            }
+        }
+        return rules == 1;
+    }
+
+    /*
+     * The rule ends with the last instance before the range. An all-day series ends on the day
+     * before the range starts in its time zone, or in the zone the range was given in.
+     */
+    private List<String> truncate(EventRecord series) {
+        String until;
+        if (series.isAllDay()) {
+            ZoneId zone = series.getTimeZone() != null ? ZoneId.of(series.getTimeZone())
+                    : ZoneId.systemDefault();
+            until = Instant.ofEpochMilli(timeMin.getValue()).atZone(zone).toLocalDate()
+                    .minusDays(1).format(DateTimeFormatter.BASIC_ISO_DATE);
+        } else {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            until = format.format(new Date(timeMin.getValue() - TimeUnit.SECONDS.toMillis(1)));
+        }
+        List<String> recurrence = new ArrayList<>();
+        for (String line : series.getRecurrence()) {
+            if (line.startsWith("RRULE:")) {
+                StringBuilder rule = new StringBuilder("RRULE:");
+                for (String part : line.substring("RRULE:".length()).split(";")) {
+                    if (!part.startsWith("UNTIL=") && !part.startsWith("COUNT=")) {
+                        rule.append(part).append(';');
+                    }
+                }
+                line = rule.append("UNTIL=").append(until).toString();
+            }
+            recurrence.add(line);
+        }
+        return recurrence;
+    }
+}
@@ -0,0 +1,99 @@
+package de.randombits.google.calendar;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+
+/**
+ * ServeClient sends a command to the tools running in serve mode and prints what the command
+ * writes. It takes the same arguments as the tools, optionally preceded by {@code --port}, and
+ * exits with the exit code of the command. It only uses the JDK, so it starts quickly.
+ * <p>
+ * A request is the key of the server, the working directory of the client, which relative paths
+ * are resolved against, and the arguments, one per line, followed by an empty line. The server
+ * answers with the output of the command, a NUL character and the exit code.
+ */
+public class ServeClient {
+    public static final int DEFAULT_PORT = 7341;
+    static final String KEY_FILE_PATH = "tokens/serve.key";
+    static final int END_OF_OUTPUT = 0;
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("--port")) {
+            port = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        try {
+            System.exit(send(port, new File(KEY_FILE_PATH), new File("").getAbsoluteFile(),
+                    Arrays.copyOfRange(args, first, args.length), System.out));
+        } catch (ConnectException | NoSuchFileException e) {
+            System.err.printf("No server is running on port %s. Start one with serve.\n", port);
+        } catch (IOException e) {
+            System.err.println("Could not run the command on the server: " + e.getMessage());
+        }
+        System.exit(1);
+    }
+
+    static int send(int port, File keyFile, File workingDirectory, String[] args,
+            OutputStream out) throws IOException {
+        String key = new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8)
+                .trim();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer request = new OutputStreamWriter(socket.getOutputStream(),
+                    StandardCharsets.UTF_8);
+            request.write(key + "\n");
+            request.write(workingDirectory.getAbsolutePath() + "\n");
+            for (String arg : args) {
+                if (arg.isEmpty() || arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0) {
+                    throw new IOException("Arguments must not be empty or contain line breaks.");
+                }
+                request.write(arg + "\n");
+            }
+            request.write("\n");
+            request.flush();
+
+            InputStream response = new BufferedInputStream(socket.getInputStream());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = response.read(buffer)) > 0) {
+                int end = indexOf(buffer, read, END_OF_OUTPUT);
+                if (end >= 0) {
+                    out.write(buffer, 0, end);
+                    out.flush();
+                    ByteArrayOutputStream exitCode = new ByteArrayOutputStream();
+                    exitCode.write(buffer, end + 1, read - end - 1);
+                    while ((read = response.read(buffer)) > 0) {
+                        exitCode.write(buffer, 0, read);
+                    }
+                    return Integer.parseInt(
+                            new String(exitCode.toByteArray(), StandardCharsets.UTF_8).trim());
+                }
+                out.write(buffer, 0, read);
+            }
+            throw new IOException("The server closed the connection before the command ended.");
+        }
+    }
+
+    private static int indexOf(byte[] buffer, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,204 @@
+package de.randombits.google.calendar;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+
+/**
+ * ShardedEventLister lists a date range as a number of time windows which are fetched
+ * concurrently. The first page of the whole range is used to estimate the event density and size
+ * the windows so each holds about one page of events. Windows are handed out in order, so the
+ * events still come in start-time order.
+ * <p>
+ * An event overlapping a window boundary is returned by the API for every window it overlaps. It
+ * is only handed out for the first of them.
+ */
+public class ShardedEventLister implements AutoCloseable {
+    private static final int PAGE_SIZE = 2500;
+    private static final int MAX_WINDOWS = 1000;
+    private static final long MIN_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+    /* All-day events carry their date as UTC midnight which may be off by the time zone. */
+    private static final long BOUNDARY_SLACK_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final Calendar service;
+    private final EventListParser parser;
+    private final ApiRateLimiter rateLimiter;
+    private final String calendarId;
+    private final EventFilter filter;
+    private final String fields;
+    private final long timeMin;
+    private final long timeMax;
+    private final int parallelism;
+    private final EventOutput output;
+    private final ExecutorService workers;
+
+    private final Deque<Window> pending = new ArrayDeque<>();
+    private final Map<String, Long> crossingEvents = new HashMap<>();
+    private boolean started;
+    private long nextWindowStart;
+    private long windowMillis;
+    private int windowNumber;
+    private List<EventRecord> current = new ArrayList<>();
+    private int position;
+
+    private static class Window {
+        private final long start;
+        private final long end;
+        private final Future<List<EventRecord>> records;
+
+        Window(long start, long end, Future<List<EventRecord>> records) {
+            this.start = start;
+            this.end = end;
+            this.records = records;
+        }
+    }
+
+    public ShardedEventLister(Calendar service, EventListParser parser,
+            ApiRateLimiter rateLimiter, String calendarId, DateTime timeMin, DateTime timeMax,
+            EventFilter filter, String fields, int parallelism, EventOutput output) {
+        this.service = service;
+        this.parser = parser;
+        this.rateLimiter = rateLimiter;
+        this.calendarId = calendarId;
+        this.timeMin = timeMin.getValue();
+        this.timeMax = timeMax.getValue();
+        this.filter = filter;
+        /* the end is needed to recognise events crossing a window boundary */
+        this.fields = Arrays.asList(fields.split(",")).contains("end") ? fields : fields + ",end";
+        this.parallelism = parallelism;
+        this.output = output;
+        this.workers = BatchExecutor.newWorkerPool(parallelism, "list");
+    }
+
+    /**
+     * Hands out the next events in start-time order. The page token of the returned page is null
+     * once all windows are exhausted.
+     */
+    public EventPage readPage(int maxResults) throws IOException {
+        if (!started) {
+            start();
+        }
+        List<EventRecord> records = new ArrayList<>();
+        while (records.size() < maxResults) {
+            if (position < current.size()) {
+                records.add(current.get(position++));
+            } else if (!pending.isEmpty()) {
+                nextWindow();
+            } else {
+                break;
+            }
+        }
+        boolean more = position < current.size() || !pending.isEmpty();
+        return new EventPage(records, more ? windowNumber + ":" + position : null, null);
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    private void start() throws IOException {
+        started = true;
+        /* nothing left to submit unless the range is split below */
+        nextWindowStart = timeMax;
+        EventPage probe = fetchPage(timeMin, timeMax, null);
+        if (probe.getNextPageToken() == null) {
+            pending.add(new Window(timeMin, timeMax,
+                    CompletableFuture.completedFuture(probe.getRecords())));
+            return;
+        }
+        List<EventRecord> records = probe.getRecords();
+        long lastStart =
+                records.isEmpty() ? timeMin : records.get(records.size() - 1).getStartMillis();
+        long cut = Math.min(timeMax, Math.max(lastStart, timeMin + MIN_WINDOW_MILLIS));
+        if (cut >= timeMax) {
+            /* too short to be split */
+            pending.add(new Window(timeMin, timeMax,
+                    workers.submit(() -> fetchWindow(timeMin, timeMax))));
+            return;
+        }
+        double eventsPerMilli = (double) records.size() / (cut - timeMin);
+        long remaining = timeMax - cut;
+        windowMillis = Math.max(MIN_WINDOW_MILLIS, (long) (PAGE_SIZE / eventsPerMilli));
+        windowMillis = Math.max(windowMillis, (remaining + MAX_WINDOWS - 1) / MAX_WINDOWS);
+        output.status(String.format(
+                "* Listing about %s time windows of %s hours with %s in parallel.",
+                (remaining + windowMillis - 1) / windowMillis,
+                TimeUnit.MILLISECONDS.toHours(windowMillis), parallelism));
+
+        pending.add(new Window(timeMin, cut, CompletableFuture.completedFuture(records)));
+        nextWindowStart = cut;
+        submitWindows();
+    }
+
+    private void submitWindows() {
+        while (pending.size() < parallelism * 2 && nextWindowStart < timeMax) {
+            long start = nextWindowStart;
+            long end = Math.min(timeMax, start + windowMillis);
+            pending.add(new Window(start, end, workers.submit(() -> fetchWindow(start, end))));
+            nextWindowStart = end;
+        }
+    }
+
+    private void nextWindow() throws IOException {
+        Window window = pending.removeFirst();
+        submitWindows();
+        List<EventRecord> records;
+        try {
+            records = window.records.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        crossingEvents.values().removeIf((end) -> end <= window.start - BOUNDARY_SLACK_MILLIS);
+        current = new ArrayList<>(records.size());
+        for (EventRecord record : records) {
+            if (crossingEvents.containsKey(record.getId())) {
+                continue;
+            }
+            current.add(record);
+            if (record.getEndMillis() > window.end - BOUNDARY_SLACK_MILLIS) {
+                crossingEvents.put(record.getId(), record.getEndMillis());
+            }
+        }
+        position = 0;
+        windowNumber++;
+    }
+
+    private List<EventRecord> fetchWindow(long start, long end) throws IOException {
+        List<EventRecord> records = new ArrayList<>();
+        String pageToken = null;
+        do {
+            EventPage page = fetchPage(start, end, pageToken);
+            records.addAll(page.getRecords());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return records;
+    }
+
+    private EventPage fetchPage(long start, long end, String pageToken) throws IOException {
+        Calendar.Events.List request = service.events().list(calendarId).setMaxResults(PAGE_SIZE)
+                .setTimeMin(new DateTime(start)).setTimeMax(new DateTime(end))
+                .setPageToken(pageToken).setOrderBy("starttime").setSingleEvents(true);
+        filter.restrict(request);
+        rateLimiter.acquire(1);
+        return parser.execute(request, fields);
+    }
+}
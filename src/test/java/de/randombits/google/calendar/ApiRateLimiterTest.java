@@ -0,0 +1,101 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Collections;
+import org.junit.Test;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+
+public class ApiRateLimiterTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void keepsAFixedRate() {
+        ApiRateLimiter limiter = new ApiRateLimiter(10, ApiRateLimiter.Mode.FIXED, 1, 5,
+                new Metrics());
+
+        limiter.onSuccess(100);
+        assertEquals(10, limiter.getRate(), DELTA);
+        limiter.onRateLimitExceeded();
+        assertEquals(10, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void startsAdaptiveRatesWithinTheBounds() {
+        assertEquals(5, new ApiRateLimiter(10, ApiRateLimiter.Mode.ADAPTIVE, 1, 5,
+                new Metrics()).getRate(), DELTA);
+        assertEquals(2, new ApiRateLimiter(1, ApiRateLimiter.Mode.ADAPTIVE, 2, 5,
+                new Metrics()).getRate(), DELTA);
+    }
+
+    @Test
+    public void raisesTheRateAdditivelyUpToTheMaximum() {
+        ApiRateLimiter limiter = new ApiRateLimiter(10, ApiRateLimiter.Mode.ADAPTIVE, 1, 12,
+                new Metrics());
+
+        /* one second of calls at the current rate gains one call per second */
+        limiter.onSuccess(10);
+        assertEquals(11, limiter.getRate(), DELTA);
+        limiter.onSuccess(1000);
+        assertEquals(12, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void halvesTheRateOncePerBurstOfQuotaErrors() {
+        ApiRateLimiter limiter = new ApiRateLimiter(10, ApiRateLimiter.Mode.ADAPTIVE, 3, 20,
+                new Metrics());
+
+        limiter.onRateLimitExceeded();
+        limiter.onRateLimitExceeded();
+        limiter.onRateLimitExceeded();
+
+        assertEquals(5, limiter.getRate(), DELTA);
+    }
+
+    @Test
+    public void recordsIntoTheMetricsOfTheCurrentCommand() {
+        ApiRateLimiter limiter = new ApiRateLimiter(10, ApiRateLimiter.Mode.ADAPTIVE, 1, 20,
+                new Metrics());
+        Metrics metrics = new Metrics();
+
+        limiter.setMetrics(metrics);
+        limiter.onRateLimitExceeded();
+
+        StringWriter prometheus = new StringWriter();
+        metrics.writePrometheus(prometheus);
+        assertTrue(prometheus.toString(),
+                prometheus.toString().contains("calendar_tools_rate_limit 5.0\n"));
+        assertTrue(prometheus.toString(), prometheus.toString().contains(
+                "calendar_tools_rate_limit_exceeded_total 1\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAMinimumAboveTheMaximum() {
+        new ApiRateLimiter(10, ApiRateLimiter.Mode.ADAPTIVE, 6, 5, new Metrics());
+    }
+
+    @Test
+    public void tellsQuotaErrors() {
+        assertTrue(ApiRateLimiter.isRateLimitExceeded(error(429, null)));
+        assertTrue(ApiRateLimiter.isRateLimitExceeded(error(403, "rateLimitExceeded")));
+        assertTrue(ApiRateLimiter.isRateLimitExceeded(error(403, "userRateLimitExceeded")));
+        assertFalse(ApiRateLimiter.isRateLimitExceeded(error(403, "forbidden")));
+        assertFalse(ApiRateLimiter.isRateLimitExceeded(error(403, null)));
+        assertFalse(ApiRateLimiter.isRateLimitExceeded(error(503, "backendError")));
+        assertFalse(ApiRateLimiter.isRateLimitExceeded(null));
+    }
+
+    private static GoogleJsonError error(int code, String reason) {
+        GoogleJsonError error = new GoogleJsonError();
+        error.setCode(code);
+        if (reason != null) {
+            GoogleJsonError.ErrorInfo info = new GoogleJsonError.ErrorInfo();
+            info.setReason(reason);
+            error.setErrors(Collections.singletonList(info));
+        }
+        return error;
+    }
+}
@@ -0,0 +1,90 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Test;
+import com.google.api.services.calendar.CalendarRequest;
+
+public class BatchAccumulatorTest {
+    private final List<List<BatchOperation>> batches = new ArrayList<>();
+    /* records the batches instead of sending them */
+    private final BatchExecutor executor = new BatchExecutor(1, null, null, null, null, null) {
+        @Override
+        public void submit(List<BatchOperation> operations) {
+            batches.add(operations);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        executor.close();
+    }
+
+    @Test
+    public void packsOperationsIntoFullBatches() {
+        BatchAccumulator accumulator = new BatchAccumulator(executor, 50, 60000);
+
+        for (int i = 0; i < 120; i++) {
+            accumulator.add(operation(1));
+            accumulator.flushIfLingering();
+        }
+        assertEquals(Arrays.asList(50, 50), sizes());
+        accumulator.flush();
+        accumulator.flush();
+
+        assertEquals(Arrays.asList(50, 50, 20), sizes());
+    }
+
+    @Test
+    public void neverSplitsTheCallsOfAnOperation() {
+        BatchAccumulator accumulator = new BatchAccumulator(executor, 5, 60000);
+
+        accumulator.add(operation(2));
+        accumulator.add(operation(2));
+        accumulator.add(operation(2));
+        accumulator.add(operation(1));
+
+        assertEquals(Arrays.asList(2), sizes());
+        accumulator.flush();
+        assertEquals(Arrays.asList(2, 2), sizes());
+    }
+
+    @Test
+    public void limitsBatchesToTheCallsTheApiAccepts() {
+        BatchAccumulator accumulator = new BatchAccumulator(executor, 1000, 60000);
+
+        for (int i = 0; i < BatchExecutor.MAX_CALLS_PER_BATCH; i++) {
+            accumulator.add(operation(1));
+        }
+
+        assertEquals(Arrays.asList(BatchExecutor.MAX_CALLS_PER_BATCH), sizes());
+    }
+
+    @Test
+    public void sendsPartialBatchesOnceTheyLinger() {
+        new BatchAccumulator(executor, 50, 60000).add(operation(1));
+        BatchAccumulator lingering = new BatchAccumulator(executor, 50, 0);
+        lingering.add(operation(1));
+        assertTrue(batches.isEmpty());
+
+        lingering.flushIfLingering();
+
+        assertEquals(Arrays.asList(1), sizes());
+    }
+
+    private List<Integer> sizes() {
+        return batches.stream().map(List::size).collect(Collectors.toList());
+    }
+
+    /* An operation of the given number of calls, which are never sent. */
+    private static BatchOperation operation(int calls) {
+        return new BatchOperation(new EventRecord().setId("e"), "Touching e",
+                new CalendarRequest<?>[calls]);
+    }
+}
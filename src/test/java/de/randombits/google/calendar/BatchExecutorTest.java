@@ -0,0 +1,166 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.model.Event;
+
+public class BatchExecutorTest {
+    private static final int EVENTS = 120;
+
+    private final ApiRateLimiter rateLimiter = new ApiRateLimiter(1000,
+            ApiRateLimiter.Mode.FIXED, 1, 1000, new Metrics());
+    private final Queue<String> succeeded = new ConcurrentLinkedQueue<>();
+    private final Queue<String> failed = new ConcurrentLinkedQueue<>();
+    private EventOutput output;
+
+    @Before
+    public void setUp() throws IOException {
+        output = new EventOutput(EventOutput.Format.PLAIN, EventOutput.Verbosity.QUIET, null);
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+    }
+
+    @Test(timeout = 10000)
+    public void deletesEveryEvent() throws IOException {
+        FakeCalendarTransport transport = transport();
+        Calendar service = service(transport);
+
+        try (BatchExecutor executor = executor(service, 2)) {
+            for (List<BatchOperation> batch : deletes(service)) {
+                executor.submit(batch);
+            }
+            executor.awaitCompletion();
+        }
+
+        assertEquals(EVENTS, succeeded.size());
+        assertTrue(failed.isEmpty());
+        assertEquals(0, transport.getEventCount("primary"));
+        /* the list call and three batches */
+        assertEquals(4, transport.getHttpRequests());
+    }
+
+    @Test(timeout = 60000)
+    public void givesUpAfterFiveAttempts() throws IOException {
+        FakeCalendarTransport transport = transport();
+        Calendar service = service(transport);
+        List<BatchOperation> batch = deletes(service).get(0).subList(0, 3);
+        transport.setErrorRate(1.0);
+        long calls = transport.getApiCalls();
+
+        try (BatchExecutor executor = executor(service, 1)) {
+            executor.submit(batch);
+            executor.awaitCompletion();
+        }
+
+        assertTrue(succeeded.isEmpty());
+        assertEquals(3, failed.size());
+        for (String reason : failed) {
+            assertTrue(reason, reason.contains("503") && reason.endsWith("after 5 attempts)"));
+        }
+        /* every attempt is a single call, none is retried inside its batch */
+        assertEquals(15, transport.getApiCalls() - calls);
+        assertEquals(EVENTS, transport.getEventCount("primary"));
+    }
+
+    @Test(timeout = 10000)
+    public void rethrowsTheFailureOfAWholeBatch() throws IOException {
+        FakeCalendarTransport transport = new FakeCalendarTransport() {
+            @Override
+            protected LowLevelHttpRequest buildRequest(String method, String url) {
+                if (!url.contains("/batch")) {
+                    return super.buildRequest(method, url);
+                }
+                return new MockLowLevelHttpRequest(url).setResponse(new MockLowLevelHttpResponse()
+                        .setStatusCode(400).setContentType("application/json")
+                        .setContent("{\"error\":{\"code\":400,\"message\":\"Bad Request\"}}"));
+            }
+        };
+        transport.addCalendar("primary", "Primary").addEvents("primary", EVENTS,
+                DateTime.parseRfc3339("2000-01-01T00:00:00Z"),
+                DateTime.parseRfc3339("2010-01-01T00:00:00Z"));
+        Calendar service = service(transport);
+
+        try (BatchExecutor executor = executor(service, 1)) {
+            for (List<BatchOperation> batch : deletes(service)) {
+                executor.submit(batch);
+            }
+            executor.awaitCompletion();
+            fail("The failure of the batch was not rethrown.");
+        } catch (RuntimeException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+        }
+        assertEquals(EVENTS, transport.getEventCount("primary"));
+    }
+
+    private static FakeCalendarTransport transport() {
+        return new FakeCalendarTransport().addCalendar("primary", "Primary").addEvents("primary",
+                EVENTS, DateTime.parseRfc3339("2000-01-01T00:00:00Z"),
+                DateTime.parseRfc3339("2010-01-01T00:00:00Z"));
+    }
+
+    private static Calendar service(FakeCalendarTransport transport) {
+        return new Calendar.Builder(transport, JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test").build();
+    }
+
+    private BatchExecutor executor(Calendar service, int maxInFlight) {
+        Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+                .setAccessToken("token");
+        RetryHttpInitializerWrapper initializer = new RetryHttpInitializerWrapper(credential,
+                1000, 1000, false, rateLimiter, new Metrics(), output);
+        BatchExecutor executor = new BatchExecutor(maxInFlight,
+                () -> service.batch(initializer), initializer.getBatchPartInitializer(),
+                rateLimiter, new Metrics(), output);
+        executor.setListener(new BatchExecutor.Listener() {
+            @Override
+            public void succeeded(BatchOperation operation) {
+                succeeded.add(operation.getEvent().getId());
+            }
+
+            @Override
+            public void failed(BatchOperation operation, String reason) {
+                failed.add(reason);
+            }
+        });
+        return executor;
+    }
+
+    /* One delete per event, in batches of the maximum size. */
+    private static List<List<BatchOperation>> deletes(Calendar service) throws IOException {
+        List<List<BatchOperation>> batches = new ArrayList<>();
+        List<BatchOperation> batch = Collections.emptyList();
+        for (Event event : service.events().list("primary").setMaxResults(2500).execute()
+                .getItems()) {
+            if (batch.size() == BatchExecutor.MAX_CALLS_PER_BATCH || batches.isEmpty()) {
+                batch = new ArrayList<>();
+                batches.add(batch);
+            }
+            batch.add(new BatchOperation(new EventRecord().setId(event.getId()),
+                    "Deleting " + event.getId(), service.events().delete("primary",
+                            event.getId())));
+        }
+        return batches;
+    }
+}
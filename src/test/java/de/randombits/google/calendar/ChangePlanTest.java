@@ -0,0 +1,83 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+
+public class ChangePlanTest {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsMergedChanges() throws IOException {
+        File file = new File(folder.getRoot(), "plan.tsv");
+        ChangePlan plan = ChangePlan.open(file, JSON_FACTORY);
+        plan.touch("c1", event("a"));
+        plan.patch("c1", event("b"), "summary", "New\ttab");
+        plan.patch("c1", event("b"), "location", null);
+        plan.move("c1", event("b"), "c2");
+        plan.patch("c1", event("c"), "colorId", "3");
+        plan.delete("c1", event("c"));
+        plan.touch("c1", event("c"));
+        plan.move("c2", event("a"), "c3");
+        plan.write();
+
+        List<ChangePlan.Change> changes = ChangePlan.open(file, JSON_FACTORY).getChanges();
+
+        assertEquals(4, changes.size());
+        assertTrue(changes.get(0).isTouch());
+        assertEquals("\"a\"", changes.get(0).getEtag());
+        assertEquals("2019-05-01T10:00:00.000Z", changes.get(0).getStart());
+        assertEquals("Summary\nof a", changes.get(0).getSummary());
+        Map<String, String> patch = new LinkedHashMap<>();
+        patch.put("summary", "New\ttab");
+        patch.put("location", null);
+        assertEquals(patch, changes.get(1).getPatch());
+        assertEquals("c2", changes.get(1).getMoveTo());
+        assertFalse(changes.get(1).isTouch());
+        assertTrue(changes.get(2).isDelete());
+        assertTrue(changes.get(2).getPatch().isEmpty());
+        assertNull(changes.get(2).getMoveTo());
+        assertEquals("c2", changes.get(3).getCalendarId());
+        assertEquals("c3", changes.get(3).getMoveTo());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherFiles() throws IOException {
+        ChangePlan.read(write("# something else\n"), JSON_FACTORY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCutOffLines() throws IOException {
+        ChangePlan.read(write("# GoogleCalendarTools plan\nc1\ta\t\\N\n"), JSON_FACTORY);
+    }
+
+    private File write(String content) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static EventRecord event(String id) {
+        return new EventRecord().setId(id).setEtag("\"" + id + "\"")
+                .setSummary("Summary\nof " + id)
+                .setStart(DateTime.parseRfc3339("2019-05-01T10:00:00Z"));
+    }
+}
@@ -0,0 +1,117 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.BiFunction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.util.DateTime;
+
+public class CommandServerTest {
+    private static final DateTime FROM = DateTime.parseRfc3339("2000-01-01T00:00:00Z");
+    private static final DateTime TO = DateTime.parseRfc3339("2010-01-01T00:00:00Z");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeCalendarTransport transport = new FakeCalendarTransport()
+            .addCalendar("primary", "Primary").addEvents("primary", 50, FROM, TO);
+    private final CommandServer server = new CommandServer(transport, null,
+            new Credential(BearerToken.authorizationHeaderAccessMethod()).setAccessToken("token"),
+            new ApiRateLimiter(1000, ApiRateLimiter.Mode.FIXED, 1, 1000, new Metrics()));
+    private File keyFile;
+
+    @Test(timeout = 10000)
+    public void sendsTheOutputAndExitCodeOfTheCommand() throws IOException {
+        int port = start((workingDirectory, args) -> {
+            System.out.println("Arguments " + String.join(" ", args));
+            System.err.println("In " + workingDirectory);
+            return 3;
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(3, send(port, keyFile, out, "list", "-k", "a b"));
+
+        assertEquals("Arguments list -k a b\nIn " + folder.getRoot().getAbsolutePath() + "\n",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsAClientWithoutTheKey() throws IOException {
+        int port = start((workingDirectory, args) -> {
+            fail("The command was run.");
+            return 0;
+        });
+        File wrongKey = folder.newFile();
+        Files.write(wrongKey.toPath(), "0123".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            send(port, wrongKey, new ByteArrayOutputStream(), "list");
+            fail("The command was sent.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("closed the connection"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void resolvesRelativePathsAgainstTheClientDirectory() throws IOException {
+        int port = start((workingDirectory, args) ->
+                GoogleCalendarTools.runSentCommand(server, workingDirectory, args));
+
+        assertEquals(0, send(port, keyFile, new ByteArrayOutputStream(), "-q", "-c", "primary",
+                "export", "-s", "2000-01-01", "-e", "2010-01-01", "events.json"));
+
+        assertEquals(50, Files.readAllLines(new File(folder.getRoot(), "events.json").toPath(),
+                StandardCharsets.UTF_8).size());
+    }
+
+    /* The server keeps running on its daemon thread until the tests end. */
+    private int start(BiFunction<File, String[], Integer> command) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        keyFile = new File(folder.getRoot(), "serve.key");
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve(port, keyFile, command);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "serve-test");
+        thread.setDaemon(true);
+        thread.start();
+        return port;
+    }
+
+    private int send(int port, File key, ByteArrayOutputStream out, String... args)
+            throws IOException {
+        while (true) {
+            try {
+                if (keyFile.length() > 0) {
+                    return ServeClient.send(port, key, folder.getRoot(), args, out);
+                }
+            } catch (ConnectException e) {
+                /* not accepting yet */
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+}
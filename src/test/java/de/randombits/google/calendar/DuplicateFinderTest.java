@@ -0,0 +1,97 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import com.google.api.client.util.DateTime;
+
+public class DuplicateFinderTest {
+    private static final EnumSet<EventFingerprints.Key> KEYS =
+            EnumSet.of(EventFingerprints.Key.SUMMARY, EventFingerprints.Key.START);
+
+    @Test
+    public void keepsTheFirstEntry() {
+        DuplicateFinder finder = finder(GoogleCalendarTools.Survivor.FIRST);
+
+        assertFalse(finder.isRanking());
+        assertEquals(Arrays.asList("b", "c"), ids(finder.find(Arrays.asList(
+                event("a", "A", 2), event("b", "A", 1), event("x", "X", 1), event("c", "A", 3)))));
+        assertEquals(0, finder.getUnverified());
+    }
+
+    @Test
+    public void keepsTheOldestEntry() {
+        DuplicateFinder finder = finder(GoogleCalendarTools.Survivor.OLDEST);
+        List<EventRecord> page = Arrays.asList(event("a", "A", 2), event("b", "A", 1),
+                event("c", "A", 3));
+
+        assertTrue(finder.isRanking());
+        finder.rank(page);
+
+        assertEquals(Arrays.asList("a", "c"), ids(finder.find(page)));
+    }
+
+    @Test
+    public void keepsTheNewestEntryEvenIfItChangesInBetween() {
+        DuplicateFinder finder = finder(GoogleCalendarTools.Survivor.NEWEST);
+        finder.rank(Arrays.asList(event("a", "A", 2), event("b", "A", 1), event("c", "A", 3)));
+
+        /* c was updated again before the second listing */
+        assertEquals(Arrays.asList("a", "b"), ids(finder.find(Arrays.asList(
+                event("a", "A", 2), event("b", "A", 1), event("c", "A", 9)))));
+    }
+
+    @Test
+    public void comparesDuplicatesWithTheirSurvivorOnThePreviousPage() {
+        DuplicateFinder finder = finder(GoogleCalendarTools.Survivor.FIRST);
+        finder.find(Collections.singletonList(event("a", "A", 1)));
+
+        assertEquals(Collections.singletonList("b"),
+                ids(finder.find(Collections.singletonList(event("b", "A", 1)))));
+        assertEquals(0, finder.getUnverified());
+
+        finder.find(Collections.singletonList(event("x", "X", 1)));
+        assertEquals(Collections.singletonList("c"),
+                ids(finder.find(Collections.singletonList(event("c", "A", 1)))));
+        assertEquals(1, finder.getUnverified());
+    }
+
+    @Test
+    public void keepsEntriesThatOnlyShareTheFingerprint() {
+        /* every entry shares one fingerprint */
+        EventFingerprints colliding = new EventFingerprints(KEYS) {
+            @Override
+            public long fingerprint(EventRecord event) {
+                return 42;
+            }
+        };
+        DuplicateFinder finder = new DuplicateFinder(colliding,
+                GoogleCalendarTools.Survivor.FIRST);
+
+        assertEquals(Collections.singletonList("c"), ids(finder.find(Arrays.asList(
+                event("a", "A", 1), event("b", "B", 1), event("c", "A", 1)))));
+        assertEquals(Collections.singletonList("b"), ids(finder.takeCollisions()));
+        assertTrue(finder.takeCollisions().isEmpty());
+    }
+
+    private static DuplicateFinder finder(GoogleCalendarTools.Survivor survivor) {
+        return new DuplicateFinder(new EventFingerprints(KEYS), survivor);
+    }
+
+    private static EventRecord event(String id, String summary, int updated) {
+        return new EventRecord().setId(id).setSummary(summary)
+                .setStart(DateTime.parseRfc3339("2019-05-01T10:00:00Z"))
+                .setUpdated(new DateTime(updated * 1000L));
+    }
+
+    private static List<String> ids(List<EventRecord> events) {
+        return events.stream().map(EventRecord::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,134 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+
+public class EventCacheTest {
+    private static final DateTime FROM = DateTime.parseRfc3339("2000-01-01T00:00:00Z");
+    private static final DateTime TO = DateTime.parseRfc3339("2010-01-01T00:00:00Z");
+    private static final int EVENTS = 3000;
+    private static final int INSTANCES = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeCalendarTransport transport = new FakeCalendarTransport()
+            .addCalendar("primary", "Primary").addEvents("primary", EVENTS, FROM, TO)
+            .addSeries("primary", "s1", INSTANCES, DateTime.parseRfc3339("2005-01-01T10:00:00Z"));
+    private final Calendar service = new Calendar.Builder(transport,
+            JacksonFactory.getDefaultInstance(), null).setApplicationName("test").build();
+    private final EventListParser parser =
+            new EventListParser(JacksonFactory.getDefaultInstance());
+    private final ApiRateLimiter rateLimiter = new ApiRateLimiter(1000,
+            ApiRateLimiter.Mode.FIXED, 1, 1000, new Metrics());
+    private EventOutput output;
+
+    @Before
+    public void setUp() throws IOException {
+        output = new EventOutput(EventOutput.Format.PLAIN, EventOutput.Verbosity.QUIET, null);
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+    }
+
+    @Test
+    public void readsTheSyncedEventsInOrderOfTheirStart() throws IOException {
+        EventCache cache = sync();
+
+        List<EventRecord> events = readAll(cache, FROM, TO, null);
+
+        assertEquals(EVENTS + INSTANCES, events.size());
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(events.get(i - 1).getStartMillis() <= events.get(i).getStartMillis());
+        }
+        assertEquals(INSTANCES, events.stream().filter((e) -> "s1".equals(e.getRecurringEventId()))
+                .count());
+        assertFalse(events.stream().anyMatch((e) -> e.getId().equals("s1")));
+    }
+
+    @Test
+    public void seeksToTheStartOfTheRange() throws IOException {
+        EventCache cache = sync();
+        List<EventRecord> all = readAll(cache, FROM, TO, null);
+        DateTime timeMin = DateTime.parseRfc3339("2009-06-01T00:00:00Z");
+        DateTime timeMax = DateTime.parseRfc3339("2009-06-20T00:00:00Z");
+
+        List<EventRecord> range = readAll(cache, timeMin, timeMax, null);
+
+        assertFalse(range.isEmpty());
+        assertEquals(ids(all.stream().filter((e) -> e.getEndMillis() > timeMin.getValue()
+                && e.getStartMillis() < timeMax.getValue()).collect(Collectors.toList())),
+                ids(range));
+    }
+
+    @Test
+    public void searchesAllWordsOfTheKeyword() throws IOException {
+        EventCache cache = sync();
+
+        assertEquals(1, readAll(cache, FROM, TO, "event 1234").size());
+        assertEquals(5, readAll(cache, FROM, TO, "MOVED s1").size());
+    }
+
+    @Test
+    public void mergesChangesIntoTheCacheFile() throws IOException {
+        String deleted = readAll(sync(), FROM, TO, null).get(10).getId();
+        service.events().delete("primary", deleted).execute();
+        service.events().delete("primary", "s1").execute();
+
+        /* every sync starts from the file the previous one wrote */
+        EventCache cache = sync();
+
+        List<EventRecord> events = readAll(cache, FROM, TO, null);
+        assertEquals(EVENTS - 1, events.size());
+        assertFalse(events.stream().anyMatch((e) -> e.getId().equals(deleted)
+                || e.getRecurringEventId() != null));
+    }
+
+    @Test
+    public void coversTheSeriesForTwoYears() throws IOException {
+        EventCache cache = sync();
+        long now = System.currentTimeMillis();
+
+        assertTrue(cache.covers(new DateTime(now + TimeUnit.DAYS.toMillis(365))));
+        assertFalse(cache.covers(new DateTime(now + TimeUnit.DAYS.toMillis(3 * 365))));
+    }
+
+    private EventCache sync() throws IOException {
+        EventCache cache = new EventCache(folder.getRoot(), "primary", parser);
+        cache.sync(service, rateLimiter, output);
+        return cache;
+    }
+
+    private static List<EventRecord> readAll(EventCache cache, DateTime timeMin,
+            DateTime timeMax, String keyword) throws IOException {
+        List<EventRecord> events = new ArrayList<>();
+        String pageToken = null;
+        do {
+            EventPage page = cache.readPage(pageToken, timeMin, timeMax, keyword, 100);
+            events.addAll(page.getRecords());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return events;
+    }
+
+    private static List<String> ids(List<EventRecord> events) {
+        return events.stream().map(EventRecord::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,246 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventReminder;
+
+public class EventFileWriterTest {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final EventListParser parser = new EventListParser(JSON_FACTORY);
+
+    @Test
+    public void choosesFormatByFileName() {
+        assertEquals(EventFileWriter.Format.ICS,
+                EventFileWriter.Format.of(new File("a.ICS"), null));
+        assertEquals(EventFileWriter.Format.NDJSON,
+                EventFileWriter.Format.of(new File("a.json"), null));
+        assertEquals(EventFileWriter.Format.NDJSON,
+                EventFileWriter.Format.of(new File("a.ics"), EventFileWriter.Format.NDJSON));
+    }
+
+    @Test
+    public void roundTripsNdjson() throws IOException {
+        List<EventRecord> read = roundTrip(EventFileWriter.Format.NDJSON, timedEvent(),
+                allDayEvent());
+
+        assertEquals(2, read.size());
+        assertSame(timedEvent(), read.get(0));
+        assertEquals(Arrays.asList("a@x", "b@x"), read.get(0).getAttendees());
+        assertEquals(Collections.singletonMap("k", "v"), read.get(0).getPrivateProperties());
+        assertSame(allDayEvent(), read.get(1));
+        assertTrue(read.get(1).isAllDay());
+    }
+
+    @Test
+    public void keepsAllPropertiesOfAFullEventInNdjson() throws IOException {
+        Event full = timedEvent().toEvent().setTransparency("transparent")
+                .setReminders(new Event.Reminders().setUseDefault(false).setOverrides(
+                        Collections.singletonList(new EventReminder().setMethod("popup")
+                                .setMinutes(5))));
+        full.set("eventType", "focusTime");
+
+        Event read = roundTrip(EventFileWriter.Format.NDJSON,
+                EventRecord.of(full).setEvent(full)).get(0).getEvent();
+
+        assertEquals("transparent", read.getTransparency());
+        assertEquals(Integer.valueOf(5), read.getReminders().getOverrides().get(0).getMinutes());
+        assertEquals("focusTime", read.get("eventType"));
+        assertNull(read.getEtag());
+    }
+
+    @Test
+    public void roundTripsIcs() throws IOException {
+        List<EventRecord> read = roundTrip(EventFileWriter.Format.ICS, timedEvent(),
+                allDayEvent());
+
+        assertEquals(2, read.size());
+        assertSame(timedEvent(), read.get(0));
+        assertEquals("u1@x", read.get(0).getId());
+        assertSame(allDayEvent(), read.get(1));
+        assertTrue(read.get(1).isAllDay());
+    }
+
+    @Test
+    public void foldsLongIcsLinesAndUnfoldsThemAgain() throws IOException {
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            summary.append("Größe, Länge; ");
+        }
+        EventRecord event = timedEvent().setSummary(summary.toString());
+
+        File file = write(EventFileWriter.Format.ICS, event);
+        for (String line : new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)
+                .split("\r\n")) {
+            assertTrue(line, line.getBytes(StandardCharsets.UTF_8).length <= 75);
+        }
+        assertEquals(summary.toString(), read(EventFileWriter.Format.ICS, file).get(0)
+                .getSummary());
+    }
+
+    @Test
+    public void readsSeriesAndInstancesFromIcs() throws IOException {
+        EventRecord series = timedEvent().setRecurrence(
+                Collections.singletonList("RRULE:FREQ=DAILY;COUNT=5"));
+        EventRecord instance = timedEvent().setId("s1_20190502T080000Z")
+                .setRecurringEventId("s1").setSummary("Moved");
+
+        List<EventRecord> read = roundTrip(EventFileWriter.Format.ICS, series, instance);
+
+        assertEquals(series.getRecurrence(), read.get(0).getRecurrence());
+        assertNull(read.get(0).getRecurringEventId());
+        assertEquals("u1@x", read.get(1).getRecurringEventId());
+        assertEquals("u1@x_20190502T080000Z", read.get(1).getId());
+    }
+
+    @Test
+    public void excludesTheCancelledInstancesOfASeries() throws IOException {
+        EventRecord series = timedEvent().setRecurrence(
+                Collections.singletonList("RRULE:FREQ=DAILY;COUNT=5"));
+        EventRecord cancelled = new EventRecord().setId("e1_20190502T080000Z")
+                .setRecurringEventId("e1").setStatus("cancelled")
+                .setOriginalStart(DateTime.parseRfc3339("2019-05-02T10:00:00+02:00"));
+        File file = folder.newFile("series.ics");
+        try (EventFileWriter writer = new EventFileWriter(file, EventFileWriter.Format.ICS,
+                JSON_FACTORY)) {
+            writer.writeSeries(series, Collections.singletonList(cancelled));
+        }
+
+        assertEquals(Arrays.asList("RRULE:FREQ=DAILY;COUNT=5",
+                "EXDATE;TZID=Europe/Berlin:20190502T100000"),
+                read(EventFileWriter.Format.ICS, file).get(0).getRecurrence());
+    }
+
+    @Test
+    public void readsWindowsTimeZonesAndThoseOfTheFile() throws IOException {
+        List<EventRecord> read = read(EventFileWriter.Format.ICS, ics(
+                "BEGIN:VTIMEZONE", "TZID:India", "BEGIN:STANDARD", "TZOFFSETFROM:+0530",
+                "TZOFFSETTO:+0530", "END:STANDARD", "END:VTIMEZONE",
+                "BEGIN:VEVENT", "UID:u1", "DTSTART;TZID=W. Europe Standard Time:20190501T100000",
+                "END:VEVENT",
+                "BEGIN:VEVENT", "UID:u2", "DTSTART;TZID=India:20190501T100000", "END:VEVENT"));
+
+        assertEquals(DateTime.parseRfc3339("2019-05-01T10:00:00+02:00").getValue(),
+                read.get(0).getStartMillis());
+        assertEquals("Europe/Berlin", read.get(0).getTimeZone());
+        assertEquals(DateTime.parseRfc3339("2019-05-01T10:00:00+05:30").getValue(),
+                read.get(1).getStartMillis());
+        assertNull(read.get(1).getTimeZone());
+    }
+
+    @Test
+    public void rejectsAnUnknownTimeZone() throws IOException {
+        try {
+            read(EventFileWriter.Format.ICS, ics("BEGIN:VEVENT", "UID:u1",
+                    "DTSTART;TZID=Mars Standard Time:20190501T100000", "END:VEVENT"));
+            fail("The unknown time zone was read.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 5 "));
+            assertTrue(e.getMessage(), e.getMessage().contains("Mars Standard Time"));
+        }
+    }
+
+    @Test
+    public void namesTheLineOfAnInvalidEntry() throws IOException {
+        File file = folder.newFile("broken.json");
+        Files.write(file.toPath(), "{\"id\":\"a\"}\n\nnot json\n".getBytes(StandardCharsets.UTF_8));
+
+        try (EventFileReader reader =
+                new EventFileReader(file, EventFileWriter.Format.NDJSON, parser)) {
+            assertEquals("a", reader.next().getId());
+            reader.next();
+            fail("The invalid line was read.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3 "));
+        }
+    }
+
+    private static EventRecord timedEvent() {
+        return new EventRecord().setId("e1").setICalUID("u1@x").setSummary("Meeting, room 1")
+                .setDescription("Line 1\nLine 2; with \\ backslash").setLocation("Room 1")
+                .setColorId("3").setOrganizer("o@x").setStatus("confirmed")
+                .setStart(DateTime.parseRfc3339("2019-05-01T10:00:00+02:00"))
+                .setEnd(DateTime.parseRfc3339("2019-05-01T11:30:00+02:00"))
+                .setTimeZone("Europe/Berlin")
+                .setUpdated(DateTime.parseRfc3339("2019-04-01T12:00:00Z"))
+                .setAttendees(Arrays.asList("a@x", "b@x"))
+                .setPrivateProperties(Collections.singletonMap("k", "v"));
+    }
+
+    private static EventRecord allDayEvent() {
+        return new EventRecord().setId("e2").setICalUID("u2@x").setSummary("Holiday")
+                .setStart(DateTime.parseRfc3339("2019-05-01"))
+                .setEnd(DateTime.parseRfc3339("2019-05-02"));
+    }
+
+    /* The properties both formats keep. */
+    private static void assertSame(EventRecord expected, EventRecord actual) {
+        assertEquals(expected.getICalUID(), actual.getICalUID());
+        assertEquals(expected.getSummary(), actual.getSummary());
+        assertEquals(expected.getDescription(), actual.getDescription());
+        assertEquals(expected.getLocation(), actual.getLocation());
+        assertEquals(expected.getColorId(), actual.getColorId());
+        assertEquals(expected.getOrganizer(), actual.getOrganizer());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getStartMillis(), actual.getStartMillis());
+        assertEquals(expected.getEndMillis(), actual.getEndMillis());
+        assertEquals(expected.getTimeZone(), actual.getTimeZone());
+    }
+
+    private File ics(String... lines) throws IOException {
+        File file = folder.newFile();
+        List<String> calendar = new ArrayList<>(Arrays.asList("BEGIN:VCALENDAR", "VERSION:2.0"));
+        calendar.addAll(Arrays.asList(lines));
+        calendar.add("END:VCALENDAR");
+        Files.write(file.toPath(), String.join("\r\n", calendar).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private List<EventRecord> roundTrip(EventFileWriter.Format format, EventRecord... events)
+            throws IOException {
+        return read(format, write(format, events));
+    }
+
+    private File write(EventFileWriter.Format format, EventRecord... events) throws IOException {
+        File file = folder.newFile();
+        try (EventFileWriter writer = new EventFileWriter(file, format, JSON_FACTORY)) {
+            for (EventRecord event : events) {
+                writer.write(event);
+            }
+            assertEquals(events.length, writer.getWritten());
+        }
+        return file;
+    }
+
+    private List<EventRecord> read(EventFileWriter.Format format, File file) throws IOException {
+        List<EventRecord> events = new ArrayList<>();
+        try (EventFileReader reader = new EventFileReader(file, format, parser)) {
+            EventRecord event;
+            while ((event = reader.next()) != null) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,162 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+
+public class EventFilterTest {
+
+    @Test
+    public void matchesTextFieldsIgnoringCase() {
+        EventRecord event = event("Daily Standup").setLocation("Room 1")
+                .setAttendees(Arrays.asList("a@x", "b@x"));
+
+        assertTrue(EventFilter.parse("summary = \"daily standup\"").test(event));
+        assertTrue(EventFilter.parse("summary ~ \"^daily\"").test(event));
+        assertTrue(EventFilter.parse("summary contains STAND").test(event));
+        assertTrue(EventFilter.parse("attendee = B@X").test(event));
+        assertFalse(EventFilter.parse("location != \"room 1\"").test(event));
+        assertFalse(EventFilter.parse("summary ~ \"standup$x\"").test(event));
+    }
+
+    @Test
+    public void comparesColorTypeAndPropertiesExactly() {
+        EventRecord event = event("A").setColorId("a1")
+                .setPrivateProperties(Collections.singletonMap("Source", "Import"));
+
+        assertTrue(EventFilter.parse("color = a1").test(event));
+        assertFalse(EventFilter.parse("color = A1").test(event));
+        assertTrue(EventFilter.parse("property.Source = Import").test(event));
+        assertFalse(EventFilter.parse("property.Source = import").test(event));
+        assertTrue(EventFilter.parse("type = default").test(event));
+    }
+
+    @Test
+    public void andBindsTighterThanOr() {
+        EventFilter filter = EventFilter.parse("summary = a or summary = b and location = x");
+
+        assertTrue(filter.test(event("a")));
+        assertFalse(filter.test(event("b")));
+        assertTrue(filter.test(event("b").setLocation("x")));
+        assertFalse(EventFilter.parse("(summary = a or summary = b) and location = x")
+                .test(event("a")));
+        assertTrue(EventFilter.parse("not (summary = a or summary = b)").test(event("c")));
+    }
+
+    @Test
+    public void comparesDurationsAndAllDay() {
+        EventRecord event = event("A");
+
+        assertTrue(EventFilter.parse("duration = 90m").test(event));
+        assertTrue(EventFilter.parse("duration > 1h and duration <= 2h").test(event));
+        assertTrue(EventFilter.parse("allday = false").test(event));
+        assertFalse(EventFilter.parse("allday != false").test(event));
+    }
+
+    @Test
+    public void rejectsInvalidExpressions() {
+        for (String expression : Arrays.asList("", "summary", "summary =", "summary < a",
+                "size = 1", "(summary = a", "summary = a b", "updated >= yesterday",
+                "duration > 1w", "allday = maybe", "summary ~ \"(\"", "not text contains a",
+                "text contains a or summary = b")) {
+            try {
+                EventFilter.parse(expression);
+                fail("Accepted " + expression);
+            } catch (IllegalArgumentException e) {
+                /* expected */
+            }
+        }
+    }
+
+    @Test
+    public void findsTheLiteralOfRegularExpressions() {
+        assertEquals("standup", EventFilter.findLiteral("^standup$"));
+        assertEquals("review", EventFilter.findLiteral("(weekly )?review"));
+        assertEquals("a.b", EventFilter.findLiteral("a\\.b"));
+        assertEquals("ab", EventFilter.findLiteral("ab[cd]e"));
+        assertNull(EventFilter.findLiteral("a|b"));
+        assertNull(EventFilter.findLiteral("\\d+"));
+    }
+
+    @Test
+    public void findsNoLiteralInCharactersEscapedByLetter() {
+        assertNull(EventFilter.findLiteral("\\x41"));
+        assertNull(EventFilter.findLiteral("caf\\u00e9"));
+        assertNull(EventFilter.findLiteral("\\cXmeeting"));
+        assertNull(EventFilter.findLiteral("(?<w>a)\\k<w>"));
+        assertEquals("L", EventFilter.findLiteral("\\p{L}+L"));
+        assertEquals("weekly", EventFilter.findLiteral("\\bweekly\\b"));
+        assertNull(EventFilter.findLiteral("(a)\\12"));
+        assertTrue(EventFilter.parse("summary ~ \"\\\\x41B\"").test(
+                new EventRecord().setSummary("AB")));
+    }
+
+    @Test
+    public void pushesAndedClausesDownToTheListRequest() throws IOException {
+        EventFilter filter = EventFilter.parse("text contains standup and updated >= 2019-01-01"
+                + " and property.source = import and (type = default or type = focusTime)"
+                + " and summary ~ x");
+        Calendar.Events.List request = service().events().list("primary");
+
+        filter.restrict(request);
+
+        assertEquals("standup", request.getQ());
+        assertEquals(DateTime.parseRfc3339("2019-01-01").getValue(),
+                request.getUpdatedMin().getValue());
+        assertEquals(Collections.singletonList("source=import"),
+                request.getPrivateExtendedProperty());
+        assertEquals(Arrays.asList("default", "focusTime"), request.get("eventTypes"));
+        assertTrue(filter.getFields().contains("status"));
+        assertTrue(filter.getFields().contains("summary"));
+    }
+
+    @Test
+    public void keepsClausesUnderOrAndNotOutOfTheListRequest() throws IOException {
+        EventFilter filter = EventFilter.parse("updated >= 2019-01-01 or summary = a");
+        Calendar.Events.List request = service().events().list("primary");
+
+        filter.restrict(request);
+
+        assertNull(request.getUpdatedMin());
+        assertFalse(filter.getFields().contains("status"));
+    }
+
+    @Test
+    public void rejectsDeletedEventsListedByUpdatedMin() {
+        EventRecord deleted = event("A").setStatus("cancelled")
+                .setUpdated(DateTime.parseRfc3339("2019-02-01T00:00:00Z"));
+
+        assertFalse(EventFilter.parse("updated >= 2019-01-01").test(deleted));
+        assertTrue(EventFilter.parse("updated < 2019-03-01").test(deleted));
+    }
+
+    @Test
+    public void combinesFilters() {
+        EventFilter filter = EventFilter.keyword(" standup ").and(EventFilter.allDay(false));
+
+        assertEquals("standup", filter.getQuery());
+        assertTrue(filter.test(event("A")));
+        assertEquals(EventFilter.ALL, EventFilter.keyword(" ").and(EventFilter.ALL));
+    }
+
+    private static EventRecord event(String summary) {
+        return new EventRecord().setId(summary).setSummary(summary)
+                .setStart(DateTime.parseRfc3339("2019-05-01T10:00:00Z"))
+                .setEnd(DateTime.parseRfc3339("2019-05-01T11:30:00Z"));
+    }
+
+    private static Calendar service() {
+        return new Calendar.Builder(new FakeCalendarTransport(),
+                JacksonFactory.getDefaultInstance(), null).setApplicationName("test").build();
+    }
+}
@@ -0,0 +1,85 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import org.junit.Test;
+import com.google.api.client.util.DateTime;
+
+public class EventFingerprintsTest {
+    private final EventFingerprints fingerprints = new EventFingerprints(
+            EnumSet.of(EventFingerprints.Key.SUMMARY, EventFingerprints.Key.START));
+
+    @Test
+    public void keepsAllValuesWhileGrowing() {
+        for (long i = 0; i < 100000; i++) {
+            fingerprints.put(key(i), i);
+        }
+        /* a second put replaces the value */
+        fingerprints.put(key(7), -7);
+
+        assertEquals(100000, fingerprints.size());
+        assertEquals(-7, fingerprints.get(key(7), 0));
+        for (long i = 8; i < 100000; i++) {
+            assertEquals(i, fingerprints.get(key(i), -1));
+        }
+        assertEquals(-1, fingerprints.get(key(100000), -1));
+        assertFalse(fingerprints.contains(key(100001)));
+    }
+
+    @Test
+    public void probesPastCollidingSlots() {
+        /* the same slot for every table size */
+        for (long i = 1; i <= 5000; i++) {
+            fingerprints.put(i << 32, i);
+        }
+
+        for (long i = 1; i <= 5000; i++) {
+            assertTrue(fingerprints.contains(i << 32));
+            assertEquals(i, fingerprints.get(i << 32, 0));
+        }
+    }
+
+    @Test
+    public void fingerprintsTheKeyOnly() {
+        EventRecord event = event("Standup ", "2019-05-01T10:00:00Z").setLocation("Room 1");
+        EventRecord copy = event(" Standup", "2019-05-01T10:00:00Z").setId("other")
+                .setLocation("Room 2");
+
+        assertEquals(fingerprints.fingerprint(event), fingerprints.fingerprint(copy));
+        assertTrue(fingerprints.matches(event, copy));
+        assertNotEquals(fingerprints.fingerprint(event),
+                fingerprints.fingerprint(event("Standup", "2019-05-01T10:30:00Z")));
+        assertFalse(fingerprints.matches(event, event("Standup", "2019-05-01T10:30:00Z")));
+        assertFalse(fingerprints.matches(event, event(null, "2019-05-01T10:00:00Z")));
+        assertNotEquals(fingerprints.fingerprint(event("", "2019-05-01T10:00:00Z")),
+                fingerprints.fingerprint(event(null, "2019-05-01T10:00:00Z")));
+    }
+
+    @Test
+    public void comparesInstancesOnlyByTheirStart() {
+        EventRecord instance = event("A", "2019-05-01T10:00:00Z").setRecurringEventId("s");
+
+        assertTrue(fingerprints.isComparable(instance));
+        assertFalse(new EventFingerprints(EnumSet.of(EventFingerprints.Key.SUMMARY))
+                .isComparable(instance));
+    }
+
+    @Test
+    public void hashesIds() {
+        assertEquals(EventFingerprints.hash("a"), EventFingerprints.hash("a"));
+        assertNotEquals(EventFingerprints.hash("a"), EventFingerprints.hash("b"));
+    }
+
+    private static long key(long i) {
+        return EventFingerprints.hash(Long.toString(i));
+    }
+
+    private static EventRecord event(String summary, String start) {
+        return new EventRecord().setId(summary + start).setSummary(summary)
+                .setStart(DateTime.parseRfc3339(start));
+    }
+}
@@ -0,0 +1,90 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+public class EventListParserTest {
+    private final EventListParser parser = new EventListParser(JacksonFactory.getDefaultInstance());
+
+    @Test
+    public void parsesPageWithTokensAndSkipsUnknownFields() throws IOException {
+        EventPage page = parse("{\"kind\":\"calendar#events\",\"defaultReminders\":[{\"x\":1}],"
+                + "\"items\":[{\"id\":\"a\",\"summary\":\"First\",\"unknown\":{\"x\":[1,2]},"
+                + "\"start\":{\"dateTime\":\"2019-05-01T10:00:00Z\"}},{\"id\":\"b\"}],"
+                + "\"nextPageToken\":\"page2\",\"nextSyncToken\":\"sync1\"}");
+
+        assertEquals(2, page.getRecords().size());
+        assertEquals("a", page.getRecords().get(0).getId());
+        assertEquals("First", page.getRecords().get(0).getSummary());
+        assertEquals("b", page.getRecords().get(1).getId());
+        assertEquals("page2", page.getNextPageToken());
+        assertEquals("sync1", page.getNextSyncToken());
+    }
+
+    @Test
+    public void parsesAllProperties() throws IOException {
+        EventRecord event = parser.parseEvent("{\"id\":\"a\",\"etag\":\"\\\"1\\\"\","
+                + "\"status\":\"confirmed\",\"summary\":\"S\",\"description\":\"D\","
+                + "\"location\":\"L\",\"colorId\":\"5\",\"organizer\":{\"email\":\"o@x\"},"
+                + "\"recurringEventId\":\"r\",\"iCalUID\":\"u@x\","
+                + "\"recurrence\":[\"RRULE:FREQ=DAILY\"],"
+                + "\"start\":{\"dateTime\":\"2019-05-01T10:00:00+02:00\","
+                + "\"timeZone\":\"Europe/Berlin\"},"
+                + "\"end\":{\"dateTime\":\"2019-05-01T11:00:00+02:00\"},"
+                + "\"updated\":\"2019-04-01T00:00:00.000Z\","
+                + "\"attendees\":[{\"email\":\"a@x\"},{\"email\":\"b@x\"}],"
+                + "\"eventType\":\"focusTime\","
+                + "\"extendedProperties\":{\"private\":{\"k\":\"v\"},\"shared\":{\"s\":\"t\"}}}");
+
+        assertEquals("\"1\"", event.getEtag());
+        assertEquals("confirmed", event.getStatus());
+        assertEquals("D", event.getDescription());
+        assertEquals("L", event.getLocation());
+        assertEquals("5", event.getColorId());
+        assertEquals("o@x", event.getOrganizer());
+        assertEquals("r", event.getRecurringEventId());
+        assertEquals("u@x", event.getICalUID());
+        assertEquals(Collections.singletonList("RRULE:FREQ=DAILY"), event.getRecurrence());
+        assertEquals("Europe/Berlin", event.getTimeZone());
+        assertEquals(3600000, event.getEndMillis() - event.getStartMillis());
+        assertEquals(Arrays.asList("a@x", "b@x"), event.getAttendees());
+        assertEquals("focusTime", event.getEventType());
+        assertEquals(Collections.singletonMap("k", "v"), event.getPrivateProperties());
+    }
+
+    @Test
+    public void parsesAllDayEvents() throws IOException {
+        EventRecord event = parser.parseEvent("{\"id\":\"a\",\"start\":{\"date\":\"2019-05-01\"},"
+                + "\"end\":{\"date\":\"2019-05-02\"}}");
+
+        assertTrue(event.isAllDay());
+        assertEquals("2019-05-01", event.getStart().toStringRfc3339());
+        assertNull(event.getTimeZone());
+    }
+
+    @Test
+    public void parsesEmptyPage() throws IOException {
+        EventPage page = parse("{\"items\":[]}");
+
+        assertTrue(page.getRecords().isEmpty());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonObject() throws IOException {
+        parse("[]");
+    }
+
+    private EventPage parse(String json) throws IOException {
+        return parser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,169 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.api.client.util.DateTime;
+
+public class EventOutputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    private PrintStream systemOut;
+    private PrintStream systemErr;
+
+    @Before
+    public void setUp() throws IOException {
+        systemOut = System.out;
+        systemErr = System.err;
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+        System.setErr(new PrintStream(err, true, "UTF-8"));
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(systemOut);
+        System.setErr(systemErr);
+    }
+
+    @Test
+    public void writesPlainLinesToAFile() throws IOException {
+        File file = folder.newFile();
+        try (EventOutput output = new EventOutput(EventOutput.Format.PLAIN,
+                EventOutput.Verbosity.QUIET, file)) {
+            output.event(EventOutput.Action.DELETE, event());
+            output.status("* Done");
+        }
+
+        assertEquals("Deleting Meeting  2019-05-01T10:00:00.000+02:00 (e1)\n", read(file));
+        assertEquals("* Done\n", console(out));
+    }
+
+    @Test
+    public void writesNdjsonToAFile() throws IOException {
+        File file = folder.newFile();
+        try (EventOutput output = new EventOutput(EventOutput.Format.NDJSON,
+                EventOutput.Verbosity.EVENTS, file)) {
+            output.event(EventOutput.Action.MOVE, event());
+            output.details(event());
+        }
+
+        assertEquals("{\"action\":\"move\",\"id\":\"e1\","
+                + "\"start\":\"2019-05-01T10:00:00.000+02:00\",\"summary\":\"Meeting\","
+                + "\"description\":\"Say \\\"hi\\\"\\nthen go\"}\n",
+                read(file));
+    }
+
+    @Test
+    public void quotesCsvFields() throws IOException {
+        File file = folder.newFile();
+        try (EventOutput output = new EventOutput(EventOutput.Format.CSV,
+                EventOutput.Verbosity.QUIET, file)) {
+            output.event(EventOutput.Action.TOUCH, event().setSummary("A, B"));
+        }
+
+        String[] lines = read(file).split("\n", 2);
+        assertEquals("action,id,start,end,summary,description,location,colorId,status,organizer,"
+                + "recurringEventId,updated,etag", lines[0]);
+        assertTrue(lines[1], lines[1].startsWith(
+                "touch,e1,2019-05-01T10:00:00.000+02:00,,\"A, B\",\"Say \"\"hi\"\"\nthen go\","));
+    }
+
+    @Test
+    public void keepsPlainStatusLinesInOrderWithTheEvents() {
+        try (EventOutput output = newConsoleOutput(EventOutput.Format.PLAIN,
+                EventOutput.Verbosity.EVENTS)) {
+            output.status("* Start");
+            output.event(EventOutput.Action.FOUND, event());
+            output.details(event());
+            output.status("* End");
+        }
+
+        String[] lines = console(out).split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("* Start", lines[0]);
+        assertEquals("Meeting (2019-05-01T10:00:00.000+02:00) (e1)", lines[1]);
+        assertTrue(lines[2], lines[2].startsWith("{\"id\":\"e1\""));
+        assertEquals("* End", lines[3]);
+        assertEquals("", console(err));
+    }
+
+    @Test
+    public void sendsStatusLinesToStderrWhileNdjsonGoesToStdout() {
+        try (EventOutput output = newConsoleOutput(EventOutput.Format.NDJSON,
+                EventOutput.Verbosity.EVENTS)) {
+            output.status("* Start");
+            output.event(EventOutput.Action.DELETE, event());
+            output.details(event());
+            output.status("* End");
+        }
+
+        String[] lines = console(out).split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("{\"action\":\"delete\""));
+        assertEquals("* Start\n* End\n", console(err));
+    }
+
+    @Test
+    public void writesOnlyStatusLinesWhenQuiet() {
+        try (EventOutput output = newConsoleOutput(EventOutput.Format.CSV,
+                EventOutput.Verbosity.QUIET)) {
+            output.event(EventOutput.Action.DELETE, event());
+            output.status("* Deleted 1 event");
+        }
+
+        assertEquals("* Deleted 1 event\n", console(out));
+        assertEquals("", console(err));
+    }
+
+    @Test
+    public void summarizesTheCountsWhenShowingProgress() {
+        try (EventOutput output = newConsoleOutput(EventOutput.Format.PLAIN,
+                EventOutput.Verbosity.PROGRESS)) {
+            output.event(EventOutput.Action.DELETE, event());
+            output.event(EventOutput.Action.DELETE, event());
+            output.event(EventOutput.Action.IGNORED, event());
+        }
+
+        String console = console(out);
+        assertTrue(console, console.startsWith("* Progress after "));
+        assertTrue(console, console.endsWith(": ignored 1 delete 2\n"));
+    }
+
+    private static EventOutput newConsoleOutput(EventOutput.Format format,
+            EventOutput.Verbosity verbosity) {
+        try {
+            return new EventOutput(format, verbosity, null);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static EventRecord event() {
+        return new EventRecord().setId("e1").setSummary("Meeting")
+                .setDescription("Say \"hi\"\nthen go")
+                .setStart(DateTime.parseRfc3339("2019-05-01T10:00:00+02:00"));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static String console(ByteArrayOutputStream stream) {
+        return new String(stream.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,1144 @@
+package de.randombits.google.calendar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+
+/**
+ * FakeCalendarTransport stands in for the parts of the Calendar v3 API the tools use: listing,
+ * patching, deleting, moving and importing events, the calendar list and the batch endpoint.
+ * Listing honours q, updatedMin, privateExtendedProperty and eventTypes, events are of the
+ * default type unless imported with another one. Recurring events are daily series whose
+ * instances are kept as events of their own, with IDs ending in their original start like those
+ * of Google. Properties the fake does not model are kept as imported and listed with all fields.
+ * It is passed
+ * to Calendar.Builder instead of a real transport and keeps all events in memory.
+ * <p>
+ * Latency per HTTP request, a rate of calls failing with a backend error and a quota of calls per
+ * second can be configured to see how the tools behave against a slow or throttling API.
+ */
+public class FakeCalendarTransport extends HttpTransport {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String BATCH_BOUNDARY = "batch_fake_boundary";
+    private static final int DEFAULT_PAGE_SIZE = 250;
+    private static final int MAX_PAGE_SIZE = 2500;
+    private static final int CALENDAR_LIST_PAGE_SIZE = 100;
+    private static final long EVENT_DURATION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final DateTimeFormatter INSTANCE_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    /* the properties of an event the fake models, the others are kept as they are */
+    private static final Set<String> MODELLED_FIELDS = new HashSet<>(Arrays.asList("kind", "id",
+            "etag", "status", "summary", "description", "location", "colorId", "organizer",
+            "recurringEventId", "originalStartTime", "iCalUID", "recurrence", "updated", "start",
+            "end", "eventType", "extendedProperties"));
+
+    private final Map<String, FakeCalendar> calendars =
+            Collections.synchronizedMap(new LinkedHashMap<>());
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong httpRequests = new AtomicLong();
+    private final AtomicLong apiCalls = new AtomicLong();
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private double quotaPerSecond;
+    private double quotaTokens;
+    private long quotaRefilledNanos;
+
+    /**
+     * Time every HTTP request takes before it is answered. A batch counts as one request.
+     */
+    public FakeCalendarTransport setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Share of API calls between 0 and 1 that fail with 503 backendError.
+     */
+    public FakeCalendarTransport setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * API calls allowed per second. Further calls fail with 403 rateLimitExceeded. 0 disables
+     * the quota.
+     */
+    public synchronized FakeCalendarTransport setQuotaPerSecond(double quotaPerSecond) {
+        this.quotaPerSecond = quotaPerSecond;
+        this.quotaTokens = quotaPerSecond;
+        this.quotaRefilledNanos = System.nanoTime();
+        return this;
+    }
+
+    public FakeCalendarTransport addCalendar(String calendarId, String summary) {
+        calendars.put(calendarId, new FakeCalendar(calendarId, summary));
+        return this;
+    }
+
+    /**
+     * Adds synthetic events spread evenly over the range. Every tenth event is an all-day event
+     * and every third one carries a colored marker in its description.
+     */
+    public FakeCalendarTransport addEvents(String calendarId, int count, DateTime from,
+            DateTime to) {
+        FakeCalendar calendar = getCalendar(calendarId);
+        long spacing = Math.max(1, (to.getValue() - from.getValue()) / Math.max(1, count));
+        for (int i = 0; i < count; i++) {
+            FakeEvent event = new FakeEvent(calendarId.hashCode() + "x" + i);
+            long start = from.getValue() + i * spacing;
+            if (i % 10 == 0) {
+                start -= start % TimeUnit.DAYS.toMillis(1);
+                event.allDay = true;
+                event.start = start;
+                event.end = start + TimeUnit.DAYS.toMillis(1);
+            } else {
+                event.start = start;
+                event.end = start + EVENT_DURATION_MILLIS;
+            }
+            event.summary = "Event " + i;
+            if (i % 3 == 0) {
+                event.description = "<font color=\"#16A765\">●</font> Note " + i;
+            }
+            event.colorId = i % 5 == 0 ? Integer.toString(i % 11 + 1) : null;
+            event.organizer = calendarId;
+            touch(event);
+            calendar.put(event);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a series recurring daily, starting at the given time. Every tenth instance is an
+     * exception with a summary of its own.
+     */
+    public FakeCalendarTransport addSeries(String calendarId, String seriesId, int count,
+            DateTime from) {
+        FakeCalendar calendar = getCalendar(calendarId);
+        FakeEvent master = new FakeEvent(seriesId);
+        master.summary = "Series " + seriesId;
+        master.description = "<font color=\"#16A765\">●</font> Recurring";
+        master.organizer = calendarId;
+        master.start = from.getValue();
+        master.end = master.start + EVENT_DURATION_MILLIS;
+        master.recurrence = "RRULE:FREQ=DAILY;COUNT=" + count;
+        master.seriesEnd = master.start + (count - 1) * TimeUnit.DAYS.toMillis(1)
+                + EVENT_DURATION_MILLIS;
+        touch(master);
+        calendar.put(master);
+        for (int i = 0; i < count; i++) {
+            long start = master.start + i * TimeUnit.DAYS.toMillis(1);
+            FakeEvent instance = new FakeEvent(instanceId(seriesId, start, false));
+            instance.recurringEventId = seriesId;
+            instance.summary = master.summary;
+            instance.description = master.description;
+            instance.organizer = calendarId;
+            instance.start = start;
+            instance.originalStart = start;
+            instance.end = instance.start + EVENT_DURATION_MILLIS;
+            if (i % 10 == 9) {
+                instance.summary = "Moved " + seriesId + " " + i;
+                instance.exception = true;
+            }
+            touch(instance);
+            calendar.put(instance);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a copy with an ID of its own of every n-th single event in the calendar, as an import
+     * run twice would leave them.
+     */
+    public FakeCalendarTransport addDuplicates(String calendarId, int every) {
+        FakeCalendar calendar = getCalendar(calendarId);
+        List<FakeEvent> originals = new ArrayList<>();
+        int i = 0;
+        for (FakeEvent event : calendar.byId.values()) {
+            if (!event.cancelled && event.recurrence == null && event.recurringEventId == null
+                    && i++ % every == 0) {
+                originals.add(event);
+            }
+        }
+        for (FakeEvent original : originals) {
+            FakeEvent duplicate = original.copy(original.id + "dup");
+            touch(duplicate);
+            calendar.put(duplicate);
+        }
+        return this;
+    }
+
+    /**
+     * The number of events in the calendar which are not deleted.
+     */
+    public int getEventCount(String calendarId) {
+        return (int) getCalendar(calendarId).byId.values().stream().filter((e) -> !e.cancelled)
+                .count();
+    }
+
+    public long getHttpRequests() {
+        return httpRequests.get();
+    }
+
+    public long getApiCalls() {
+        return apiCalls.get();
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new FakeRequest(method, url);
+    }
+
+    private static String instanceId(String seriesId, long start, boolean allDay) {
+        String time = INSTANCE_TIME.format(Instant.ofEpochMilli(start));
+        return seriesId + "_" + (allDay ? time.substring(0, 8) : time);
+    }
+
+    private FakeCalendar getCalendar(String calendarId) {
+        FakeCalendar calendar = calendars.get(calendarId);
+        if (calendar == null) {
+            throw new IllegalArgumentException("Unknown calendar " + calendarId);
+        }
+        return calendar;
+    }
+
+    private void touch(FakeEvent event) {
+        event.sequence = sequence.incrementAndGet();
+        event.updated = System.currentTimeMillis();
+        event.etag = "\"" + event.sequence + "\"";
+    }
+
+    private LowLevelHttpResponse handle(String method, String url, Map<String, String> headers,
+            byte[] content, String contentType) throws IOException {
+        httpRequests.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        GenericUrl genericUrl = new GenericUrl(url);
+        if (genericUrl.getRawPath().startsWith("/batch/")) {
+            return handleBatch(content, contentType);
+        }
+        FakeResponse response =
+                call(method, genericUrl, headers, new String(content, StandardCharsets.UTF_8));
+        MockLowLevelHttpResponse lowLevelResponse = new MockLowLevelHttpResponse()
+                .setStatusCode(response.status).setReasonPhrase(response.reason);
+        if (response.body != null) {
+            lowLevelResponse.setContentType("application/json; charset=UTF-8")
+                    .setContent(response.body.getBytes(StandardCharsets.UTF_8));
+        }
+        return lowLevelResponse;
+    }
+
+    /* Requests and responses are matched by their order, just like the client does. */
+    private LowLevelHttpResponse handleBatch(byte[] content, String contentType)
+            throws IOException {
+        String boundary = new HttpMediaType(contentType).getParameter("boundary");
+        String body = new String(content, StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int part = 0;
+        for (String section : body.split(Pattern.quote("--" + boundary))) {
+            if (section.startsWith("--")) {
+                break;
+            }
+            int partHeadersEnd = section.indexOf("\r\n\r\n");
+            if (partHeadersEnd < 0) {
+                continue;
+            }
+            String inner = section.substring(partHeadersEnd + 4);
+            int requestLineEnd = inner.indexOf("\r\n");
+            int innerHeadersEnd = inner.indexOf("\r\n\r\n", requestLineEnd);
+            String[] requestLine = inner.substring(0, requestLineEnd).split(" ");
+            Map<String, String> headers = new HashMap<>();
+            if (innerHeadersEnd > requestLineEnd) {
+                for (String header : inner.substring(requestLineEnd + 2, innerHeadersEnd)
+                        .split("\r\n")) {
+                    String[] nameAndValue = header.split(":", 2);
+                    headers.put(nameAndValue[0].trim().toLowerCase(Locale.ROOT),
+                            nameAndValue.length > 1 ? nameAndValue[1].trim() : "");
+                }
+            }
+            String innerBody = inner.substring(innerHeadersEnd + 4);
+            if (innerBody.endsWith("\r\n")) {
+                innerBody = innerBody.substring(0, innerBody.length() - 2);
+            }
+            FakeResponse response =
+                    call(requestLine[0], new GenericUrl(requestLine[1]), headers, innerBody);
+            byte[] responseBody = response.body != null
+                    ? response.body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            StringBuilder head = new StringBuilder();
+            head.append("--").append(BATCH_BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: response-").append(++part).append("\r\n\r\n")
+                    .append("HTTP/1.1 ").append(response.status).append(' ')
+                    .append(response.reason).append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n")
+                    .append("Content-Length: ").append(responseBody.length).append("\r\n\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(responseBody);
+            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(("--" + BATCH_BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return new MockLowLevelHttpResponse().setStatusCode(200).setReasonPhrase("OK")
+                .setContentType("multipart/mixed; boundary=" + BATCH_BOUNDARY)
+                .setContent(out.toByteArray());
+    }
+
+    private FakeResponse call(String method, GenericUrl url, Map<String, String> headers,
+            String body) throws IOException {
+        apiCalls.incrementAndGet();
+        if (!tryAcquireQuota()) {
+            return error(403, "Forbidden", "rateLimitExceeded", "Rate Limit Exceeded");
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return error(503, "Service Unavailable", "backendError", "Backend Error");
+        }
+        String override = headers.get("x-http-method-override");
+        if (override != null) {
+            method = override;
+        }
+        /* /calendar/v3/calendars/{calendarId}/events/{eventId}/move */
+        List<String> path = url.getPathParts();
+        int base = path.indexOf("v3") + 1;
+        List<String> parts = base > 0 ? path.subList(base, path.size()) : path;
+        if (parts.size() == 3 && parts.get(0).equals("users")
+                && parts.get(2).equals("calendarList") && method.equals("GET")) {
+            return listCalendars(url);
+        }
+        if (parts.size() < 3 || !parts.get(0).equals("calendars")
+                || !parts.get(2).equals("events")) {
+            return error(404, "Not Found", "notFound", "Not Found");
+        }
+        FakeCalendar calendar = calendars.get(parts.get(1));
+        if (calendar == null) {
+            return error(404, "Not Found", "notFound", "Not Found");
+        }
+        if (parts.size() == 3 && method.equals("GET")) {
+            return listEvents(calendar, url);
+        }
+        if (parts.size() == 4 && parts.get(3).equals("import") && method.equals("POST")) {
+            return importEvent(calendar, body);
+        }
+        if (parts.size() < 4) {
+            return error(405, "Method Not Allowed", "methodNotAllowed", method);
+        }
+        FakeEvent event = calendar.byId.get(parts.get(3));
+        if (event == null || event.cancelled) {
+            return event == null ? error(404, "Not Found", "notFound", "Not Found")
+                    : error(410, "Gone", "deleted", "Resource has been deleted");
+        }
+        String ifMatch = headers.get("if-match");
+        if (ifMatch != null && !ifMatch.equals(event.etag)) {
+            return error(412, "Precondition Failed", "conditionNotMet", "Precondition Failed");
+        }
+        if (parts.size() == 5 && parts.get(4).equals("move") && method.equals("POST")) {
+            return moveEvent(calendar, event, (String) url.getFirst("destination"));
+        }
+        if (parts.size() == 5 && parts.get(4).equals("instances") && method.equals("GET")) {
+            return listInstances(calendar, event, url);
+        }
+        switch (method) {
+            case "GET":
+                return ok(render(event, null));
+            case "PATCH":
+                return patchEvent(calendar, event, body);
+            case "DELETE":
+                synchronized (calendar) {
+                    for (FakeEvent deleted : calendar.withInstances(event)) {
+                        deleted.cancelled = true;
+                        touch(deleted);
+                    }
+                    /* a deleted instance is a cancelled exception of its series */
+                    event.exception = event.recurringEventId != null;
+                }
+                return new FakeResponse(204, "No Content", null);
+            default:
+                return error(405, "Method Not Allowed", "methodNotAllowed", method);
+        }
+    }
+
+    private synchronized boolean tryAcquireQuota() {
+        if (quotaPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        quotaTokens = Math.min(quotaPerSecond,
+                quotaTokens + (now - quotaRefilledNanos) * quotaPerSecond / 1e9);
+        quotaRefilledNanos = now;
+        if (quotaTokens < 1) {
+            return false;
+        }
+        quotaTokens -= 1;
+        return true;
+    }
+
+    private FakeResponse listCalendars(GenericUrl url) throws IOException {
+        List<FakeCalendar> all;
+        synchronized (calendars) {
+            all = new ArrayList<>(calendars.values());
+        }
+        int offset = url.getFirst("pageToken") != null
+                ? Integer.parseInt((String) url.getFirst("pageToken")) : 0;
+        int maxResults = url.getFirst("maxResults") != null
+                ? Integer.parseInt((String) url.getFirst("maxResults")) : CALENDAR_LIST_PAGE_SIZE;
+        int end = Math.min(all.size(), offset + maxResults);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator json = JSON_FACTORY.createJsonGenerator(out, StandardCharsets.UTF_8);
+        json.writeStartObject();
+        json.writeFieldName("kind");
+        json.writeString("calendar#calendarList");
+        json.writeFieldName("items");
+        json.writeStartArray();
+        for (FakeCalendar calendar : all.subList(offset, end)) {
+            json.writeStartObject();
+            json.writeFieldName("kind");
+            json.writeString("calendar#calendarListEntry");
+            json.writeFieldName("id");
+            json.writeString(calendar.id);
+            json.writeFieldName("summary");
+            json.writeString(calendar.summary);
+            json.writeFieldName("accessRole");
+            json.writeString("owner");
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        if (end < all.size()) {
+            json.writeFieldName("nextPageToken");
+            json.writeString(Integer.toString(end));
+        }
+        json.writeEndObject();
+        json.flush();
+        return ok(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Pages continue after the start and id of the last event handed out. With a sync token only
+     * events changed since then are returned, deleted ones included.
+     */
+    private FakeResponse listEvents(FakeCalendar calendar, GenericUrl url) throws IOException {
+        /*
+         * instances of a series are only returned when they are exceptions, next to the series,
+         * cancelled ones included as long as the series is not
+         */
+        boolean singleEvents = "true".equals(url.getFirst("singleEvents"));
+        return listEvents(calendar, url, (event) -> singleEvents ? event.recurrence == null
+                : event.recurringEventId == null || event.exception,
+                (event) -> !singleEvents && event.exception
+                        && !calendar.byId.get(event.recurringEventId).cancelled);
+    }
+
+    private FakeResponse listInstances(FakeCalendar calendar, FakeEvent master, GenericUrl url)
+            throws IOException {
+        return listEvents(calendar, url, (event) -> master.id.equals(event.recurringEventId),
+                (event) -> false);
+    }
+
+    private FakeResponse listEvents(FakeCalendar calendar, GenericUrl url,
+            Predicate<FakeEvent> filter, Predicate<FakeEvent> listedCancelled)
+            throws IOException {
+        String syncToken = (String) url.getFirst("syncToken");
+        String timeMinParameter = (String) url.getFirst("timeMin");
+        String timeMaxParameter = (String) url.getFirst("timeMax");
+        if (syncToken != null && (timeMinParameter != null || timeMaxParameter != null)) {
+            return error(400, "Bad Request", "invalid", "syncToken can not be used with timeMin");
+        }
+        long since = syncToken != null ? Long.parseLong(syncToken) : -1;
+        long timeMin = timeMinParameter != null
+                ? DateTime.parseRfc3339(timeMinParameter).getValue() : Long.MIN_VALUE;
+        long timeMax = timeMaxParameter != null
+                ? DateTime.parseRfc3339(timeMaxParameter).getValue() : Long.MAX_VALUE;
+        int maxResults = url.getFirst("maxResults") != null
+                ? Math.min(MAX_PAGE_SIZE, Integer.parseInt((String) url.getFirst("maxResults")))
+                : DEFAULT_PAGE_SIZE;
+        String q = (String) url.getFirst("q");
+        String[] terms = q != null && !q.trim().isEmpty()
+                ? q.toLowerCase(Locale.ROOT).trim().split("\\s+") : new String[0];
+        Set<String> fields = itemFields((String) url.getFirst("fields"));
+        /* deleted events are listed as well when asking for changes since updatedMin */
+        long updatedMin = url.getFirst("updatedMin") != null
+                ? DateTime.parseRfc3339((String) url.getFirst("updatedMin")).getValue()
+                : Long.MIN_VALUE;
+        Collection<Object> properties = url.getAll("privateExtendedProperty");
+        Collection<Object> eventTypes = url.getAll("eventTypes");
+
+        NavigableMap<EventKey, FakeEvent> candidates;
+        String pageToken = (String) url.getFirst("pageToken");
+        if (pageToken != null) {
+            String[] startAndId = pageToken.split(":", 2);
+            candidates = calendar.byStart
+                    .tailMap(new EventKey(Long.parseLong(startAndId[0]), startAndId[1]), false);
+        } else if (timeMin != Long.MIN_VALUE) {
+            candidates = calendar.byStart
+                    .tailMap(new EventKey(timeMin - calendar.maxDurationMillis, ""), true);
+        } else {
+            candidates = calendar.byStart;
+        }
+        long syncedSequence = sequence.get();
+        List<FakeEvent> page = new ArrayList<>();
+        EventKey last = null;
+        boolean more = false;
+        for (Map.Entry<EventKey, FakeEvent> entry : candidates.entrySet()) {
+            FakeEvent event = entry.getValue();
+            if (event.start >= timeMax) {
+                break;
+            }
+            if (!filter.test(event) || (syncToken != null ? event.sequence <= since
+                    : (event.cancelled && updatedMin == Long.MIN_VALUE
+                            && !listedCancelled.test(event))
+                            || event.updated < updatedMin || event.getLastEnd() <= timeMin
+                            || !event.matches(terms) || !event.hasProperties(properties)
+                            || (!eventTypes.isEmpty() && !eventTypes.contains(event.eventType)))) {
+                continue;
+            }
+            if (page.size() == maxResults) {
+                more = true;
+                break;
+            }
+            page.add(event);
+            last = entry.getKey();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator json = JSON_FACTORY.createJsonGenerator(out, StandardCharsets.UTF_8);
+        json.writeStartObject();
+        json.writeFieldName("kind");
+        json.writeString("calendar#events");
+        json.writeFieldName("items");
+        json.writeStartArray();
+        for (FakeEvent event : page) {
+            writeEvent(json, event, fields);
+        }
+        json.writeEndArray();
+        if (more) {
+            json.writeFieldName("nextPageToken");
+            json.writeString(last.start + ":" + last.id);
+        } else if (timeMinParameter == null && timeMaxParameter == null) {
+            json.writeFieldName("nextSyncToken");
+            json.writeString(Long.toString(syncedSequence));
+        }
+        json.writeEndObject();
+        json.flush();
+        return ok(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /*
+     * An event with the iCalUID of one in the calendar updates it, with an original start as well
+     * it updates that instance of the series. Of a recurrence only a daily rule with COUNT and
+     * EXDATE lines are understood.
+     */
+    private FakeResponse importEvent(FakeCalendar calendar, String body) throws IOException {
+        GenericJson imported = JSON_FACTORY.fromString(body, GenericJson.class);
+        String iCalUID = (String) imported.get("iCalUID");
+        if (iCalUID == null || !(imported.get("start") instanceof Map)
+                || !(imported.get("end") instanceof Map)) {
+            return error(400, "Bad Request", "required", "Missing iCalUID, start or end");
+        }
+        synchronized (calendar) {
+            FakeEvent existing = calendar.byICalUID.get(iCalUID);
+            if (imported.get("originalStartTime") instanceof Map) {
+                return importException(calendar, existing, imported);
+            } else if (existing != null && !existing.cancelled) {
+                patch(existing, imported);
+                return ok(render(existing, null));
+            }
+            FakeEvent event = new FakeEvent("imported" + sequence.incrementAndGet());
+            event.iCalUID = iCalUID;
+            patch(event, imported);
+            Map<?, ?> start = (Map<?, ?>) imported.get("start");
+            event.allDay = start.get("date") != null;
+            event.start = parseTime(start);
+            event.end = parseTime((Map<?, ?>) imported.get("end"));
+            if (imported.get("organizer") instanceof Map) {
+                event.organizer = (String) ((Map<?, ?>) imported.get("organizer")).get("email");
+            }
+            List<FakeEvent> instances = new ArrayList<>();
+            if (imported.get("recurrence") instanceof List) {
+                List<?> recurrence = (List<?>) imported.get("recurrence");
+                event.recurrence = (String) recurrence.get(0);
+                Set<Long> excluded = new HashSet<>();
+                for (Object line : recurrence.subList(1, recurrence.size())) {
+                    event.exclusions.add((String) line);
+                    excluded.addAll(parseExclusions((String) line));
+                }
+                Matcher count = Pattern.compile("FREQ=DAILY;COUNT=(\\d+)")
+                        .matcher(event.recurrence);
+                int instanceCount = count.find() ? Integer.parseInt(count.group(1)) : 1;
+                for (int i = 0; i < instanceCount; i++) {
+                    long instanceStart = event.start + i * TimeUnit.DAYS.toMillis(1);
+                    FakeEvent instance =
+                            new FakeEvent(instanceId(event.id, instanceStart, event.allDay));
+                    instance.recurringEventId = event.id;
+                    instance.iCalUID = iCalUID;
+                    instance.summary = event.summary;
+                    instance.description = event.description;
+                    instance.location = event.location;
+                    instance.colorId = event.colorId;
+                    instance.organizer = event.organizer;
+                    instance.allDay = event.allDay;
+                    instance.start = instanceStart;
+                    instance.originalStart = instanceStart;
+                    instance.end = event.end + i * TimeUnit.DAYS.toMillis(1);
+                    instance.other.putAll(event.other);
+                    instance.cancelled = excluded.contains(instanceStart);
+                    instance.exception = instance.cancelled;
+                    touch(instance);
+                    instances.add(instance);
+                }
+                event.seriesEnd = instances.get(instances.size() - 1).end;
+            }
+            touch(event);
+            calendar.put(event);
+            for (FakeEvent instance : instances) {
+                calendar.put(instance);
+            }
+            return ok(render(event, null));
+        }
+    }
+
+    private FakeResponse importException(FakeCalendar calendar, FakeEvent series,
+            GenericJson imported) throws IOException {
+        long originalStart = parseTime((Map<?, ?>) imported.get("originalStartTime"));
+        FakeEvent instance = null;
+        if (series != null && series.recurrence != null) {
+            for (FakeEvent candidate : calendar.byId.values()) {
+                if (series.id.equals(candidate.recurringEventId)
+                        && candidate.originalStart == originalStart) {
+                    instance = candidate;
+                }
+            }
+        }
+        if (instance == null) {
+            return error(404, "Not Found", "notFound", "No instance at the original start");
+        }
+        calendar.byStart.remove(new EventKey(instance.start, instance.id));
+        instance.start = parseTime((Map<?, ?>) imported.get("start"));
+        instance.end = parseTime((Map<?, ?>) imported.get("end"));
+        instance.cancelled = "cancelled".equals(imported.get("status"));
+        instance.exception = true;
+        patch(instance, imported);
+        calendar.put(instance);
+        return ok(render(instance, null));
+    }
+
+    /* The starts of an EXDATE line, in UTC, as dates or in the time zone of TZID. */
+    private static List<Long> parseExclusions(String line) {
+        Matcher zone = Pattern.compile(";TZID=([^;:]+)").matcher(line);
+        ZoneId zoneId = zone.find() ? ZoneId.of(zone.group(1)) : ZoneOffset.UTC;
+        List<Long> starts = new ArrayList<>();
+        for (String value : line.substring(line.lastIndexOf(':') + 1).split(",")) {
+            LocalDateTime time = value.length() == 8
+                    ? LocalDate.parse(value, DateTimeFormatter.BASIC_ISO_DATE).atStartOfDay()
+                    : LocalDateTime.parse(value.replace("Z", ""),
+                            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss"));
+            starts.add(time.atZone(value.endsWith("Z") || value.length() == 8 ? ZoneOffset.UTC
+                    : zoneId).toInstant().toEpochMilli());
+        }
+        return starts;
+    }
+
+    private static long parseTime(Map<?, ?> time) {
+        Object value = time.get("dateTime") != null ? time.get("dateTime") : time.get("date");
+        return DateTime.parseRfc3339(value.toString()).getValue();
+    }
+
+    private FakeResponse patchEvent(FakeCalendar calendar, FakeEvent event, String body)
+            throws IOException {
+        GenericJson patch = JSON_FACTORY.fromString(body, GenericJson.class);
+        synchronized (calendar) {
+            /* a change to the series goes to all instances except the exceptions */
+            for (FakeEvent instance : calendar.withInstances(event)) {
+                if (instance != event && !instance.exception) {
+                    patch(instance, patch);
+                }
+            }
+            if (event.recurringEventId != null) {
+                event.exception = true;
+            }
+            patch(event, patch);
+            if (patch.get("recurrence") instanceof List) {
+                truncate(calendar, event, (List<?>) patch.get("recurrence"));
+            }
+        }
+        return ok(render(event, null));
+    }
+
+    private void patch(FakeEvent event, GenericJson patch) {
+        for (Map.Entry<String, Object> field : patch.entrySet()) {
+            Object value = field.getValue() instanceof String ? field.getValue() : null;
+            switch (field.getKey()) {
+                case "summary":
+                    event.summary = (String) value;
+                    break;
+                case "description":
+                    event.description = (String) value;
+                    break;
+                case "location":
+                    event.location = (String) value;
+                    break;
+                case "colorId":
+                    event.colorId = (String) value;
+                    break;
+                case "eventType":
+                    event.eventType = (String) value;
+                    break;
+                case "extendedProperties":
+                    Object privateProperties = ((Map<?, ?>) field.getValue()).get("private");
+                    if (privateProperties instanceof Map) {
+                        for (Map.Entry<?, ?> property : ((Map<?, ?>) privateProperties)
+                                .entrySet()) {
+                            event.privateProperties.put((String) property.getKey(),
+                                    (String) property.getValue());
+                        }
+                    }
+                    break;
+                default:
+                    if (!MODELLED_FIELDS.contains(field.getKey())) {
+                        event.other.put(field.getKey(), field.getValue());
+                    }
+                    break;
+            }
+        }
+        touch(event);
+    }
+
+    /* Only UNTIL of a daily rule is understood, instances after it are deleted. */
+    private void truncate(FakeCalendar calendar, FakeEvent master, List<?> recurrence) {
+        master.recurrence = (String) recurrence.get(0);
+        Matcher until = Pattern.compile("UNTIL=(\\d{8})(T\\d{6}Z)?").matcher(master.recurrence);
+        if (!until.find()) {
+            return;
+        }
+        long untilMillis = DateTime.parseRfc3339(until.group(1).substring(0, 4) + "-"
+                + until.group(1).substring(4, 6) + "-" + until.group(1).substring(6)
+                + (until.group(2) != null ? "T" + until.group(2).substring(1, 3) + ":"
+                        + until.group(2).substring(3, 5) + ":" + until.group(2).substring(5)
+                        : "T23:59:59Z"))
+                .getValue();
+        master.seriesEnd = master.start;
+        for (FakeEvent instance : calendar.withInstances(master)) {
+            if (instance == master) {
+                continue;
+            } else if (instance.start > untilMillis) {
+                instance.cancelled = true;
+                touch(instance);
+            } else if (!instance.cancelled) {
+                master.seriesEnd = Math.max(master.seriesEnd, instance.end);
+            }
+        }
+    }
+
+    private FakeResponse moveEvent(FakeCalendar source, FakeEvent event, String destinationId)
+            throws IOException {
+        FakeCalendar destination = destinationId != null ? calendars.get(destinationId) : null;
+        if (destination == null) {
+            return error(404, "Not Found", "notFound", "Not Found");
+        }
+        List<FakeEvent> moved = new ArrayList<>();
+        synchronized (source) {
+            for (FakeEvent original : source.withInstances(event)) {
+                moved.add(original.copy());
+                original.cancelled = true;
+                touch(original);
+            }
+        }
+        for (FakeEvent copy : moved) {
+            touch(copy);
+            destination.put(copy);
+        }
+        return ok(render(moved.get(0), null));
+    }
+
+    private String render(FakeEvent event, Set<String> fields) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator json = JSON_FACTORY.createJsonGenerator(out, StandardCharsets.UTF_8);
+        writeEvent(json, event, fields);
+        json.flush();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void writeEvent(JsonGenerator json, FakeEvent event, Set<String> fields)
+            throws IOException {
+        json.writeStartObject();
+        writeField(json, fields, "kind", "calendar#event");
+        writeField(json, fields, "id", event.id);
+        writeField(json, fields, "etag", event.etag);
+        writeField(json, fields, "status", event.cancelled ? "cancelled" : "confirmed");
+        writeField(json, fields, "recurringEventId", event.recurringEventId);
+        if (event.recurringEventId != null) {
+            writeTime(json, fields, "originalStartTime", event.originalStart, event.allDay);
+        }
+        if (event.cancelled) {
+            /* deleted events only carry their id and status, instances what tells them apart */
+            json.writeEndObject();
+            return;
+        }
+        writeField(json, fields, "summary", event.summary);
+        writeField(json, fields, "description", event.description);
+        writeField(json, fields, "location", event.location);
+        writeField(json, fields, "colorId", event.colorId);
+        writeField(json, fields, "iCalUID", event.getICalUID());
+        writeField(json, fields, "eventType", event.eventType);
+        if (event.recurrence != null && include(fields, "recurrence")) {
+            json.writeFieldName("recurrence");
+            json.writeStartArray();
+            json.writeString(event.recurrence);
+            for (String exclusion : event.exclusions) {
+                json.writeString(exclusion);
+            }
+            json.writeEndArray();
+        }
+        writeField(json, fields, "updated", new DateTime(event.updated).toStringRfc3339());
+        writeTime(json, fields, "start", event.start, event.allDay);
+        writeTime(json, fields, "end", event.end, event.allDay);
+        if (event.organizer != null && include(fields, "organizer")) {
+            json.writeFieldName("organizer");
+            json.writeStartObject();
+            json.writeFieldName("email");
+            json.writeString(event.organizer);
+            json.writeEndObject();
+        }
+        if (!event.privateProperties.isEmpty() && include(fields, "extendedProperties")) {
+            json.writeFieldName("extendedProperties");
+            json.writeStartObject();
+            json.writeFieldName("private");
+            json.writeStartObject();
+            for (Map.Entry<String, String> property : event.privateProperties.entrySet()) {
+                json.writeFieldName(property.getKey());
+                json.writeString(property.getValue());
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        for (Map.Entry<String, Object> field : event.other.entrySet()) {
+            if (include(fields, field.getKey())) {
+                json.writeFieldName(field.getKey());
+                json.serialize(field.getValue());
+            }
+        }
+        json.writeEndObject();
+    }
+
+    private static void writeField(JsonGenerator json, Set<String> fields, String name,
+            String value) throws IOException {
+        if (value != null && include(fields, name)) {
+            json.writeFieldName(name);
+            json.writeString(value);
+        }
+    }
+
+    private static void writeTime(JsonGenerator json, Set<String> fields, String name,
+            long millis, boolean allDay) throws IOException {
+        if (!include(fields, name)) {
+            return;
+        }
+        json.writeFieldName(name);
+        json.writeStartObject();
+        json.writeFieldName(allDay ? "date" : "dateTime");
+        json.writeString(new DateTime(allDay, millis, 0).toStringRfc3339());
+        json.writeEndObject();
+    }
+
+    private static boolean include(Set<String> fields, String name) {
+        return fields == null || fields.contains(name);
+    }
+
+    /* Only the top-level names within items(...) are honoured, e.g. organizer/email, or *. */
+    private static Set<String> itemFields(String fields) {
+        if (fields == null) {
+            return null;
+        }
+        int open = fields.indexOf("items(");
+        if (open < 0 || fields.startsWith("*)", open + 6)) {
+            return null;
+        }
+        int close = fields.indexOf(')', open);
+        Set<String> names = new HashSet<>();
+        for (String field : fields.substring(open + 6, close).split(",")) {
+            names.add(field.split("/")[0].trim());
+        }
+        return names;
+    }
+
+    private static FakeResponse ok(String body) {
+        return new FakeResponse(200, "OK", body);
+    }
+
+    private static FakeResponse error(int status, String reasonPhrase, String reason,
+            String message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator json = JSON_FACTORY.createJsonGenerator(out, StandardCharsets.UTF_8);
+        json.writeStartObject();
+        json.writeFieldName("error");
+        json.writeStartObject();
+        json.writeFieldName("errors");
+        json.writeStartArray();
+        json.writeStartObject();
+        json.writeFieldName("domain");
+        json.writeString(status == 403 ? "usageLimits" : "global");
+        json.writeFieldName("reason");
+        json.writeString(reason);
+        json.writeFieldName("message");
+        json.writeString(message);
+        json.writeEndObject();
+        json.writeEndArray();
+        json.writeFieldName("code");
+        json.writeNumber(status);
+        json.writeFieldName("message");
+        json.writeString(message);
+        json.writeEndObject();
+        json.writeEndObject();
+        json.flush();
+        return new FakeResponse(status, reasonPhrase,
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private class FakeRequest extends LowLevelHttpRequest {
+        private final String method;
+        private final String url;
+        private final Map<String, String> headers = new HashMap<>();
+
+        FakeRequest(String method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.put(name.toLowerCase(Locale.ROOT), value);
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            byte[] content = new byte[0];
+            if (getStreamingContent() != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                getStreamingContent().writeTo(out);
+                content = out.toByteArray();
+                if ("gzip".equals(getContentEncoding())) {
+                    content = gunzip(content);
+                }
+            }
+            return handle(method, url, headers, content, getContentType());
+        }
+
+        private byte[] gunzip(byte[] content) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static class FakeResponse {
+        private final int status;
+        private final String reason;
+        private final String body;
+
+        FakeResponse(int status, String reason, String body) {
+            this.status = status;
+            this.reason = reason;
+            this.body = body;
+        }
+    }
+
+    private static class FakeCalendar {
+        private final String id;
+        private final String summary;
+        private final NavigableMap<EventKey, FakeEvent> byStart = new ConcurrentSkipListMap<>();
+        private final Map<String, FakeEvent> byId = new ConcurrentHashMap<>();
+        /* single events and series by their iCalUID, as import finds them */
+        private final Map<String, FakeEvent> byICalUID = new ConcurrentHashMap<>();
+        private volatile long maxDurationMillis;
+
+        FakeCalendar(String id, String summary) {
+            this.id = id;
+            this.summary = summary;
+        }
+
+        synchronized void put(FakeEvent event) {
+            FakeEvent previous = byId.put(event.id, event);
+            if (previous != null) {
+                byStart.remove(new EventKey(previous.start, previous.id));
+            }
+            byStart.put(new EventKey(event.start, event.id), event);
+            if (event.recurringEventId == null) {
+                byICalUID.put(event.getICalUID(), event);
+            }
+            maxDurationMillis = Math.max(maxDurationMillis, event.getLastEnd() - event.start);
+        }
+
+        /**
+         * The event followed by its instances when it is a recurring series.
+         */
+        List<FakeEvent> withInstances(FakeEvent event) {
+            List<FakeEvent> events = new ArrayList<>();
+            events.add(event);
+            if (event.recurrence != null) {
+                for (FakeEvent instance : byId.values()) {
+                    if (event.id.equals(instance.recurringEventId) && !instance.cancelled) {
+                        events.add(instance);
+                    }
+                }
+            }
+            return events;
+        }
+    }
+
+    private static class EventKey implements Comparable<EventKey> {
+        private final long start;
+        private final String id;
+
+        EventKey(long start, String id) {
+            this.start = start;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(EventKey other) {
+            int byStart = Long.compare(start, other.start);
+            return byStart != 0 ? byStart : id.compareTo(other.id);
+        }
+    }
+
+    private static class FakeEvent {
+        private final String id;
+        private String etag;
+        private long sequence;
+        private boolean cancelled;
+        private String summary;
+        private String description;
+        private String location;
+        private String colorId;
+        private String organizer;
+        private boolean allDay;
+        private long start;
+        private long end;
+        private long updated;
+        /* set for the instances of a series, exceptions differ from the series */
+        private String recurringEventId;
+        private long originalStart;
+        private boolean exception;
+        /* set for a series together with the end of its last instance */
+        private String recurrence;
+        private final List<String> exclusions = new ArrayList<>();
+        private long seriesEnd;
+        private String eventType = "default";
+        private final Map<String, Object> other = new LinkedHashMap<>();
+        /* set when imported, otherwise derived from the ID of the event or its series */
+        private String iCalUID;
+        private final Map<String, String> privateProperties = new HashMap<>();
+
+        FakeEvent(String id) {
+            this.id = id;
+        }
+
+        String getICalUID() {
+            return iCalUID != null ? iCalUID
+                    : (recurringEventId != null ? recurringEventId : id) + "@google.com";
+        }
+
+        FakeEvent copy() {
+            return copy(id);
+        }
+
+        FakeEvent copy(String copyId) {
+            FakeEvent copy = new FakeEvent(copyId);
+            copy.summary = summary;
+            copy.description = description;
+            copy.location = location;
+            copy.colorId = colorId;
+            copy.organizer = organizer;
+            copy.allDay = allDay;
+            copy.start = start;
+            copy.end = end;
+            copy.recurringEventId = recurringEventId;
+            copy.originalStart = originalStart;
+            copy.exception = exception;
+            copy.recurrence = recurrence;
+            copy.exclusions.addAll(exclusions);
+            copy.eventType = eventType;
+            copy.other.putAll(other);
+            copy.seriesEnd = seriesEnd;
+            copy.iCalUID = iCalUID;
+            copy.privateProperties.putAll(privateProperties);
+            return copy;
+        }
+
+        long getLastEnd() {
+            return recurrence != null ? seriesEnd : end;
+        }
+
+        boolean matches(String[] terms) {
+            if (terms.length == 0) {
+                return true;
+            }
+            String text = (summary + " " + description + " " + location).toLowerCase(Locale.ROOT);
+            return Arrays.stream(terms).allMatch(text::contains);
+        }
+
+        /* Every NAME=VALUE of the privateExtendedProperty parameters. */
+        boolean hasProperties(Collection<Object> properties) {
+            for (Object property : properties) {
+                String[] nameAndValue = property.toString().split("=", 2);
+                if (nameAndValue.length < 2
+                        || !nameAndValue[1].equals(privateProperties.get(nameAndValue[0]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+import picocli.CommandLine;
+
+public class GoogleCalendarToolsTest {
+    private static final DateTime FROM = DateTime.parseRfc3339("2000-01-01T00:00:00Z");
+    private static final DateTime TO = DateTime.parseRfc3339("2010-01-01T00:00:00Z");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void removesDuplicates() {
+        FakeCalendarTransport transport = new FakeCalendarTransport()
+                .addCalendar("primary", "Primary").addEvents("primary", 500, FROM, TO)
+                .addDuplicates("primary", 5);
+
+        assertEquals(0, run(transport, "--dry-run", "dedup"));
+        assertEquals(600, transport.getEventCount("primary"));
+        assertEquals(0, run(transport, "dedup", "--keep", "newest"));
+        assertEquals(500, transport.getEventCount("primary"));
+        assertEquals(0, run(transport, "dedup", "--keep", "first"));
+        assertEquals(500, transport.getEventCount("primary"));
+    }
+
+    @Test
+    public void leavesDeletedEventsOutOfUpdatedFilters() throws IOException {
+        FakeCalendarTransport transport = new FakeCalendarTransport()
+                .addCalendar("primary", "Primary").addEvents("primary", 500, FROM, TO);
+        assertEquals(0, run(transport, "delete", "--filter", "summary ~ \"^Event 1\""));
+        File file = folder.newFile();
+
+        assertEquals(0, run(transport, "-o", file.getPath(), "--format", "ndjson", "list",
+                "--filter", "updated >= 2000-01-01"));
+
+        /* the deleted events listed by updatedMin are ignored, not listed */
+        assertEquals(transport.getEventCount("primary"), Files.readAllLines(file.toPath(),
+                StandardCharsets.UTF_8).stream().filter((line) -> line.contains(
+                        "\"action\":\"list\"") && !line.contains("cancelled")).count());
+    }
+
+    @Test
+    public void touchesWithOneCallPerEventWhenSettingAProperty() throws IOException {
+        FakeCalendarTransport rename = new FakeCalendarTransport()
+                .addCalendar("primary", "Primary").addEvents("primary", 100, FROM, TO);
+        FakeCalendarTransport property = new FakeCalendarTransport()
+                .addCalendar("primary", "Primary").addEvents("primary", 100, FROM, TO);
+
+        assertEquals(0, run(rename, "touch"));
+        assertEquals(0, run(property, "--touch-strategy", "extended_property", "touch"));
+
+        /* the listing costs the same, RENAME needs a second call to restore the summary */
+        assertEquals(100, rename.getApiCalls() - property.getApiCalls());
+        List<String> renamed = list(rename);
+        assertEquals(100, renamed.size());
+        assertEquals(list(property), renamed);
+    }
+
+    @Test
+    public void writesTheTouchPropertyToEveryEvent() throws IOException {
+        FakeCalendarTransport transport = new FakeCalendarTransport()
+                .addCalendar("primary", "Primary").addEvents("primary", 20, FROM, TO);
+        File file = folder.newFile("export.json");
+
+        assertEquals(0, run(transport, "--touch-strategy", "extended_property", "touch"));
+        assertEquals(0, run(transport, "export", file.getPath()));
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(20, lines.size());
+        for (String line : lines) {
+            assertTrue(line, line.contains("\"googleCalendarToolsTouched\":"));
+            assertFalse(line, line.contains(" touch\""));
+        }
+    }
+
+    @Test
+    public void keepsAllPropertiesThroughImportAndExport() throws IOException {
+        FakeCalendarTransport transport = new FakeCalendarTransport()
+                .addCalendar("primary", "Primary");
+        File imported = folder.newFile("imported.json");
+        Files.write(imported.toPath(), ("{\"iCalUID\":\"u1@x\",\"summary\":\"Focus\","
+                + "\"start\":{\"dateTime\":\"2001-01-01T08:00:00Z\"},"
+                + "\"end\":{\"dateTime\":\"2001-01-01T10:00:00Z\"},"
+                + "\"eventType\":\"focusTime\",\"transparency\":\"transparent\","
+                + "\"reminders\":{\"useDefault\":false,\"overrides\":"
+                + "[{\"method\":\"popup\",\"minutes\":5}]}}\n")
+                .getBytes(StandardCharsets.UTF_8));
+        File exported = folder.newFile("exported.json");
+
+        assertEquals(0, run(transport, "import", imported.getPath()));
+        assertEquals(0, run(transport, "export", exported.getPath()));
+
+        String line = Files.readAllLines(exported.toPath(), StandardCharsets.UTF_8).get(0);
+        assertTrue(line, line.contains("\"eventType\":\"focusTime\""));
+        assertTrue(line, line.contains("\"transparency\":\"transparent\""));
+        assertTrue(line, line.contains("\"overrides\":[{\"method\":\"popup\",\"minutes\":5}]"));
+    }
+
+    @Test
+    public void copiesASeriesWithItsExceptionsAsNdjson() throws IOException {
+        copySeriesWithItsExceptions(folder.newFile("series.json"));
+    }
+
+    @Test
+    public void copiesASeriesWithItsExceptionsAsIcs() throws IOException {
+        copySeriesWithItsExceptions(folder.newFile("series.ics"));
+    }
+
+    @Test(timeout = 60000)
+    public void retriesThrottledOperationsOfSeveralCalendars() {
+        FakeCalendarTransport transport = new FakeCalendarTransport().addCalendar("a", "A")
+                .addCalendar("b", "B").addEvents("a", 300, FROM, TO).addEvents("b", 300, FROM, TO)
+                .setQuotaPerSecond(50);
+
+        /* retries waiting for their backoff hold permits of their calendar */
+        assertEquals(0, run(transport, "-c", "a,b", "--calendar-concurrency", "5", "delete"));
+        assertEquals(0, transport.getEventCount("a"));
+        assertEquals(0, transport.getEventCount("b"));
+    }
+
+    @Test(timeout = 30000)
+    public void exitsWhenAWholeBatchFails() {
+        FakeCalendarTransport transport = new FakeCalendarTransport() {
+            @Override
+            protected LowLevelHttpRequest buildRequest(String method, String url) {
+                if (!url.contains("/batch")) {
+                    return super.buildRequest(method, url);
+                }
+                return new MockLowLevelHttpRequest(url).setResponse(new MockLowLevelHttpResponse()
+                        .setStatusCode(400).setContentType("application/json")
+                        .setContent("{\"error\":{\"code\":400,\"message\":\"Bad Request\"}}"));
+            }
+        };
+        transport.addCalendar("a", "A").addCalendar("b", "B").addEvents("a", 500, FROM, TO)
+                .addEvents("b", 500, FROM, TO);
+
+        assertNotEquals(0, run(transport, "-c", "a,b", "--calendar-concurrency", "2",
+                "delete"));
+        assertEquals(500, transport.getEventCount("a"));
+    }
+
+    /* A deleted instance is excluded, a moved one imported as exception of the series. */
+    private void copySeriesWithItsExceptions(File file) throws IOException {
+        FakeCalendarTransport transport = new FakeCalendarTransport()
+                .addCalendar("primary", "Primary").addCalendar("copy", "Copy")
+                .addSeries("primary", "s1", 20, DateTime.parseRfc3339("2001-01-01T08:00:00Z"));
+        assertEquals(0, run(transport, "delete", "--filter", "summary ~ \"^Moved s1 9$\""));
+
+        assertEquals(0, run(transport, "--series", "export", file.getPath()));
+        assertEquals(0, run(transport, "-c", "copy", "import", file.getPath()));
+
+        /* the series and its instances but the deleted one */
+        assertEquals(20, transport.getEventCount("copy"));
+        List<String> copied = listInstances(transport, "copy");
+        assertEquals(19, copied.size());
+        assertEquals(listInstances(transport, "primary"), copied);
+        assertEquals("{\"action\":\"list\",\"start\":\"2001-01-20T08:00:00.000Z\","
+                + "\"summary\":\"Moved s1 19\"}", copied.get(18));
+    }
+
+    /* The instances of the calendar without their IDs, which differ between calendars. */
+    private List<String> listInstances(FakeCalendarTransport transport, String calendarId)
+            throws IOException {
+        File file = folder.newFile();
+        assertEquals(0, run(transport, "-o", file.getPath(), "--format", "ndjson", "-c",
+                calendarId, "list"));
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).stream()
+                .filter((line) -> line.contains("\"action\":\"list\""))
+                .map((line) -> line.replaceAll("\"id\":\"[^\"]*\",", ""))
+                .collect(Collectors.toList());
+    }
+
+    private List<String> list(FakeCalendarTransport transport) throws IOException {
+        File file = folder.newFile();
+        assertEquals(0, run(transport, "-o", file.getPath(), "--format", "ndjson", "list"));
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).stream()
+                .filter((line) -> line.contains("\"action\":\"list\""))
+                .map((line) -> line.replaceAll(",\"(updated|etag)\":\"[^\"]*\"", ""))
+                .collect(Collectors.toList());
+    }
+
+    /* The command runs on the first calendar over the whole range unless told otherwise. */
+    private static int run(FakeCalendarTransport transport, String... args) {
+        List<String> arguments = new ArrayList<>(Arrays.asList("-f", "credentials.json", "-q",
+                "-r", "1000", "--batch-linger", "0"));
+        int command = 0;
+        while (args[command].startsWith("-")) {
+            command += args[command].equals("--dry-run") || args[command].equals("--series")
+                    ? 1 : 2;
+        }
+        if (!arguments.contains("-c") && !Arrays.asList(args).contains("-c")) {
+            arguments.addAll(Arrays.asList("-c", "primary"));
+        }
+        arguments.addAll(Arrays.asList(args).subList(0, command + 1));
+        arguments.addAll(Arrays.asList("-s", FROM.toStringRfc3339().substring(0, 10), "-e",
+                TO.toStringRfc3339().substring(0, 10)));
+        arguments.addAll(Arrays.asList(args).subList(command + 1, args.length));
+        Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+                .setAccessToken("token");
+        return new CommandLine(new GoogleCalendarTools(transport, credential))
+                .setCaseInsensitiveEnumValuesAllowed(true)
+                .execute(arguments.toArray(new String[0]));
+    }
+}
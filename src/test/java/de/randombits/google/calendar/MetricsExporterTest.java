@@ -0,0 +1,87 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+public class MetricsExporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EventOutput output;
+
+    @Before
+    public void setUp() throws IOException {
+        output = new EventOutput(EventOutput.Format.PLAIN, EventOutput.Verbosity.QUIET, null);
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+    }
+
+    @Test
+    public void servesOnTheLoopbackAddressByDefault() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.recordRetry(503);
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        MetricsExporter exporter = new MetricsExporter(metrics,
+                JacksonFactory.getDefaultInstance(), null, null, null, port, output);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://"
+                    + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port
+                    + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain"));
+            assertTrue(read(connection.getInputStream()).contains("503"));
+        } finally {
+            exporter.close();
+        }
+    }
+
+    @Test
+    public void writesTheJsonSummaryOnClose() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.recordOperationSucceeded();
+        File file = new File(folder.getRoot(), "metrics.json");
+
+        new MetricsExporter(metrics, JacksonFactory.getDefaultInstance(), file, null, null, 0,
+                output).close();
+
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json, json.startsWith("{") && json.endsWith("}"));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
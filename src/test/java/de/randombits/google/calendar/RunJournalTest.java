@@ -0,0 +1,92 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.google.api.client.util.DateTime;
+
+public class RunJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EventOutput output;
+
+    @Before
+    public void setUp() throws IOException {
+        output = new EventOutput(EventOutput.Format.PLAIN, EventOutput.Verbosity.QUIET, null);
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+    }
+
+    @Test
+    public void resumesWithThePendingOperations() throws IOException {
+        File file = folder.newFile();
+        try (RunJournal journal = RunJournal.create(file, "delete", "c1")) {
+            journal.submitted(operation("a"));
+            journal.submitted(operation("b"));
+            journal.submitted(operation("c"));
+            journal.succeeded(operation("a"));
+            journal.failed(operation("c"), "Not Found");
+            journal.checkpoint(DateTime.parseRfc3339("2019-06-01T00:00:00Z"));
+        }
+        /* a record cut off by a crash */
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("E\td\tSumm".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (RunJournal journal = RunJournal.resume(file, "delete", "c1", output)) {
+            List<EventRecord> pending = journal.getPending();
+            assertEquals(1, pending.size());
+            assertEquals("b", pending.get(0).getId());
+            assertEquals("Summary\tof b", pending.get(0).getSummary());
+            assertNull(pending.get(0).getDescription());
+            assertTrue(journal.isHandled("a"));
+            assertFalse(journal.isHandled("d"));
+            assertEquals(DateTime.parseRfc3339("2019-06-01T00:00:00Z").getValue(),
+                    journal.getListedUntil().getValue());
+            assertFalse(journal.isListingComplete());
+            journal.checkpoint(null);
+        }
+
+        try (RunJournal journal = RunJournal.resume(file, "delete", "c1", output)) {
+            assertTrue(journal.isListingComplete());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheJournalOfAnotherCommand() throws IOException {
+        File file = folder.newFile();
+        RunJournal.create(file, "delete", "c1").close();
+
+        RunJournal.resume(file, "move", "c1", output);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheJournalOfAnotherCalendar() throws IOException {
+        File file = folder.newFile();
+        RunJournal.create(file, "delete", "c1").close();
+
+        RunJournal.resume(file, "delete", "c2", output);
+    }
+
+    private static BatchOperation operation(String id) {
+        return new BatchOperation(new EventRecord().setId(id).setSummary("Summary\tof " + id)
+                .setStart(DateTime.parseRfc3339("2019-05-01T10:00:00Z")), "Deleting " + id);
+    }
+}
@@ -0,0 +1,151 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+
+public class SeriesResolverTest {
+    private static final DateTime FROM = DateTime.parseRfc3339("2000-01-01T08:00:00Z");
+    private static final DateTime TO = DateTime.parseRfc3339("2001-01-01T00:00:00Z");
+    private static final String FIELDS = EventRecord.ALL_FIELDS + ",recurrence";
+
+    private final FakeCalendarTransport transport =
+            new FakeCalendarTransport().addCalendar("primary", "Primary");
+    private final Calendar service = new Calendar.Builder(transport,
+            JacksonFactory.getDefaultInstance(), null).setApplicationName("test").build();
+    private final EventListParser parser =
+            new EventListParser(JacksonFactory.getDefaultInstance());
+    private final ApiRateLimiter rateLimiter = new ApiRateLimiter(1000,
+            ApiRateLimiter.Mode.FIXED, 1, 1000, new Metrics());
+    private EventOutput output;
+
+    @Before
+    public void setUp() throws IOException {
+        output = new EventOutput(EventOutput.Format.PLAIN, EventOutput.Verbosity.QUIET, null);
+        transport.addSeries("primary", "s1", 20, FROM);
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+    }
+
+    @Test
+    public void deletesASeriesWithinTheRangeAsAWhole() throws IOException {
+        SeriesResolver resolver = newResolver(FROM, EventFilter.ALL,
+                SeriesResolver.Change.DELETE);
+
+        List<EventRecord> resolved = resolver.resolve(listSeriesAndExceptions());
+
+        assertEquals(1, resolved.size());
+        assertEquals("s1", resolved.get(0).getId());
+        /* the exceptions go with their series */
+        assertEquals(Collections.emptyList(), resolver.takeExceptions());
+    }
+
+    @Test
+    public void truncatesASeriesStartingBeforeTheRange() throws IOException {
+        DateTime timeMin = DateTime.parseRfc3339("2000-01-05T00:00:00Z");
+        SeriesResolver resolver = newResolver(timeMin, EventFilter.ALL,
+                SeriesResolver.Change.DELETE);
+
+        List<EventRecord> resolved = resolver.resolve(listSeriesAndExceptions());
+
+        assertEquals(1, resolved.size());
+        assertEquals(Collections.singletonList("RRULE:FREQ=DAILY;UNTIL=20000104T235959Z"),
+                resolver.getTruncatedRecurrence("s1"));
+    }
+
+    @Test
+    public void truncatesAnAllDaySeriesOnTheDayBeforeTheRangeInItsTimeZone()
+            throws IOException {
+        /* midnight of January 5th in Auckland is still January 4th in UTC */
+        DateTime timeMin = DateTime.parseRfc3339("2000-01-05T00:00:00+13:00");
+        EventRecord series = new EventRecord().setId("s1").setSummary("Series s1")
+                .setStart(DateTime.parseRfc3339("2000-01-01"))
+                .setEnd(DateTime.parseRfc3339("2000-01-02")).setTimeZone("Pacific/Auckland")
+                .setRecurrence(Collections.singletonList("RRULE:FREQ=DAILY;COUNT=20"));
+        SeriesResolver resolver = newResolver(timeMin, EventFilter.ALL,
+                SeriesResolver.Change.DELETE);
+
+        resolver.resolve(Collections.singletonList(series));
+
+        assertEquals(Collections.singletonList("RRULE:FREQ=DAILY;UNTIL=20000104"),
+                resolver.getTruncatedRecurrence("s1"));
+    }
+
+    @Test
+    public void filtersTheInstancesOfAFilteredSeries() throws IOException {
+        SeriesResolver resolver = newResolver(FROM, EventFilter.parse("summary ~ \"^Series\""),
+                SeriesResolver.Change.DELETE);
+        List<EventRecord> events = new ArrayList<>();
+        for (EventRecord event : listSeriesAndExceptions()) {
+            /* the listing already dropped the moved exceptions */
+            if (event.getSummary().startsWith("Series")) {
+                events.add(event);
+            }
+        }
+
+        List<EventRecord> resolved = resolver.resolve(events);
+
+        assertEquals(18, resolved.size());
+        for (EventRecord instance : resolved) {
+            assertEquals("s1", instance.getRecurringEventId());
+            assertEquals("Series s1", instance.getSummary());
+        }
+        assertNull(resolver.getTruncatedRecurrence("s1"));
+    }
+
+    @Test
+    public void searchesTheInstancesForTheKeyword() throws IOException {
+        SeriesResolver resolver = newResolver(FROM, EventFilter.keyword("moved S1"),
+                SeriesResolver.Change.MOVE);
+
+        List<EventRecord> resolved = resolver.resolve(listSeriesAndExceptions());
+        resolved.addAll(resolver.takeExceptions());
+
+        assertEquals(Arrays.asList("Moved s1 9", "Moved s1 19"), Arrays.asList(
+                resolved.get(0).getSummary(), resolved.get(1).getSummary()));
+        assertEquals(2, resolved.size());
+    }
+
+    @Test
+    public void patchesAFilteredSeriesAsAWhole() throws IOException {
+        SeriesResolver resolver = newResolver(FROM, EventFilter.parse("summary ~ \"^Series\""),
+                SeriesResolver.Change.UPDATE);
+
+        List<EventRecord> resolved = resolver.resolve(listSeriesAndExceptions());
+        List<EventRecord> exceptions = resolver.takeExceptions();
+
+        assertEquals(1, resolved.size());
+        assertFalse(resolved.get(0).getRecurrence().isEmpty());
+        /* exceptions are patched on their own */
+        assertEquals(2, exceptions.size());
+        assertTrue(exceptions.get(0).getSummary().startsWith("Moved"));
+    }
+
+    private SeriesResolver newResolver(DateTime timeMin, EventFilter filter,
+            SeriesResolver.Change change) {
+        return new SeriesResolver(service, parser, rateLimiter, "primary", timeMin, TO, filter,
+                FIELDS, change, true, output);
+    }
+
+    private List<EventRecord> listSeriesAndExceptions() throws IOException {
+        Calendar.Events.List request = service.events().list("primary").setTimeMin(FROM)
+                .setTimeMax(TO).setSingleEvents(false).setMaxResults(2500);
+        return parser.execute(request, FIELDS).getRecords();
+    }
+}
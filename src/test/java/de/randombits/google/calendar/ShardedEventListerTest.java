@@ -0,0 +1,87 @@
+package de.randombits.google.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.Calendar;
+
+public class ShardedEventListerTest {
+    private static final DateTime FROM = DateTime.parseRfc3339("2000-01-01T00:00:00Z");
+    private static final DateTime TO = DateTime.parseRfc3339("2010-01-01T00:00:00Z");
+
+    private final FakeCalendarTransport transport =
+            new FakeCalendarTransport().addCalendar("primary", "Primary");
+    private final ApiRateLimiter rateLimiter = new ApiRateLimiter(1000,
+            ApiRateLimiter.Mode.FIXED, 1, 1000, new Metrics());
+    private EventOutput output;
+
+    @Before
+    public void setUp() throws IOException {
+        output = new EventOutput(EventOutput.Format.PLAIN, EventOutput.Verbosity.QUIET, null);
+    }
+
+    @After
+    public void tearDown() {
+        output.close();
+    }
+
+    @Test(timeout = 10000)
+    public void listsARangeFittingInOnePage() throws IOException {
+        transport.addEvents("primary", 100, FROM, TO);
+
+        List<EventRecord> events = list(FROM, TO);
+
+        assertEquals(100, events.size());
+        assertEquals(1, transport.getApiCalls());
+    }
+
+    @Test(timeout = 10000)
+    public void listsARangeTooShortToBeSplit() throws IOException {
+        DateTime to = new DateTime(FROM.getValue() + 30 * 60 * 1000);
+        transport.addEvents("primary", 3000, FROM, to);
+
+        assertEquals(3000, list(FROM, to).size());
+    }
+
+    @Test(timeout = 30000)
+    public void listsEveryEventOnceInOrder() throws IOException {
+        transport.addEvents("primary", 20000, FROM, TO);
+
+        List<EventRecord> events = list(FROM, TO);
+
+        assertEquals(20000, events.size());
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < events.size(); i++) {
+            assertTrue(ids.add(events.get(i).getId()));
+            assertTrue(i == 0 || events.get(i - 1).getStartMillis()
+                    <= events.get(i).getStartMillis());
+        }
+        assertTrue(transport.getApiCalls() > 8);
+    }
+
+    private List<EventRecord> list(DateTime timeMin, DateTime timeMax) throws IOException {
+        Calendar service = new Calendar.Builder(transport, JacksonFactory.getDefaultInstance(),
+                null).setApplicationName("test").build();
+        List<EventRecord> events = new ArrayList<>();
+        try (ShardedEventLister lister = new ShardedEventLister(service,
+                new EventListParser(JacksonFactory.getDefaultInstance()), rateLimiter, "primary",
+                timeMin, timeMax, EventFilter.ALL, EventRecord.ALL_FIELDS, 4, output)) {
+            EventPage page;
+            do {
+                page = lister.readPage(500);
+                events.addAll(page.getRecords());
+            } while (page.getNextPageToken() != null);
+        }
+        return events;
+    }
+}